@@ -47,6 +47,7 @@ import com.sforce.config.XmlConfigHandler;
 import com.sforce.mail.GenericClient;
 import com.sforce.mail.LoginCredentials;
 import com.sforce.mail.Notification;
+import com.sforce.mail.PooledHttpTransport;
 import com.sforce.util.ConsoleReader;
 import com.sforce.exception.InvalidConfigurationException;
 import com.sforce.exception.InvalidConfigurationException.ConfigurationExceptionCode;
@@ -127,6 +128,9 @@ public class SalesforceAgent {
             GLOBAL_CONFIG = loadConfig(fileName);
             logger.info(pLOADING_CFG_FILE + fileName);
 
+            // Before the first HTTP connection, which fixes the JDK keep-alive settings for good
+            PooledHttpTransport.configureKeepAlive();
+
             if (GLOBAL_CONFIG.get(ConfigParameters.pADMIN, ConfigParameters.pNOTIFY_ON_ERROR) != null) {
                 logger.info(pSYSTEM_NOTIFY_TARGET + GLOBAL_CONFIG.get(ConfigParameters.pADMIN, ConfigParameters.pNOTIFY_ON_ERROR));
             }
@@ -40,12 +40,28 @@ public interface ConfigParameters {
     final String pLOGIN               = "sfdcLogin";
     final String pNOTIFY              = "notify";
     final String pATTACH              = "attachments";
+    final String pHEADERS             = "headers";
     final String pSERVICES            = "services";
     final String pADMIN               = "admin";
 
     final String pTIMEOUT             = "timeout";
     final String pURL                 = "url";
     final String pLOGIN_REFRESH       = "loginRefresh";
+    final String pBATCH_SIZE          = "batchSize";
+    final String pBATCH_MAX_BYTES     = "batchMaxBytes";
+    final String pPIPELINE_DEPTH      = "pipelineDepth";
+    final String pCOMPRESSION_THRESHOLD = "compressionThreshold";
+    final String pHTTP_MAX_CONNECTIONS = "httpMaxConnections";
+    final String pMAX_CONCURRENT_CALLS = "maxConcurrentCalls";
+    final String pBREAKER_FAILURE_THRESHOLD = "breakerFailureThreshold";
+    final String pBREAKER_OPEN_SECONDS = "breakerOpenSeconds";
+    final String pAPI_RESERVE = "apiReserve";
+    final String pAPI_PAUSE_MINUTES = "apiPauseMinutes";
+    final String pFETCHER_THREADS = "fetcherThreads";
+    final String pSUBMITTER_THREADS = "submitterThreads";
+    final String pSUBMIT_QUEUE_SIZE = "submitQueueSize";
+    final String pPARSER_THREADS = "parserThreads";
+    final String pSTREAMING_PARSER = "streamingParser";
     final String pNOTIFY_EMAIL        = "notifyEmail";
     final String pNOTIFY_ON_ERROR     = "notifyonerror";
     final String pFROM                = "from";
@@ -64,8 +80,21 @@ public interface ConfigParameters {
     final String pINBOX               = "inbox";
     final String pREADBOX             = "readbox";
     final String pERRORBOX            = "errorbox";
+    final String pWINDOW_SIZE         = "windowSize";
+    final String pWINDOW_MODE         = "windowMode";
+    final String pIDLE                = "idle";
+    final String pCONNECTION_IDLE_TIMEOUT = "connectionIdleTimeout";
+    final String pCHECKPOINT_DIRECTORY = "checkpointDirectory";
+    final String pDELETE_PROCESSED    = "deleteProcessed";
+    final String pSPOOL_DIRECTORY     = "spoolDirectory";
+    final String pFINGERPRINT_DIRECTORY = "fingerprintDirectory";
 
     final String pATTACH_DIR          = "largeAttachmentDirectory";
     final String pATTACH_URL          = "largeAttachmentURLPrefix";
     final String pATTACH_SIZE         = "largeAttachmentSize";
+    final String pATTACH_MEMORY_THRESHOLD = "memoryThreshold";
+    final String pATTACH_DEDUPLICATE  = "deduplicate";
+
+    final String pHEADERS_INCLUDE     = "include";
+    final String pHEADERS_EXCLUDE     = "exclude";
 }
@@ -48,6 +48,13 @@ public class InvalidConfigurationException extends Exception {
         MAIL_USER_NOT_FOUND("No configuration value has been provided for the mail service User ID.", true, false),
         MAIL_AUTHENTICATION_ERROR("Invalid mail service username or password in configuration.", true, false),
         MAIL_FOLDER_NOT_FOUND("A mail folder provided is not valid.", true, false),
+        MAIL_WINDOW_SIZE_NOT_VALID("The mail window size specified in the configuration file is not valid. It must be an integer greater than or equal to 0.", true, true),
+        MAIL_WINDOW_MODE_NOT_VALID("The mail window mode specified in the configuration file is not valid. It must be either sequence or uid.", true, true),
+        MAIL_CONNECTION_IDLE_TIMEOUT_NOT_VALID("The mail connection idle timeout specified in the configuration file is not valid. It must be an integer greater than or equal to 0.", true, true),
+        MAIL_CHECKPOINT_NOT_VALID("A checkpoint directory can only be configured for IMAP mail services.", true, true),
+        MAIL_DELETE_PROCESSED_NOT_VALID("Processed messages can only be kept in the Inbox when a checkpoint directory and a fingerprint directory are configured.", true, true),
+        MAIL_SPOOL_NOT_VALID("The spool directory specified in the configuration file can not be opened.", true, true),
+        MAIL_FINGERPRINT_NOT_VALID("The fingerprint directory specified in the configuration file can not be opened.", true, true),
         MAIL_INTERVAL_NOT_VALID("The mail polling interval specified in the conguration file is not valid. It must be an integer greater than or equal to 1.", true, true),
 
         SFDC_CFG_FILE_LOAD_FAILURE("Failed to load salesforce.com configuration file.", true, true),
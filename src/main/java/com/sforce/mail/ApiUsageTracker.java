@@ -0,0 +1,171 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.soap.partner.wsc.LimitInfo;
+import com.sforce.soap.partner.wsc.LimitInfoHeader_element;
+import com.sforce.util.Metrics;
+
+/**
+ * Tracks the org's API request usage from the LimitInfoHeader that Salesforce returns with every
+ * call, and derives how hard the agent may push.
+ *
+ * The agent shares the daily limit with other integrations, so it only plans with the part of the
+ * limit above a reserve.  As usage of that budget grows, batches are packed fuller and fewer calls
+ * run at once; near the end of the budget calls are spaced out, and once it is used up, or
+ * Salesforce answers REQUEST_LIMIT_EXCEEDED, submission pauses for a while.
+ */
+public class ApiUsageTracker {
+    public static final int defaultReservePercent = 10;
+    public static final int defaultPauseMinutes = 30;
+
+    public static final String METRIC_API_USED = "api.requests.used";
+    public static final String METRIC_API_LIMIT = "api.requests.limit";
+
+    private static final String pAPI_REQUESTS = "API REQUESTS";
+    private static final String pPAUSED = "API request budget used up, pausing submission for ";
+
+    // Minimum spacing of calls once 90% of the budget is used
+    private static final long SLOW_CALL_INTERVAL = 10 * 1000;
+
+    static Logger logger = Logger.getLogger(ApiUsageTracker.class.getName());
+
+    private final int reservePercent;
+    private final long pauseDuration;
+    private int current = -1;
+    private int limit = -1;
+    private long pausedUntil = 0;
+
+    /**
+     * @param reservePercent Part of the daily limit left to other integrations
+     * @param pauseMinutes   How long submission pauses once the budget is used up
+     */
+    public ApiUsageTracker(int reservePercent, int pauseMinutes) {
+        this.reservePercent = Math.max(0, Math.min(99, reservePercent));
+        this.pauseDuration = Math.max(1, pauseMinutes) * 60L * 1000L;
+    }
+
+    /**
+     * Takes the usage reported with the last response
+     */
+    public void update(LimitInfoHeader_element header) {
+        if (header == null || header.getLimitInfo() == null) return;
+
+        LimitInfo[] infos = header.getLimitInfo();
+        for (int i = 0; i < infos.length; i++) {
+            if (infos[i] != null && pAPI_REQUESTS.equalsIgnoreCase(infos[i].getType())) {
+                update(infos[i].getCurrent(), infos[i].getLimit());
+            }
+        }
+    }
+
+    public void update(int used, int dailyLimit) {
+        boolean exhausted;
+        synchronized (this) {
+            this.current = used;
+            this.limit = dailyLimit;
+            exhausted = getUsedFraction() >= 1;
+        }
+        Metrics.record(METRIC_API_USED, used);
+        Metrics.record(METRIC_API_LIMIT, dailyLimit);
+
+        if (exhausted && !isPaused()) pause();
+    }
+
+    /**
+     * @return the used part of the budget above the reserve, 0 while nothing is known
+     */
+    public synchronized double getUsedFraction() {
+        if (this.limit <= 0 || this.current < 0) return 0;
+
+        double budget = this.limit * (100 - this.reservePercent) / 100.0;
+        return this.current / budget;
+    }
+
+    /**
+     * @return by how much the configured batch size is multiplied: 1 below half of the budget,
+     *         2 below three quarters and 4 above
+     */
+    public int getBatchSizeFactor() {
+        double used = getUsedFraction();
+        if (used < 0.5) return 1;
+        if (used < 0.75) return 2;
+        return 4;
+    }
+
+    /**
+     * @return the number of concurrent calls allowed out of <code>max</code>
+     */
+    public int getConcurrency(int max) {
+        double used = getUsedFraction();
+        if (used < 0.5) return max;
+        if (used < 0.75) return Math.max(1, max / 2);
+        return 1;
+    }
+
+    /**
+     * @return the minimum time between the start of two calls
+     */
+    public long getCallInterval() {
+        return getUsedFraction() < 0.9 ? 0 : SLOW_CALL_INTERVAL;
+    }
+
+    /**
+     * Suspends submission, e.g. after a REQUEST_LIMIT_EXCEEDED fault.
+     *
+     * @return the time submission resumes
+     */
+    public long pause() {
+        long until;
+        synchronized (this) {
+            this.pausedUntil = Math.max(this.pausedUntil, System.currentTimeMillis() + this.pauseDuration);
+            until = this.pausedUntil;
+        }
+        logger.warn(pPAUSED + (this.pauseDuration / 60000) + " minute(s): " + this);
+        return until;
+    }
+
+    public synchronized boolean isPaused() {
+        return System.currentTimeMillis() < this.pausedUntil;
+    }
+
+    public synchronized long getPausedUntil() {
+        return this.pausedUntil;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (this.limit <= 0) return "API usage unknown";
+        return "API requests " + this.current + " of " + this.limit + ", " + this.reservePercent + "% reserved";
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the content of one attachment while the message is processed.
+ *
+ * Content is written to fixed size heap chunks taken from a pool shared by all buffers, so small
+ * attachments are neither copied as they grow nor allocated anew for every message.  Once the
+ * content goes over the threshold it is spilled to a temporary file and the rest of it is written
+ * there, which keeps large attachments off the heap: they are moved to their final place with
+ * {@link #writeTo(File)}.
+ *
+ * Buffers must be released when they are no longer needed, to return their chunks to the pool
+ * and delete the spill file.
+ *
+ * A buffer can also compute the SHA-256 digest of its content as it is written, for the
+ * AttachmentStore.
+ */
+public class AttachmentBuffer extends OutputStream {
+    static final int CHUNK_SIZE = 32 * 1024;
+    // How many free chunks the pool keeps at most, 8 MB
+    static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String SPILL_PREFIX = "attachment";
+    private static final String SPILL_SUFFIX = ".part";
+    private static final String pDELETE_FAILED = "Unable to delete attachment spill file ";
+
+    static Logger logger = Logger.getLogger(AttachmentBuffer.class.getName());
+
+    private final long threshold;
+    private final MessageDigest digest;
+    private String hexDigest;
+    private final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+    private int chunkPosition = CHUNK_SIZE;
+    private long size = 0;
+    private File spillFile;
+    private OutputStream spill;
+
+    /**
+     * @param threshold The size in bytes above which the content is spilled to a file
+     */
+    public AttachmentBuffer(long threshold) {
+        this(threshold, false);
+    }
+
+    /**
+     * @param threshold The size in bytes above which the content is spilled to a file
+     * @param digest    Whether to compute the SHA-256 digest of the content
+     */
+    public AttachmentBuffer(long threshold, boolean digest) {
+        this.threshold = threshold;
+        try {
+            this.digest = digest ? MessageDigest.getInstance(DIGEST_ALGORITHM) : null;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.digest != null) this.digest.update(b, off, len);
+        if (this.spill == null && this.size + len > this.threshold) spill();
+        this.size += len;
+
+        if (this.spill != null) {
+            this.spill.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (this.chunkPosition == CHUNK_SIZE) {
+                this.chunks.add(takeChunk());
+                this.chunkPosition = 0;
+            }
+            int count = Math.min(len, CHUNK_SIZE - this.chunkPosition);
+            System.arraycopy(b, off, this.chunks.get(this.chunks.size() - 1), this.chunkPosition, count);
+            this.chunkPosition += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Moves the content written so far to a temporary file, where the rest of it goes as well
+     */
+    private void spill() throws IOException {
+        this.spillFile = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX);
+        this.spill = new BufferedOutputStream(new FileOutputStream(this.spillFile), CHUNK_SIZE);
+        writeChunks(this.spill);
+        releaseChunks();
+    }
+
+    private void writeChunks(OutputStream out) throws IOException {
+        for (int i = 0; i < this.chunks.size(); i++) {
+            int length = i == this.chunks.size() - 1 ? this.chunkPosition : CHUNK_SIZE;
+            out.write(this.chunks.get(i), 0, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.spill != null) this.spill.close();
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * @return the hex SHA-256 digest of the content, null if the buffer does not compute it.
+     *         Once asked for, nothing more can be written.
+     */
+    public String getDigest() {
+        if (this.digest == null) return null;
+        if (this.hexDigest == null) {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : this.digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            this.hexDigest = hex.toString();
+        }
+        return this.hexDigest;
+    }
+
+    public boolean isSpilled() {
+        return this.spillFile != null;
+    }
+
+    File getSpillFile() {
+        return this.spillFile;
+    }
+
+    /**
+     * @return the content in a single array, for attachments that are sent to Salesforce
+     */
+    public byte[] toByteArray() throws IOException {
+        if (this.spillFile != null) {
+            close();
+            return Files.readAllBytes(this.spillFile.toPath());
+        }
+
+        byte[] content = new byte[(int) this.size];
+        int offset = 0;
+        for (int i = 0; i < this.chunks.size(); i++) {
+            int length = i == this.chunks.size() - 1 ? this.chunkPosition : CHUNK_SIZE;
+            System.arraycopy(this.chunks.get(i), 0, content, offset, length);
+            offset += length;
+        }
+        return content;
+    }
+
+    /**
+     * Stores the content in a file.  A spilled buffer is moved there rather than copied, and is
+     * empty afterwards.
+     */
+    public void writeTo(File target) throws IOException {
+        if (this.spillFile != null) {
+            close();
+            Files.move(this.spillFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            this.spillFile = null;
+            return;
+        }
+
+        try (OutputStream out = new FileOutputStream(target, false)) {
+            writeChunks(out);
+        }
+    }
+
+    /**
+     * Returns the heap chunks to the pool and deletes the spill file
+     */
+    public void release() {
+        releaseChunks();
+        if (this.spill != null) {
+            try {
+                this.spill.close();
+            } catch (IOException e) {
+                // nothing to flush that is still wanted
+            }
+            this.spill = null;
+        }
+        if (this.spillFile != null && !this.spillFile.delete()) {
+            logger.warn(pDELETE_FAILED + this.spillFile);
+        }
+        this.spillFile = null;
+    }
+
+    private void releaseChunks() {
+        for (byte[] chunk : this.chunks) {
+            if (pooled.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                pool.offer(chunk);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+        this.chunks.clear();
+        this.chunkPosition = CHUNK_SIZE;
+    }
+
+    private static byte[] takeChunk() {
+        byte[] chunk = pool.poll();
+        if (chunk == null) return new byte[CHUNK_SIZE];
+        pooled.decrementAndGet();
+        return chunk;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigParameters;
+import com.sforce.util.Metrics;
+
+/**
+ * Content addressed store for oversized attachments, used when the deduplicate setting of the
+ * attachments section is true.
+ *
+ * Each attachment is stored once, under the SHA-256 digest of its content computed while it was
+ * read: blobs/&lt;first two digits&gt;/&lt;digest&gt;&lt;extension&gt; in the large attachment
+ * directory.  The proxy sent to Salesforce links to that blob, and an attachment whose blob exists
+ * already is not written again.
+ *
+ * Every link is recorded in blobs/references.idx, one line per attachment: the blob, the id of the
+ * Salesforce record it was sent with and the time.  A blob can be deleted once none of the records
+ * listed for it exists anymore.
+ */
+public class AttachmentStore {
+    public static final String METRIC_DEDUPLICATED = "attachments.deduplicated";
+
+    static final String BLOB_DIR = "blobs/";
+    static final String INDEX_FILE = "references.idx";
+    // Extensions longer than this are not kept on the blob name
+    private static final int MAX_EXTENSION = 10;
+
+    private static final String pALREADY_STORED = "Attachment already stored as ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static Logger logger = Logger.getLogger(AttachmentStore.class.getName());
+
+    private static final ThreadLocal<SimpleDateFormat> indexDateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private AttachmentStore() {
+    }
+
+    /**
+     * @return true if oversized attachments are stored by content
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pATTACH, ConfigParameters.pATTACH_DEDUPLICATE));
+    }
+
+    /**
+     * @param digest   The hex SHA-256 digest of the content
+     * @param filename The file name of the attachment, for its extension
+     * @return the name of the blob, relative to the large attachment directory
+     */
+    public static String getBlobName(String digest, String filename) {
+        String extension = "";
+        int dot = filename == null ? -1 : filename.lastIndexOf('.');
+        if (dot >= 0 && filename.length() - dot <= MAX_EXTENSION) {
+            extension = filename.substring(dot).toLowerCase();
+            for (int i = 1; i < extension.length(); i++) {
+                if (!Character.isLetterOrDigit(extension.charAt(i))) {
+                    extension = "";
+                    break;
+                }
+            }
+        }
+        return BLOB_DIR + digest.substring(0, 2) + "/" + digest + extension;
+    }
+
+    public static boolean isBlobName(String name) {
+        return name.startsWith(BLOB_DIR);
+    }
+
+    /**
+     * Writes the blob unless it exists already, and records the reference to it
+     *
+     * @param directory The large attachment directory
+     * @param blobName  The name of the blob, see getBlobName
+     * @param content   The content of the attachment
+     * @param recordId  The Salesforce record the attachment was sent with
+     * @return true if the blob was written, false if it was there already
+     */
+    public static boolean store(String directory, String blobName, AttachmentBuffer content, String recordId)
+        throws IOException {
+        File blob = new File(directory + blobName);
+        boolean written = false;
+
+        if (blob.exists()) {
+            logger.info(pALREADY_STORED + blobName);
+            Metrics.increment(METRIC_DEDUPLICATED);
+        } else {
+            File parent = blob.getParentFile();
+            if (parent.mkdirs()) {
+                logger.info("Directory created - " + parent);
+            }
+            // Never expose a partial blob, another thread may be storing the same content
+            File temp = File.createTempFile(".blob", ".tmp", parent);
+            try {
+                content.writeTo(temp);
+                try {
+                    Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                written = true;
+            } finally {
+                if (temp.exists()) temp.delete();
+            }
+        }
+
+        addReference(new File(directory + BLOB_DIR + INDEX_FILE), blobName, recordId);
+        return written;
+    }
+
+    private static synchronized void addReference(File index, String blobName, String recordId) throws IOException {
+        String line = blobName.substring(BLOB_DIR.length()) + " " + recordId + " "
+            + indexDateFormat.get().format(new Date()) + "\n";
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(index, true), UTF8)) {
+            writer.write(line);
+        }
+    }
+}
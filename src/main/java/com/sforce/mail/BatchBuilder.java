@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import javax.mail.Message;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigParameters;
+import com.sforce.soap.partner.wsc.HandledEmailMessage;
+import com.sforce.util.Metrics;
+
+/**
+ * Packs parsed messages into batches for handleEmailMessage.
+ *
+ * A batch is closed when it holds the maximum number of records, or when the next record would
+ * push its estimated request size over the byte limit.  A record that is larger than the limit
+ * on its own is sent in a batch by itself.  The size of every closed batch is recorded in the
+ * batch.messages and batch.bytes metrics.
+ *
+ * Builders made from the configuration pack more records per batch as the org's API budget runs
+ * low, see {@link ApiUsageTracker#getBatchSizeFactor()}.
+ */
+public class BatchBuilder {
+    public static final int defaultBatchSize = 5;
+    public static final long defaultBatchMaxBytes = 10 * 1024 * 1024;
+    // Most records a single SOAP call accepts
+    public static final int maxBatchSize = 200;
+
+    public static final String METRIC_BATCH_MESSAGES = "batch.messages";
+    public static final String METRIC_BATCH_BYTES = "batch.bytes";
+
+    private static final String pBATCH_SIZE_INVALID = "Invalid argument for batchSize setting, defaulted to " + defaultBatchSize + " messages: ";
+    private static final String pBATCH_MAX_BYTES_INVALID = "Invalid argument for batchMaxBytes setting, defaulted to " + defaultBatchMaxBytes + " bytes: ";
+
+    static Logger logger = Logger.getLogger(BatchBuilder.class.getName());
+
+    private final int maxCount;
+    private final long maxBytes;
+    private MessageBatch current = new MessageBatch();
+
+    /**
+     * @param maxCount Maximum number of records per batch
+     * @param maxBytes Maximum estimated request size of a batch
+     */
+    public BatchBuilder(int maxCount, long maxBytes) {
+        this.maxCount = Math.max(1, maxCount);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * @return a builder using the batchSize and batchMaxBytes settings of the sfdcLogin section,
+     *         the batch size scaled up by the current API usage
+     */
+    public static BatchBuilder fromConfig() {
+        int count = defaultBatchSize;
+        long bytes = defaultBatchMaxBytes;
+
+        String sCount = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pBATCH_SIZE);
+        if (sCount != null) {
+            try {
+                count = Integer.parseInt(sCount.trim());
+                if (count < 1) throw new NumberFormatException();
+            } catch (NumberFormatException nfe) {
+                logger.error(pBATCH_SIZE_INVALID + sCount);
+                count = defaultBatchSize;
+            }
+        }
+
+        String sBytes = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pBATCH_MAX_BYTES);
+        if (sBytes != null) {
+            try {
+                bytes = Long.parseLong(sBytes.trim());
+                if (bytes < 1) throw new NumberFormatException();
+            } catch (NumberFormatException nfe) {
+                logger.error(pBATCH_MAX_BYTES_INVALID + sBytes);
+                bytes = defaultBatchMaxBytes;
+            }
+        }
+        int factor = SalesforceSessionManager.getInstance().getApiUsage().getBatchSizeFactor();
+        if (factor > 1 && count < maxBatchSize) {
+            count = (int) Math.min(maxBatchSize, (long) count * factor);
+        }
+        return new BatchBuilder(count, bytes);
+    }
+
+    /**
+     * @return the maximum number of records per batch
+     */
+    public int getMaxCount() {
+        return this.maxCount;
+    }
+
+    /**
+     * Adds a parsed message.
+     *
+     * @return the batch that was closed to make room for the message, or null
+     */
+    public MessageBatch add(Message message, ParsedMessage parsed, HandledEmailMessage record) {
+        long size = parsed.getEstimatedSize();
+        MessageBatch closed = null;
+
+        if (this.current.size() > 0
+            && (this.current.size() >= this.maxCount || this.current.getEstimatedSize() + size > this.maxBytes)) {
+            closed = close();
+        }
+        this.current.add(message, parsed, record, size);
+        return closed;
+    }
+
+    /**
+     * Adds a message that could not be parsed, it is routed to the error folder with the current batch.
+     */
+    public void addUnparsable(Message message) {
+        this.current.addUnparsable(message);
+    }
+
+    /**
+     * Adds a message that was submitted before, it is routed like a processed one with the current batch.
+     */
+    public void addDuplicate(Message message) {
+        this.current.addDuplicate(message);
+    }
+
+    /**
+     * Adds a message that may have been submitted by a call that timed out, it is routed to the error folder
+     * with the current batch.
+     */
+    public void addInDoubt(Message message) {
+        this.current.addInDoubt(message);
+    }
+
+    /**
+     * @return the batch in progress, or null if it is empty
+     */
+    public MessageBatch flush() {
+        return this.current.isEmpty() ? null : close();
+    }
+
+    private MessageBatch close() {
+        MessageBatch closed = this.current;
+        this.current = new MessageBatch();
+
+        if (closed.size() > 0) {
+            Metrics.record(METRIC_BATCH_MESSAGES, closed.size());
+            Metrics.record(METRIC_BATCH_BYTES, closed.getEstimatedSize());
+        }
+        return closed;
+    }
+}
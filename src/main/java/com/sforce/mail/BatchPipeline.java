@@ -0,0 +1,224 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.util.Metrics;
+
+/**
+ * Runs the submit and commit stages of a mailbox poll on their own threads, so that the
+ * handleEmailMessage call for one batch overlaps with fetching and parsing the next one.
+ *
+ * The caller fetches and parses messages and hands each batch to {@link #put(MessageBatch)}.
+ * Batches are submitted on a shared executor, several at a time, and committed by a single
+ * thread in the order they were put, each with the results of its own call.  The folder operations
+ * of a mailbox therefore keep their order.  The commit thread belongs to the mailbox and is reused
+ * by the pipeline of every poll, see {@link #newCommitter(String)}.  At most <code>depth</code>
+ * batches are in flight; put blocks until one of them has been committed.
+ *
+ * Once a stage fails no further batches are submitted.  Batches that were already submitted are
+ * still committed, so their messages are not sent twice.  Every other batch handed to put is
+ * abandoned, so that it is released and its messages are handled again by a later poll.  The first
+ * failure is rethrown by put or {@link #finish()}.
+ */
+public class BatchPipeline {
+    public static final int defaultDepth = 2;
+    public static final String METRIC_PIPELINE_WAIT = "pipeline.wait.ms";
+
+    static Logger logger = Logger.getLogger(BatchPipeline.class.getName());
+
+    /**
+     * The stages run by the pipeline
+     */
+    public interface Stages {
+        /**
+         * Sends the batch to Salesforce and keeps the outcome on it.  Must not throw.
+         */
+        public void submit(MessageBatch batch);
+
+        /**
+         * Moves the messages of a submitted batch out of the inbox.
+         */
+        public void commit(MessageBatch batch) throws Exception;
+
+        /**
+         * Releases a batch that was not submitted, leaving its messages in the inbox.  Must not throw.
+         */
+        public void abandon(MessageBatch batch);
+    }
+
+    private final Stages stages;
+    private final Semaphore inFlight;
+    private final ExecutorService submitter;
+    private final ExecutorService committer;
+    private final int depth;
+    private volatile Exception failure = null;
+
+    /**
+     * @param depth     Maximum number of batches in flight
+     * @param submitter Executor the submit stage runs on, it is not shut down by the pipeline
+     * @param committer Single threaded executor the commit stage runs on, it is not shut down by the pipeline
+     * @param stages
+     */
+    public BatchPipeline(int depth, ExecutorService submitter, ExecutorService committer, Stages stages) {
+        this.stages = stages;
+        this.depth = Math.max(1, depth);
+        this.inFlight = new Semaphore(this.depth);
+        this.submitter = submitter;
+        this.committer = committer;
+    }
+
+    /**
+     * @param name Used to name the commit thread
+     * @return an executor for the commit stage of the pipelines of one mailbox
+     */
+    public static ExecutorService newCommitter(String name) {
+        return Executors.newSingleThreadExecutor(new StageThreadFactory(name + " commit"));
+    }
+
+    /**
+     * Queues a batch for submission and commit, waiting while the pipeline is full.
+     *
+     * @throws Exception the first failure of an earlier batch
+     */
+    public void put(final MessageBatch batch) throws Exception {
+        final Future<Boolean> submitted;
+        try {
+            rethrowFailure();
+
+            long start = System.currentTimeMillis();
+            this.inFlight.acquire();
+            Metrics.record(METRIC_PIPELINE_WAIT, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            this.stages.abandon(batch);
+            throw e;
+        }
+
+        try {
+            submitted = this.submitter.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    if (BatchPipeline.this.failure != null) return Boolean.FALSE;
+                    BatchPipeline.this.stages.submit(batch);
+                    return Boolean.TRUE;
+                }
+            });
+        } catch (RuntimeException e) {
+            this.inFlight.release();
+            this.stages.abandon(batch);
+            throw e;
+        }
+
+        this.committer.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean isSubmitted = false;
+                try {
+                    isSubmitted = submitted.get().booleanValue();
+                } catch (ExecutionException ee) {
+                    fail(ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee);
+                } catch (Exception e) {
+                    fail(e);
+                }
+
+                try {
+                    if (isSubmitted) {
+                        BatchPipeline.this.stages.commit(batch);
+                    } else {
+                        BatchPipeline.this.stages.abandon(batch);
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    BatchPipeline.this.inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until every batch has been committed.
+     *
+     * @throws Exception the first failure of any batch
+     */
+    public void finish() throws Exception {
+        try {
+            drain();
+        } finally {
+            rethrowFailure();
+        }
+    }
+
+    private void drain() throws InterruptedException {
+        while (!this.inFlight.tryAcquire(this.depth, 1, TimeUnit.MINUTES)) {
+            logger.info("Waiting for batches in flight to be committed");
+        }
+        this.inFlight.release(this.depth);
+    }
+
+    private synchronized void fail(Exception e) {
+        if (this.failure == null) {
+            this.failure = e;
+        } else {
+            logger.error(e, e);
+        }
+    }
+
+    private void rethrowFailure() throws Exception {
+        Exception e = this.failure;
+        if (e != null) throw e;
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String name;
+
+        StageThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, this.name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
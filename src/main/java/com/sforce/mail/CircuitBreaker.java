@@ -0,0 +1,151 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.SalesforceAgent;
+
+/**
+ * Circuit breaker in front of the Salesforce submission path of one org.
+ *
+ * CLOSED: requests flow, consecutive failures are counted.  After failureThreshold of them the
+ * breaker opens and Notification.SFDC_SERVICE_DOWN is sent once.
+ * OPEN: mail clients do not even fetch mail until openDuration has passed.
+ * HALF_OPEN: a single client is let through as a probe and submits one message.  Its success
+ * closes the breaker, its failure opens it again for another openDuration.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public static final int defaultFailureThreshold = 3;
+    public static final int defaultOpenSeconds = 60;
+
+    private static final String pOPENED = "Salesforce is unavailable, suspending mail processing for ";
+    private static final String pCLOSED = "Salesforce is available again, resuming mail processing";
+
+    static Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openDuration;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openUntil = 0;
+    private boolean probeInFlight = false;
+
+    /**
+     * @param name             Used in log messages and notifications
+     * @param failureThreshold Consecutive failures that open the breaker
+     * @param openDuration     Milliseconds the breaker stays open before a probe is let through
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openDuration) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = Math.max(0, openDuration);
+    }
+
+    /**
+     * Asks to go ahead with a request.
+     *
+     * @return null if the request must not be made, State.HALF_OPEN if the caller is the probe,
+     *         which must call {@link #releaseProbe()} when it is done, or State.CLOSED
+     */
+    public synchronized State allowRequest() {
+        if (this.state == State.OPEN && System.currentTimeMillis() >= this.openUntil) {
+            this.state = State.HALF_OPEN;
+        }
+
+        switch (this.state) {
+        case CLOSED:
+            return State.CLOSED;
+        case HALF_OPEN:
+            if (this.probeInFlight) return null;
+            this.probeInFlight = true;
+            return State.HALF_OPEN;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Ends a probe that got no answer from Salesforce either way, e.g. because there was no mail,
+     * so that another client may probe.
+     */
+    public synchronized void releaseProbe() {
+        this.probeInFlight = false;
+    }
+
+    public synchronized void recordSuccess() {
+        this.failures = 0;
+        if (this.state != State.CLOSED) {
+            logger.info(pCLOSED + " (" + this.name + ")");
+            this.state = State.CLOSED;
+            this.probeInFlight = false;
+        }
+    }
+
+    /**
+     * Records a failure to reach Salesforce
+     */
+    public void recordFailure(Throwable cause) {
+        boolean opened;
+        synchronized (this) {
+            this.failures++;
+            opened = this.state == State.CLOSED && this.failures >= this.failureThreshold;
+            if (opened || this.state == State.HALF_OPEN) {
+                this.state = State.OPEN;
+                this.openUntil = System.currentTimeMillis() + this.openDuration;
+                this.probeInFlight = false;
+            }
+        }
+
+        if (opened) {
+            String message = pOPENED + (this.openDuration / 1000) + " second(s) at a time (" + this.name + "): "
+                + (cause == null ? "" : cause.getMessage());
+            logger.error(message);
+            SalesforceAgent.processNotification(Notification.SFDC_SERVICE_DOWN, message, Notification.SEVERITY_ERROR);
+        }
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    public synchronized boolean isClosed() {
+        return this.state == State.CLOSED;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.name + ": " + this.state + ", " + this.failures + " consecutive failure(s)";
+    }
+}
@@ -31,6 +31,9 @@
 package com.sforce.mail;
 
 import java.io.IOException;
+
+import javax.mail.MessagingException;
+
 import com.sforce.SalesforceAgent;
 import com.sforce.SalesforceService;
 import com.sforce.SalesforceWorker;
@@ -52,7 +55,16 @@ public class EmailService extends SalesforceService {
     private static final String pINBOX          = "   InBox   : ";
     private static final String pREADBOX        = "   ReadBox : ";
     private static final String pERRORBOX       = "   ErrorBox: ";
+    private static final String pWINDOW         = "   Window  : ";
+    private static final String pIDLE           = "   Mode    : IMAP IDLE, falling back to polling every";
+    private static final String pCHECKPOINT     = "   Checkpoint: ";
+    private static final String pKEEP_PROCESSED = " (processed messages kept in the inbox)";
+    private static final String pSPOOL          = "   Spool   : ";
+    private static final String pFINGERPRINTS   = "   Fingerprints: ";
+    private static final String pIDLE_FALLBACK  = "Server does not support IDLE, falling back to polling ";
+    private static final String pIDLE_LOST      = "IDLE connection failed, reconnecting in ";
     private static final String pMINUTES        = " minute(s)";
+    private static final String pMESSAGES       = " message(s) by ";
 
     //Logging
     static Logger logger = Logger.getLogger(EmailService.class.getName());
@@ -81,6 +93,20 @@ public class EmailService extends SalesforceService {
                     String readbox = config.get(server, ConfigParameters.pREADBOX);
                     // Where should messages be moved to when there are errors
                     String errorbox = config.get(server, ConfigParameters.pERRORBOX);
+                    // How many messages are loaded from the inbox at a time, and how the windows are addressed
+                    String windowSize = config.get(server, ConfigParameters.pWINDOW_SIZE);
+                    String windowMode = config.get(server, ConfigParameters.pWINDOW_MODE);
+                    // Whether new mail is pushed with IMAP IDLE instead of polled every interval
+                    boolean idle = Boolean.parseBoolean(config.get(server, ConfigParameters.pIDLE));
+                    // How long the connection to the mail server is kept open between polls
+                    String connectionIdleTimeout = config.get(server, ConfigParameters.pCONNECTION_IDLE_TIMEOUT);
+                    // Where the UID checkpoint is kept, and whether processed messages are removed from the inbox
+                    String checkpointDirectory = config.get(server, ConfigParameters.pCHECKPOINT_DIRECTORY);
+                    String deleteProcessed = config.get(server, ConfigParameters.pDELETE_PROCESSED);
+                    // Where fetched messages are spooled before they are sent to Salesforce
+                    String spoolDirectory = config.get(server, ConfigParameters.pSPOOL_DIRECTORY);
+                    // Where the fingerprints of submitted messages are kept to recognize them when fetched again
+                    String fingerprintDirectory = config.get(server, ConfigParameters.pFINGERPRINT_DIRECTORY);
 
                     // Mail Service URL
                     url = promptArgument(url,"Mail Service URL");
@@ -144,6 +170,49 @@ public class EmailService extends SalesforceService {
                     }
                     if (howOftenMinutes<1) throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_INTERVAL_NOT_VALID);
 
+                    int iWindowSize = 0;    // Load the whole inbox at once unless configured otherwise
+                    if (windowSize != null) {
+                        try {
+                            iWindowSize = Integer.parseInt(windowSize);
+                        } catch (NumberFormatException e) {
+                            throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_WINDOW_SIZE_NOT_VALID,e);
+                        }
+                        if (iWindowSize<0) throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_WINDOW_SIZE_NOT_VALID);
+                    }
+                    int iConnectionIdleTimeout = GenericClient.defaultConnectionIdleTimeout;
+                    if (connectionIdleTimeout != null) {
+                        try {
+                            iConnectionIdleTimeout = Integer.parseInt(connectionIdleTimeout);
+                        } catch (NumberFormatException e) {
+                            throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_CONNECTION_IDLE_TIMEOUT_NOT_VALID,e);
+                        }
+                        if (iConnectionIdleTimeout<0) throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_CONNECTION_IDLE_TIMEOUT_NOT_VALID);
+                    }
+
+                    if (windowMode == null) {
+                        windowMode = InboxTraversal.MODE_SEQUENCE;
+                    }
+                    if (! windowMode.equalsIgnoreCase(InboxTraversal.MODE_SEQUENCE) &&
+                        ! windowMode.equalsIgnoreCase(InboxTraversal.MODE_UID))
+                    {
+                        throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_WINDOW_MODE_NOT_VALID);
+                    }
+
+                    if (checkpointDirectory != null && checkpointDirectory.trim().length() == 0) {
+                        checkpointDirectory = null;
+                    }
+                    if (checkpointDirectory != null && protocol.equalsIgnoreCase("pop3")) {
+                        throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_CHECKPOINT_NOT_VALID);
+                    }
+                    if (fingerprintDirectory != null && fingerprintDirectory.trim().length() == 0) {
+                        fingerprintDirectory = null;
+                    }
+                    // Kept messages above the checkpoint are fetched again, only their fingerprints keep them from being resubmitted
+                    boolean bDeleteProcessed = deleteProcessed == null || Boolean.parseBoolean(deleteProcessed);
+                    if (!bDeleteProcessed && (checkpointDirectory == null || fingerprintDirectory == null)) {
+                        throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_DELETE_PROCESSED_NOT_VALID);
+                    }
+
                     if (null == inbox || null == readbox || null == errorbox || null == pass || null == user || null == url) {
                         logger.error("Mailbox settings not configured correctly.  Unable to launch server.");
                     } else {
@@ -170,8 +239,19 @@ public class EmailService extends SalesforceService {
                         c.setInbox(inbox);
                         c.setReadbox(readbox);
                         c.setErrorbox(errorbox);
+                        c.setWindowSize(iWindowSize);
+                        c.setWindowMode(windowMode);
+                        c.setConnectionIdleTimeout(iConnectionIdleTimeout);
+                        c.setCheckpointDirectory(checkpointDirectory);
+                        c.setDeleteProcessed(bDeleteProcessed);
+                        c.setFingerprintDirectory(fingerprintDirectory);
+                        c.setSpoolDirectory(spoolDirectory);
+                        c.setRetryTimer(this);
 
-                        SalesforceWorker worker = new EmailWorker(c);
+                        if (idle && !(c instanceof ImapClient)) {
+                            logger.warn("IDLE is only supported for IMAP, polling " + url + " instead.");
+                            idle = false;
+                        }
 
                         logger.info(pSCHEDULE_POLL + url);
                         logger.info(pPORT + (port.equals("0") ? "default" : port) );
@@ -181,9 +261,31 @@ public class EmailService extends SalesforceService {
                         logger.info(pINBOX + inbox);
                         logger.info(pREADBOX + readbox);
                         logger.info(pERRORBOX + errorbox);
+                        if (iWindowSize > 0) {
+                            logger.info(pWINDOW + iWindowSize + pMESSAGES + windowMode);
+                        }
+                        if (idle) {
+                            logger.info(pIDLE + " " + interval + pMINUTES);
+                        }
+                        if (checkpointDirectory != null) {
+                            logger.info(pCHECKPOINT + checkpointDirectory + (bDeleteProcessed ? "" : pKEEP_PROCESSED));
+                        }
+                        if (spoolDirectory != null && spoolDirectory.trim().length() > 0) {
+                            logger.info(pSPOOL + spoolDirectory);
+                        }
+                        if (fingerprintDirectory != null && fingerprintDirectory.trim().length() > 0) {
+                            logger.info(pFINGERPRINTS + fingerprintDirectory);
+                        }
                         SalesforceAgent.registerServer(url + ":" + port + ":" + user + ":" + inbox);
 
-                        scheduleAtFixedRate(worker, 0, howOftenMinutes * 60 * 1000);
+                        if (idle) {
+                            IdleWorker idleWorker = new IdleWorker(this, (ImapClient)c, howOftenMinutes * 60 * 1000);
+                            Thread thread = new Thread(idleWorker, "IDLE " + user + "@" + url + ":" + inbox);
+                            thread.start();
+                        } else {
+                            SalesforceWorker worker = new EmailWorker(c);
+                            scheduleAtFixedRate(worker, 0, howOftenMinutes * 60 * 1000);
+                        }
 
                     }
                 } catch (InvalidConfigurationException ice) {
@@ -207,6 +309,71 @@ public class EmailService extends SalesforceService {
         return ConsoleReader.readArgumentFromConsole(sDescription);
     }
 
+    /**
+     * Keeps the inbox selected in IMAP IDLE on a dedicated connection and queues a poll
+     * of the inbox on the fetcher pool as soon as the server announces new messages, like
+     * a timer poll.  Wake-ups that come while a poll is still queued or running are folded
+     * into it, see ProcessingPools#fetch.  Falls back to polling
+     * on the service timer when the server has no IDLE capability.  A connection that
+     * fails or is lost is retried with a RetryBackoff.
+     */
+    private static class IdleWorker implements Runnable {
+        private final EmailService service;
+        private final ImapClient client;
+        private final long pollInterval;
+        private final RetryBackoff backoff;
+
+        private IdleWorker(EmailService service, ImapClient c, long pollInterval) {
+            this.service = service;
+            this.client = c;
+            this.pollInterval = pollInterval;
+            this.backoff = new RetryBackoff(Math.min(pollInterval, 60 * 1000), RetryBackoff.defaultMaxDelay);
+        }
+
+        @Override
+        public void run() {
+            boolean connected = false;
+            try {
+                while (!client.isShutdown()) {
+                    try {
+                        if (!connected) {
+                            if (!client.startIdle()) {
+                                logger.info(pIDLE_FALLBACK + client.getUrl());
+                                service.scheduleAtFixedRate(new EmailWorker(client), 0, pollInterval);
+                                return;
+                            }
+                            connected = true;
+                            backoff.succeeded();
+                            // Pick up whatever arrived while we were not listening
+                            ProcessingPools.getInstance().fetch(client);
+                        }
+                        if (client.waitForMessages(ImapClient.IDLE_REISSUE_MILLIS)) {
+                            ProcessingPools.getInstance().fetch(client);
+                        }
+                    } catch (MessagingException me) {
+                        connected = false;
+                        client.stopIdle();
+                        long delay = backoff.failed(me);
+                        logger.warn(pIDLE_LOST + (delay / 1000) + " second(s): " + me.getMessage());
+                        Thread.sleep(delay);
+                    } catch (InvalidConfigurationException ice) {
+                        service.handleConfigurationException(ice);
+                        if (ice.isFatal()) break;
+                        connected = false;
+                        Thread.sleep(pollInterval);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                logger.warn("IDLE worker interrupted.");
+            } finally {
+                client.stopIdle();
+            }
+            logger.info("Shutting down service...");
+            logger.info(client.toString());
+            SalesforceAgent.deRegisterServer(client.getUrl() + ":" + client.getPort() + ":" + client.getUser() + ":" + client.getInbox());
+        }
+    }
+
     private static class EmailWorker extends SalesforceWorker {
         private final GenericClient client;
         private EmailWorker(GenericClient c) {
@@ -216,7 +383,8 @@ public class EmailService extends SalesforceService {
         @Override
         public void run() {
             if(!client.isShutdown()) {
-                client.receive();
+                // The poll itself runs on the fetcher pool, so that a slow mailbox does not hold up the others
+                ProcessingPools.getInstance().fetch(client);
             } else {
                 logger.info("Shutting down service...");
                 logger.info(client.toString());
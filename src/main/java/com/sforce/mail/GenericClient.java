@@ -30,30 +30,36 @@
  */
 package com.sforce.mail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Semaphore;
 
 import javax.mail.AuthenticationFailedException;
+import javax.mail.FetchProfile;
+import javax.mail.FolderClosedException;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
 
 import org.apache.log4j.Logger;
 
@@ -62,20 +68,20 @@ import com.sforce.config.ConfigParameters;
 import com.sforce.exception.FailedBindingException;
 import com.sforce.exception.InvalidConfigurationException;
 import com.sforce.exception.InvalidConfigurationException.ConfigurationExceptionCode;
-import com.sforce.soap.partner.wsc.Connector;
 import com.sforce.soap.partner.wsc.HandledEmailMessage;
-import com.sforce.soap.partner.wsc.LoginResult;
 import com.sforce.soap.partner.wsc.PartnerConnection;
 import com.sforce.soap.partner.wsc.SaveResult;
 import com.sforce.soap.partner.wsc.Error;
 import com.sforce.util.EncryptionUtil;
+import com.sforce.util.Metrics;
 
 import com.sforce.soap.partner.fault.wsc.ApiFault;
 import com.sforce.soap.partner.fault.wsc.ExceptionCode;
 import com.sforce.soap.partner.fault.wsc.LoginFault;
 import com.sforce.config.ConfigInfo;
 import com.sforce.ws.ConnectionException;
-import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.SoapFaultException;
+import com.sun.mail.imap.IMAPFolder;
 
 /**
  * @author Echan
@@ -88,34 +94,64 @@ public abstract class GenericClient {
     private static final String EMAIL_TO_CASE_ROUTING_INCORRECT = "Routing Addresses are not set up correctly to run Email To Case.";
     private static final String pSHUTTING_DOWN_CONNECTION_TO_MAIL_SYSTEM = "Shutting down connection to mail system.";
     private static final String pNO_DEFAULT_FOLDER = "No default folder";
-    private static final String pAGENT_WILL_CONNECT_TO = "Agent will connect to: ";
-    private static final String pLOGIN_URL = "LoginURL: ";
     private static final String pPASSWORD_EXPIRED = "Password expired.  Please reset your password, and update the config file.  For long running integrations, consider setting the password never expires flag on for this profile";
-    private static final String pLOGIN_REFRESH = "Could not read loginRefresh from config, defaulting to 25 minutes.";
-    private static final String pTIMEOUT = "Could not read timeout from config, defaulting to 2 minutes.";
     private static final String pSUCCESS = "Success";
     private static final String pERROR = "Error";
     private static final String pMESSAGES = " messages";
     private static final String pPROCESSING = "   processing ";
+    private static final String pSPOOLING = "   spooling ";
+    private static final String pSPOOL_REJECTED = "Spooled message not accepted by Salesforce, kept as ";
+    private static final String pDUPLICATE = "Message already submitted as ";
+    private static final String pIN_DOUBT = "Message may already have been submitted by a call that timed out, not submitting it again: ";
+    private static final String pFINGERPRINT_FAILED = "Fingerprint index not available, submitting without duplicate check: ";
+    private static final String pSPOOL_UNREADABLE = "Spooled message can not be read back, kept as ";
     private static final String BAD_MSGS_FOUND = "Unable to process X message(s).";
+    private static final String IN_DOUBT_MSGS_FOUND = "X message(s) may have been submitted by a call that timed out and were "
+        + "routed as errors instead of submitted again. Check in Salesforce whether their cases exist.";
+    private static final String pCHECKPOINT_NOT_SUPPORTED = "UID checkpoints require an IMAP inbox, ignoring checkpoint for ";
+    private static final String pBISECTING = "Batch rejected, splitting it to isolate the failing message(s) out of ";
+    private static final String pRETRY_SCHEDULED = "Salesforce could not be reached, backing off ";
+    private static final String pBREAKER_OPEN = "Skipping poll while Salesforce is unavailable ";
+    private static final String pRETRY_PENDING = "Skipping poll while backing off ";
+    private static final String pAPI_PAUSED = "Skipping poll while the API request budget is used up ";
+    private static final String pAPI_LIMIT_EXCEEDED = "Salesforce API request limit exceeded, leaving messages in the inbox: ";
+    private static final String pPREFETCH_FAILED = "Bulk prefetch of message headers failed, falling back to lazy loading.";
     public static final int defaultRefresh = 25;
     public static final int defaultTimeout = 2;
+    public static final int defaultConnectionIdleTimeout = 30;
+    // How often a spool submitter checks whether Salesforce is back while the circuit breaker is open
+    private static final long SPOOL_RECHECK = 5 * 1000;
+    public static final String METRIC_RETRY_ATTEMPTS = "retry.attempts.";
+    public static final String METRIC_DUPLICATES = "fingerprint.duplicates";
 
     private static Hashtable<String, Integer> hashServiceStateTable = new Hashtable<String, Integer>(5);
 
     private LoginCredentials loginCredentials;
     private PartnerConnection conn;
+    // Connections of the current session not used by a call, a connection keeps the response headers of its last call
+    private final ArrayDeque<PartnerConnection> idleConnections = new ArrayDeque<PartnerConnection>();
+    private SalesforceSessionManager.Session session;
     private String inboxName = "INBOX";
     private String readboxName = null;
     private String errorBoxName = null;
-    private long nextLogin = 0;
-    private long sleepInterval = 0;
-    private int sleepIntervalStep = 1;
-    private int loginRefresh = defaultRefresh;
-    private int sfdcTimeout = defaultTimeout;
+    private int windowSize = 0;
+    private String windowMode = InboxTraversal.MODE_SEQUENCE;
+    private long connectionIdleTimeout = defaultConnectionIdleTimeout * 60 * 1000;
+    private File checkpointDirectory = null;
+    private UidCheckpoint checkpoint = null;
+    private boolean deleteProcessed = true;
+    private ExecutorService committer = null;
+    private final RetryBackoff retryBackoff = new RetryBackoff();
+    // Set when the current poll backs off from Salesforce
+    private volatile boolean salesforceFailed = false;
+    private Timer retryTimer = null;
+    private volatile boolean probing = false;
+    // UID the checkpoint may not pass during this poll because an earlier batch left messages behind
+    private volatile long checkpointCeiling = Long.MAX_VALUE;
+    private MessageSpool spool = null;
+    private MessageFingerprintIndex fingerprints = null;
 
     private static final char FOLDER_DELIM = '.';
-    private static final int SFDC_SERVICE_RETRY_COUNT = 3;
     private static final int MAX_THREADS_PER_SERVICE = 2;
     private static int iShutdownReason = 0;
 
@@ -127,9 +163,6 @@ public abstract class GenericClient {
 
     private final Semaphore mutex = new Semaphore(1);
 
-    // We only want to log login debug info the first time through
-    private static boolean firstTime = true;
-
     //Logging
     static Logger logger = Logger.getLogger(GenericClient.class.getName());
 
@@ -161,67 +194,141 @@ public abstract class GenericClient {
 
     }
 
-    private boolean needNewSession() {
-        if (conn == null) return true;
-
-        Calendar now = Calendar.getInstance();
-        long currentTime = now.getTimeInMillis();
-        if (nextLogin < currentTime) {
-            return true;
-        } else {
-            return false;
-        }
-    }
-
     private void forceNewSession() {
-       nextLogin = -1;
-       sleepInterval = 0;
-       sleepIntervalStep = 1;
+       SalesforceSessionManager.getInstance().invalidate(this.session);
     }
 
     /**
-     * @return binding the SoapBindingStub to gain access to SFDC service
+     * @return binding the SoapBindingStub to gain access to SFDC service.  The connection uses the
+     *         session shared by all clients, see SalesforceSessionManager.
      * @throws FailedBindingException
      * This was made protected for testing purposes.
      */
     protected PartnerConnection getConnection() throws ConnectionException {
-        int iAttempts = 0;
-        boolean bSuccess = false;
+        return getConnection(false);
+    }
 
-        if (needNewSession()) {
-            while (!bSuccess && iAttempts < SFDC_SERVICE_RETRY_COUNT ) {
-                try {
-                    login();
-                    bSuccess = true;
-                } catch (ConnectionException e) {
-                    logger.error("Failed to connect to SFDC service",e);
-                    iAttempts++;
-                    if (iAttempts < SFDC_SERVICE_RETRY_COUNT ) {
-                        int iRemainingAttempts = SFDC_SERVICE_RETRY_COUNT - iAttempts;
-                        logger.info("Will try " + iRemainingAttempts + " more time(s).");
-                        sleepUntilNextInterval();
-                    }
-                    if (! bSuccess && iAttempts >= SFDC_SERVICE_RETRY_COUNT ) {
-                        forceNewSession();
-                        throw new ConnectionException("Failed to connect to SFDC service after "+iAttempts+" tries. Aborting!", e);
-                    }
+    /**
+     * @param exclusive Whether the connection is taken out of the pool of this client for a single call,
+     *                  to be handed back with releaseConnection.  Concurrent calls each need their own one.
+     */
+    private PartnerConnection getConnection(boolean exclusive) throws ConnectionException {
+        SalesforceSessionManager.Session current;
+        try {
+            current = login(null);
+        } catch (ConnectionException e) {
+            logger.error("Failed to connect to SFDC service",e);
+            forceNewSession();
+            if (!(e instanceof ApiFault)) {
+                SalesforceSessionManager.getInstance().getCircuitBreaker().recordFailure(e);
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            if (this.conn == null || this.session != current) {
+                if (this.session != current) {
+                    // A new session means a login went through, Salesforce can be reached again
+                    resetBackoff();
                 }
+                this.conn = SalesforceSessionManager.getInstance().connect(current);
+                this.session = current;
+                this.idleConnections.clear();
+                this.idleConnections.push(this.conn);
             }
+            if (!exclusive) return this.conn;
+
+            PartnerConnection idle = this.idleConnections.poll();
+            return idle != null ? idle : SalesforceSessionManager.getInstance().connect(current);
         }
+    }
 
+    /**
+     * Hands a connection taken with getConnection(true) back to the pool of this client, unless its
+     * session has been replaced in the meantime.
+     */
+    private synchronized void releaseConnection(PartnerConnection c) {
+        if (this.session != null && this.session.getSessionId().equals(c.getConfig().getSessionId())) {
+            this.idleConnections.push(c);
+        }
+    }
 
-        return this.conn;
+    /**
+     * Logs in again after the session of the connection returned by getConnection was rejected
+     * with INVALID_SESSION_ID.  Only the first client to report a session logs in again.
+     *
+     * @return a connection using the new session
+     */
+    protected PartnerConnection renewConnection() throws ConnectionException {
+        login(this.session);
+        return getConnection(true);
     }
 
-    private void sleepUntilNextInterval() {
-        sleepInterval += (1000 * 60 * sleepIntervalStep++);
-        try {
-            Thread.sleep(sleepInterval);
-        } catch (InterruptedException e) {
-            logger.warn("Sleeper Thread interrupted.");
+    /**
+     * @param timer Timer that runs this client's polls, used to schedule retries after Salesforce could not be reached
+     */
+    public void setRetryTimer(Timer timer) {
+        this.retryTimer = timer;
+    }
+
+    /**
+     * @return the retry state of this mailbox, e.g. the number of failed attempts and when the next one is due
+     */
+    public RetryBackoff getRetryBackoff() {
+        return this.retryBackoff;
+    }
+
+    /**
+     * Backs off after Salesforce could not be reached.  Instead of sleeping on the poll thread, which also
+     * serves the other mailboxes of the service, the next attempt of this mailbox is scheduled on the retry
+     * timer and polls that come due before it are skipped.
+     */
+    private void scheduleRetry(ConnectionException ce) {
+        long delay = backOff(ce);
+
+        Timer timer = this.retryTimer;
+        if (timer != null) {
+            try {
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        if (! isShutdown()) ProcessingPools.getInstance().fetch(GenericClient.this);
+                    }
+                }, delay);
+            } catch (IllegalStateException ise) {
+                // The service has been stopped
+            }
         }
     }
 
+    /**
+     * Records a failure to reach Salesforce with the retry backoff of this mailbox.
+     *
+     * @return how long to wait before the next attempt
+     */
+    private long backOff(ConnectionException ce) {
+        this.salesforceFailed = true;
+        long delay = this.retryBackoff.failed(ce);
+        Metrics.record(METRIC_RETRY_ATTEMPTS + getMailboxName(), this.retryBackoff.getAttempts());
+        logger.warn(pRETRY_SCHEDULED + getMailboxName() + ": " + this.retryBackoff);
+        return delay;
+    }
+
+    /**
+     * Ends the backoff of this mailbox once Salesforce was reached, so that a later, unrelated failure
+     * starts again from the base delay.
+     */
+    private void resetBackoff() {
+        if (this.retryBackoff.getAttempts() > 0) {
+            this.retryBackoff.succeeded();
+            Metrics.record(METRIC_RETRY_ATTEMPTS + getMailboxName(), 0);
+        }
+    }
+
+    private String getMailboxName() {
+        return this.loginCredentials.getUserName() + "@" + this.loginCredentials.getServerName() + ":" + this.inboxName;
+    }
+
     /**
      * Handles password decryption for the specified server configuration
      */
@@ -266,85 +373,16 @@ public abstract class GenericClient {
 
 
     /**
-     * Connects to the Salesforce system as needed, maintaining a live connection until
-     * the specified timeout has elapsed. Kanishka made this protected.
+     * Connects to the Salesforce system as needed through the shared SalesforceSessionManager,
+     * which keeps the session alive until the specified timeout has elapsed. Kanishka made this protected.
+     * @param stale The session that was rejected, null to use the current session
+     * @return the current session
      * @throws ConnectionException
-     *
-     * @throws MalformedURLException
-     * @throws ServiceException
-     * @throws UnexpectedErrorFault
-     * @throws LoginFault
-     * @throws RemoteException
      */
-
-    protected void login() throws ConnectionException {
-
+    protected SalesforceSessionManager.Session login(SalesforceSessionManager.Session stale) throws ConnectionException {
+        SalesforceSessionManager manager = SalesforceSessionManager.getInstance();
         try {
-            ConnectorConfig config = new ConnectorConfig();
-
-            // retrieve the sfdc config info from sfdc config file.
-            // Note: these are different from loginCredentials, which are the mail server credentials, not sfdc.
-            String loginUrl = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pURL);
-            String userName = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pUSERNAME);
-            String password = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pPASSWORD);
-            String refresh = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pLOGIN_REFRESH);
-            String sTimeout = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pTIMEOUT);
-
-
-
-            config.setUsername(userName);
-            config.setPassword(password);
-            config.setAuthEndpoint(loginUrl);
-            config.setCompression(false);
-
-            if (refresh != null) {
-                loginRefresh = new Integer(refresh).intValue();
-            } else {
-                logger.info(pLOGIN_REFRESH);
-            }
-
-            if (sTimeout != null) {
-                try {
-                sfdcTimeout = new Integer(sTimeout).intValue();
-                } catch ( NumberFormatException nfe ) {
-                    logger.error("Invalid argument for timeout setting, defaulted to " + defaultTimeout + " minutes (" + sTimeout +")");
-                    SalesforceAgent.GLOBAL_CONFIG.put(ConfigParameters.pLOGIN, "timeout",String.valueOf(defaultTimeout));
-                    sfdcTimeout = defaultTimeout;
-                }
-            } else {
-                logger.info(pTIMEOUT);
-            }
-            config.setConnectionTimeout(this.sfdcTimeout);
-            //need to do a manual login to set the proper headers
-            config.setManualLogin(true);
-            this.conn = Connector.newConnection(config);
-            conn.setCallOptions("EmailAgent/" + SalesforceAgent.SALESFORCE_AGENT_VERSION, "");
-            conn.setAssignmentRuleHeader(null, true);
-            //Note: no email header needed for email2case client because the proper behavior is
-            //set by overriden methods in EmailToCaseObject
-
-            if(config.getSessionId() == null) {
-                config.setServiceEndpoint(config.getAuthEndpoint());
-                LoginResult loginresult = conn.login(config.getUsername(), config.getPassword());
-                config.setSessionId(loginresult.getSessionId());
-                config.setServiceEndpoint(loginresult.getServerUrl());
-            } else if(config.getServiceEndpoint() == null)
-                throw new ConnectionException("Please set ServiceEndpoint");
-
-            conn.setSessionHeader(config.getSessionId());
-
-            if (firstTime) {
-                logger.info(pLOGIN_URL + config.getAuthEndpoint());
-                logger.info(pAGENT_WILL_CONNECT_TO + config.getServiceEndpoint());
-            }
-
-            // Setup when the next login will be, to refresh the session
-            Calendar cal = Calendar.getInstance();
-            cal.add(Calendar.MINUTE, loginRefresh);
-            nextLogin = cal.getTimeInMillis();
-            sleepInterval = 0;
-            sleepIntervalStep = 1;
-            firstTime = false;
+            return stale == null ? manager.getSession() : manager.renewSession(stale);
         } catch (LoginFault lf) {
             logger.error(lf.getMessage());
             InvalidConfigurationException ice = new InvalidConfigurationException(ConfigurationExceptionCode.SFDC_AUTHENTICATION_ERROR);
@@ -352,6 +390,7 @@ public abstract class GenericClient {
             if (ice.isFatal()) {
                 System.exit(0); // Won't be able to do anything until this is fixed
             }
+            throw lf;
         }
     }
 
@@ -418,6 +457,106 @@ public abstract class GenericClient {
 
     public String getReadBoxName() { return this.readboxName; }
 
+    /**
+     * @param windowSize Number of messages loaded from the inbox at a time, 0 to load the whole inbox at once.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(0, windowSize);
+    }
+
+    public int getWindowSize() { return this.windowSize; }
+
+    /**
+     * @param windowMode Either InboxTraversal.MODE_SEQUENCE or InboxTraversal.MODE_UID
+     */
+    public void setWindowMode(String windowMode) {
+        if (windowMode == null) return;
+        windowMode = windowMode.trim();
+
+        if (windowMode.length() > 0) {
+            this.windowMode = windowMode;
+        }
+    }
+
+    public String getWindowMode() { return this.windowMode; }
+
+    /**
+     * @param minutes How long the mail server connection is kept open between polls, 0 to close it after every poll.
+     */
+    public void setConnectionIdleTimeout(int minutes) {
+        this.connectionIdleTimeout = Math.max(0, minutes) * 60L * 1000L;
+    }
+
+    /**
+     * @param directory Directory where the UID checkpoint of this mailbox is kept, null to disable checkpoints.
+     */
+    public void setCheckpointDirectory(String directory) {
+        this.checkpointDirectory = (directory == null || directory.trim().length() == 0) ? null : new File(directory.trim());
+        this.checkpoint = null;
+    }
+
+    /**
+     * @param deleteProcessed false to leave successfully processed messages in the inbox.  Only safe together
+     *                        with a checkpoint directory, which keeps them from being processed again.
+     */
+    public void setDeleteProcessed(boolean deleteProcessed) {
+        this.deleteProcessed = deleteProcessed;
+    }
+
+    public boolean isDeleteProcessed() { return this.deleteProcessed; }
+
+    /**
+     * @param directory Directory where messages are spooled between the mail server and Salesforce, null to
+     *                  submit them straight from the inbox.  Messages left in the spool by a previous run are
+     *                  submitted right away.
+     * @throws InvalidConfigurationException if the spool can not be opened
+     */
+    public void setSpoolDirectory(String directory) throws InvalidConfigurationException {
+        if (directory == null || directory.trim().length() == 0) return;
+
+        try {
+            this.spool = new MessageSpool(new File(directory.trim()), getMailboxFileName());
+        } catch (IOException ioe) {
+            throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_SPOOL_NOT_VALID, ioe);
+        }
+        Thread submitter = new Thread(new SpoolSubmitter(this, this.spool), "Spool submitter " + getMailboxName());
+        submitter.setDaemon(true);
+        submitter.start();
+    }
+
+    /**
+     * @param directory Directory where the fingerprints of the messages submitted from this mailbox are kept,
+     *                  null to submit messages without checking whether they were submitted before.
+     * @throws InvalidConfigurationException if the index can not be opened
+     */
+    public void setFingerprintDirectory(String directory) throws InvalidConfigurationException {
+        if (directory == null || directory.trim().length() == 0) return;
+
+        try {
+            this.fingerprints = new MessageFingerprintIndex(new File(directory.trim()), getMailboxFileName());
+        } catch (IOException ioe) {
+            throw new InvalidConfigurationException(ConfigurationExceptionCode.MAIL_FINGERPRINT_NOT_VALID, ioe);
+        }
+        logger.info(this.fingerprints.size() + " submitted message fingerprint(s) loaded from " + this.fingerprints);
+    }
+
+    /**
+     * @return the name under which files kept for this mailbox are stored, e.g. its checkpoint
+     */
+    private String getMailboxFileName() {
+        return getProtocol() + "_" + this.loginCredentials.getUserName() + "@" + this.loginCredentials.getServerName() + "_" + this.inboxName;
+    }
+
+    /**
+     * @return the UID checkpoint of the inbox, loading it on first use, or null if checkpoints are not configured.
+     */
+    protected synchronized UidCheckpoint getCheckpoint() throws IOException {
+        if (this.checkpoint == null && this.checkpointDirectory != null) {
+            this.checkpoint = new UidCheckpoint(this.checkpointDirectory, getMailboxFileName());
+        }
+        return this.checkpoint;
+    }
+
     /**
      * Retrieves mail messages from a single mail account, batches these
      * messages and attempts to create cases for these messages in supportForce.
@@ -425,6 +564,48 @@ public abstract class GenericClient {
      * error folder for IMAP mail systems.
      */
     public void receive() {
+        if (this.spool != null) {
+            // Mail is taken off the server whatever state Salesforce is in, the spool submitter waits for it instead
+            this.checkpointCeiling = Long.MAX_VALUE;
+            receiveMessages();
+            return;
+        }
+
+        if (this.retryBackoff.isWaiting()) {
+            logger.debug(pRETRY_PENDING + getMailboxName() + ": " + this.retryBackoff);
+            return;
+        }
+
+        SalesforceSessionManager manager = SalesforceSessionManager.getInstance();
+        if (manager.getApiUsage().isPaused()) {
+            logger.debug(pAPI_PAUSED + getMailboxName() + ": " + manager.getApiUsage());
+            return;
+        }
+
+        // While Salesforce is down there is no point in fetching and parsing mail
+        CircuitBreaker breaker = manager.getCircuitBreaker();
+        CircuitBreaker.State permit = breaker.allowRequest();
+        if (permit == null) {
+            logger.debug(pBREAKER_OPEN + getMailboxName() + ": " + breaker);
+            return;
+        }
+
+        this.probing = permit == CircuitBreaker.State.HALF_OPEN;
+        this.checkpointCeiling = Long.MAX_VALUE;
+        this.salesforceFailed = false;
+        try {
+            receiveMessages();
+        } finally {
+            if (this.probing) {
+                breaker.releaseProbe();
+                this.probing = false;
+            }
+        }
+        // A poll that did not fail on Salesforce, even one that found nothing to send, ends the backoff
+        if (!this.salesforceFailed) resetBackoff();
+    }
+
+    private void receiveMessages() {
         synchronized(this){
             if(! isOkToContinue()){
                 return;
@@ -457,20 +638,38 @@ public abstract class GenericClient {
                     readbox = configureReadBox(folder);
                     errorbox = configureErrorBox(folder);
 
+                    UidCheckpoint uidCheckpoint = getCheckpoint();
+                    if (uidCheckpoint != null && !(inbox instanceof UIDFolder)) {
+                        logger.warn(pCHECKPOINT_NOT_SUPPORTED + inbox.getFullName());
+                        uidCheckpoint = null;
+                    }
+
                     // -- Get the message wrappers and process them --
-                    Message[] msgs = retrieveMessages(inbox, readbox, errorbox, session);
-                    int originalIndex = 0;
-                    int totalSize = msgs.length;
-                    logger.info(pPROCESSING + totalSize + pMESSAGES);
-
-                    // Batch up the messages into groups of 5 to be processed
-                    while (totalSize > originalIndex) {
-                        int batchSize = Math.min(totalSize - originalIndex, 5);
-                        Message[] batchedMsgs = new Message[batchSize];
-                        System.arraycopy(msgs, originalIndex, batchedMsgs, 0, batchSize);
-                        originalIndex += batchSize;
-                        if(! isShutdown()) {
-                            handleMessage(batchedMsgs, inbox, readbox, errorbox, session);
+                    if (uidCheckpoint != null) {
+                        // Only the UIDs above the checkpoint are fetched, in a single window unless a window size is set
+                        InboxTraversal traversal = new InboxTraversal(inbox, InboxTraversal.MODE_UID,
+                            this.windowSize > 0 ? this.windowSize : Integer.MAX_VALUE);
+                        traversal.startAfter(uidCheckpoint.getUidValidity(), uidCheckpoint.getLastUid());
+                        Message[] window = traversal.nextWindow();
+                        while (window != null && ! isShutdown()) {
+                            prefetchMessages(inbox, window);
+                            processMessages(window, inbox, readbox, errorbox, session);
+                            traversal.release(window);
+                            window = traversal.nextWindow();
+                        }
+                    } else if (this.windowSize > 0) {
+                        InboxTraversal traversal = new InboxTraversal(inbox, this.windowMode, this.windowSize);
+                        Message[] window = traversal.nextWindow();
+                        while (window != null && ! isShutdown()) {
+                            prefetchMessages(inbox, window);
+                            processMessages(window, inbox, readbox, errorbox, session);
+                            traversal.release(window);
+                            window = traversal.nextWindow();
+                        }
+                    } else {
+                        Message[] msgs = retrieveMessages(inbox, readbox, errorbox, session);
+                        if (msgs != null) {
+                            processMessages(msgs, inbox, readbox, errorbox, session);
                         }
                     }
                 }
@@ -480,6 +679,8 @@ public abstract class GenericClient {
                 handleConfigurationException(ice);
             } catch (MessagingException me) {
                 handleMessagingError(me, inbox, readbox, errorbox, session, false);
+            } catch (ConnectionException ce) {
+                scheduleRetry(ce);
             } catch (Exception ex) {
                 SalesforceAgent.processNotification(Notification.UNKNOWN_ERROR, ex.getMessage(), Notification.SEVERITY_ERROR);
                 logger.error(ex,ex);
@@ -488,7 +689,7 @@ public abstract class GenericClient {
                     if (inbox != null && inbox.isOpen()) inbox.close(true);
                     if (readbox != null && readbox.isOpen()) readbox.close(false);
                     if (errorbox != null && errorbox.isOpen()) errorbox.close(false);
-                    if (store != null) store.close();
+                    if (store != null) releaseStore(store);
                 } catch (Exception ex2) {
                     logger.error(ex2, ex2);
                     ex2.printStackTrace();
@@ -503,25 +704,503 @@ public abstract class GenericClient {
     }
 
     /**
-     * a connection to the mail server is made on every poll instance utilizing the credentials fetched when the server is booted.
+     * Parses the messages and packs them into batches, see BatchBuilder.  Each full batch goes through a
+     * BatchPipeline, which submits it to Salesforce and commits it while the next batch is being parsed.
+     */
+    private void processMessages(Message[] msgs, final Folder inbox, final Folder readbox, final Folder errorbox,
+        final Session session) throws Exception {
+
+        if (this.spool != null) {
+            spoolMessages(msgs, inbox, readbox, errorbox);
+            return;
+        }
+
+        logger.info(pPROCESSING + msgs.length + pMESSAGES);
+
+        int first = 0;
+        if (this.probing) {
+            // Salesforce is being probed after an outage: submit a single message before anything else
+            MessageBatch probe = new MessageBatch();
+            while (probe.size() == 0 && first < msgs.length) {
+                addToBatch(probe, msgs[first++]);
+            }
+            handleBatch(probe, inbox, readbox, errorbox, session);
+            if (! SalesforceSessionManager.getInstance().getCircuitBreaker().isClosed()) return;
+            this.probing = false;
+        }
+
+        BatchBuilder builder = BatchBuilder.fromConfig();
+        BatchPipeline pipeline = new BatchPipeline(getPipelineDepth(), ProcessingPools.getInstance().getSubmitter(),
+            getCommitter(), new BatchPipeline.Stages() {
+                @Override
+                public void submit(MessageBatch batch) {
+                    submitBatch(batch);
+                }
+
+                @Override
+                public void commit(MessageBatch batch) throws Exception {
+                    commitBatch(batch, inbox, readbox, errorbox, session);
+                }
+
+                @Override
+                public void abandon(MessageBatch batch) {
+                    abandonBatch(batch, inbox);
+                }
+            });
+
+        ParallelParser parser = newParser(msgs, first, msgs.length);
+        try {
+            while (parser.hasNext() && ! isShutdown()) {
+                MessageBatch batch = addToBatch(builder, parser.next());
+                if (batch != null) {
+                    pipeline.put(batch);
+                }
+            }
+
+            MessageBatch batch = builder.flush();
+            if (batch != null && ! isShutdown()) {
+                pipeline.put(batch);
+            }
+        } finally {
+            parser.close();
+            pipeline.finish();
+        }
+    }
+
+    /**
+     * @return the commit thread shared by the pipelines of every poll of this mailbox
+     */
+    private synchronized ExecutorService getCommitter() {
+        if (this.committer == null) {
+            this.committer = BatchPipeline.newCommitter(this.loginCredentials.getUserName() + "@" + this.loginCredentials.getServerName());
+        }
+        return this.committer;
+    }
+
+    /**
+     * Writes the messages to the spool and, once they are safely on disk, routes them out of the inbox
+     * as if they had been processed.  The spool submitter sends them on to Salesforce.
+     */
+    private void spoolMessages(Message[] msgs, Folder inbox, Folder readbox, Folder errorbox) throws Exception {
+        logger.info(pSPOOLING + msgs.length + pMESSAGES);
+
+        long checkpointUid = getCheckpoint() == null ? -1 : highestUid(inbox, msgs);
+        ArrayList<Message> spooled = new ArrayList<Message>();
+        ArrayList<Message> errorMsgs = new ArrayList<Message>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        for (int i = 0; i < msgs.length; i++) {
+            buffer.reset();
+            try {
+                msgs[i].writeTo(buffer);
+            } catch (FolderClosedException fce) {
+                throw fce;
+            } catch (IOException | MessagingException e) {
+                logger.error(e, e);
+                errorMsgs.add(msgs[i]);
+                continue;
+            }
+            this.spool.append(buffer.toByteArray());
+            spooled.add(msgs[i]);
+        }
+        // A single fsync for the whole window, before any of it is taken off the mail server
+        this.spool.sync();
+
+        routeMessages(inbox, spooled.toArray(new Message[spooled.size()]), readbox, this.deleteProcessed);
+        routeMessages(inbox, errorMsgs.toArray(new Message[errorMsgs.size()]), errorbox, true);
+        advanceCheckpoint(inbox, checkpointUid);
+    }
+
+    /**
+     * Submits the messages waiting in the spool to Salesforce, one batch after the other, for as long
+     * as Salesforce can be reached.  Runs on the spool submitter thread of this mailbox.
+     *
+     * @return how long to wait before trying again, 0 once the spool is empty
+     */
+    long drainSpool(MessageSpool messageSpool) throws Exception {
+        SalesforceSessionManager manager = SalesforceSessionManager.getInstance();
+        CircuitBreaker breaker = manager.getCircuitBreaker();
+        Session session = Session.getDefaultInstance(System.getProperties(), null);
+
+        while (! isShutdown() && messageSpool.getPendingCount() > 0) {
+            long now = System.currentTimeMillis();
+            if (this.retryBackoff.isWaiting()) return Math.max(1, this.retryBackoff.getNextAttempt() - now);
+            if (manager.getApiUsage().isPaused()) return Math.max(1, manager.getApiUsage().getPausedUntil() - now);
+
+            CircuitBreaker.State permit = breaker.allowRequest();
+            if (permit == null) return SPOOL_RECHECK;
+
+            int handled;
+            MessageBatch batch = null;
+            try {
+                // Salesforce is being probed after an outage: submit a single message
+                batch = readSpooledBatch(messageSpool, session, permit == CircuitBreaker.State.HALF_OPEN);
+                submitBatch(batch);
+                handled = commitSpooledBatch(messageSpool, batch);
+            } catch (InvalidConfigurationException ice) {
+                handleConfigurationException(ice);
+                return SpoolSubmitter.IDLE_WAIT;
+            } finally {
+                if (batch != null) batch.release();
+                if (permit == CircuitBreaker.State.HALF_OPEN) breaker.releaseProbe();
+            }
+            if (handled == 0) return SPOOL_RECHECK;
+        }
+        messageSpool.compact();
+        return 0;
+    }
+
+    /**
+     * Reads the oldest spooled messages back into a batch
+     *
+     * @param single Whether the batch is limited to a single message
+     */
+    private MessageBatch readSpooledBatch(MessageSpool messageSpool, Session session, boolean single)
+        throws IOException, InterruptedException {
+        BatchBuilder builder = single ? new BatchBuilder(1, Long.MAX_VALUE) : BatchBuilder.fromConfig();
+        long[] ids = messageSpool.getPending(builder.getMaxCount());
+
+        ArrayList<Message> msgs = new ArrayList<Message>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            byte[] content = messageSpool.read(ids[i]);
+            if (content == null) continue;
+
+            try {
+                msgs.add(new SpooledMessage(session, content, ids[i]));
+            } catch (MessagingException me) {
+                logger.error(pSPOOL_UNREADABLE + messageSpool.reject(ids[i]), me);
+            }
+        }
+
+        ParallelParser parser = newParser(msgs.toArray(new Message[msgs.size()]), 0, msgs.size());
+        try {
+            MessageBatch batch = null;
+            while (batch == null && parser.hasNext()) {
+                batch = addToBatch(builder, parser.next());
+            }
+            if (batch == null) batch = builder.flush();
+            return batch == null ? new MessageBatch() : batch;
+        } finally {
+            parser.close();
+            // Messages left over once the byte limit closed the batch stay in the spool for the next one
+            MessageBatch rest = builder.flush();
+            if (rest != null) rest.release();
+        }
+    }
+
+    /**
+     * Acknowledges the spooled messages of a submitted batch that Salesforce has handled, and moves those
+     * it did not accept to the error directory of the spool.  Messages without an outcome stay in the spool
+     * for the next attempt.
+     *
+     * @return the number of messages taken out of the spool
+     */
+    private int commitSpooledBatch(MessageSpool messageSpool, MessageBatch batch) throws Exception {
+        Message[] messages = batch.getMessages();
+        ArrayList<Message> errorMsgs = new ArrayList<Message>(batch.getUnparsableMessages());
+        errorMsgs.addAll(batch.getInDoubtMessages());
+        ArrayList<Message> waitingMsgs = new ArrayList<Message>();
+        Exception pending = null;
+        int handled = 0;
+        int isolated = 0;
+
+        try {
+            SaveResult[] results = batch.getResults();
+
+            for (int i = 0; i < results.length; i++) {
+                SaveResult r = results[i];
+
+                Throwable recordFailure = batch.getRecordFailure(i);
+                if (recordFailure != null) {
+                    logger.error(Calendar.getInstance().getTime().toString() + ":" + pERROR + ":" + i + ": " + recordFailure.getMessage(), recordFailure);
+                    errorMsgs.add(messages[i]);
+                    isolated++;
+                    continue;
+                }
+                if (r == null) {
+                    waitingMsgs.add(messages[i]);
+                    continue;
+                }
+
+                postProcessParsedMessage(batch.getParsedMessage(i), r.isSuccess(), r.getId());
+
+                if (r.isSuccess()) {
+                    logger.info(Calendar.getInstance().getTime().toString() + ":" + pSUCCESS +":" + i + " ID=" + r.getId() + " "+ pSUCCESS +"=" + r.isSuccess());
+                    rememberSubmission(batch.getParsedMessage(i), r.getId());
+                    messageSpool.ack(((SpooledMessage) messages[i]).getSpoolId());
+                    handled++;
+                } else {
+                    Error error = r.getErrors().length == 0 ? null : r.getErrors()[0];
+                    String sMessage = (error == null || error.getMessage() == null) ? "" : error.getMessage();
+                    handleAPIError(Calendar.getInstance().getTime().toString() + ":"+ pERROR +":" + i + ": " + sMessage, error, false, false);
+                    errorMsgs.add(messages[i]);
+                }
+            }
+            pending = batch.getPendingFailure();
+        } catch (ConnectionException ce) {
+            waitingMsgs.addAll(Arrays.asList(messages));
+            pending = ce;
+        }
+
+        ExceptionCode code = pending instanceof ApiFault ? ((ApiFault) pending).getExceptionCode() : null;
+        boolean rejectWaiting = code != null
+            && code != ExceptionCode.REQUEST_LIMIT_EXCEEDED
+            && code != ExceptionCode.EMAIL_TO_CASE_NOT_ENABLED
+            && code != ExceptionCode.EMAIL_TO_CASE_INVALID_ROUTING
+            && code != ExceptionCode.INVALID_OPERATION_WITH_EXPIRED_PASSWORD;
+        if (rejectWaiting) errorMsgs.addAll(waitingMsgs);
+
+        for (Message msg : errorMsgs) {
+            logger.info(pSPOOL_REJECTED + messageSpool.reject(((SpooledMessage) msg).getSpoolId()));
+            handled++;
+        }
+        for (Message msg : batch.getDuplicateMessages()) {
+            messageSpool.ack(((SpooledMessage) msg).getSpoolId());
+            handled++;
+        }
+        rememberInDoubt(batch, pending);
+        syncFingerprints();
+        messageSpool.sync();
+
+        if (isolated > 0) {
+            String sMessage = BAD_MSGS_FOUND.replaceAll("X", String.valueOf(isolated));
+            SalesforceAgent.processNotification(Notification.UNKNOWN_ERROR, sMessage, Notification.SEVERITY_ERROR);
+        }
+        notifyInDoubt(batch);
+
+        if (code == ExceptionCode.REQUEST_LIMIT_EXCEEDED) {
+            SalesforceSessionManager.getInstance().getApiUsage().pause();
+            logger.warn(pAPI_LIMIT_EXCEEDED + waitingMsgs.size() + pMESSAGES);
+        } else if (code == ExceptionCode.EMAIL_TO_CASE_NOT_ENABLED) {
+            logger.error(EMAIL_TO_CASE_NOT_ENABLED);
+            logger.info("Shutting down service next cycle...");
+            shutdown(SHUTDOWN_EMAIL_TO_CASE_NOT_ENABLED);
+        } else if (code == ExceptionCode.EMAIL_TO_CASE_INVALID_ROUTING) {
+            logger.error(EMAIL_TO_CASE_ROUTING_INCORRECT);
+            throw new InvalidConfigurationException(ConfigurationExceptionCode.SFDC_ROUTING_ADDRESS_ERROR, pending);
+        } else if (code == ExceptionCode.INVALID_OPERATION_WITH_EXPIRED_PASSWORD) {
+            logger.error(pPASSWORD_EXPIRED);
+            throw new InvalidConfigurationException(ConfigurationExceptionCode.SFDC_AUTHENTICATION_ERROR);
+        } else if (code != null) {
+            handleAPIError(pending, true, true);
+        } else if (pending instanceof ConnectionException) {
+            // Timeouts included: the messages are safe in the spool, try again after backing off
+            backOff((ConnectionException) pending);
+        } else if (pending != null) {
+            throw pending;
+        }
+        return handled;
+    }
+
+    /**
+     * @return the pipelineDepth setting of the sfdcLogin section
+     */
+    private static int getPipelineDepth() {
+        String sDepth = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pPIPELINE_DEPTH);
+        if (sDepth == null) return BatchPipeline.defaultDepth;
+
+        try {
+            int depth = Integer.parseInt(sDepth.trim());
+            if (depth < 1) throw new NumberFormatException();
+            return depth;
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid argument for pipelineDepth setting, defaulted to " + BatchPipeline.defaultDepth + " (" + sDepth + ")");
+            return BatchPipeline.defaultDepth;
+        }
+    }
+
+    /**
+     * Converts a JavaMail Message to a ParsedMessage, unless it was submitted before.  Runs on the
+     * parser pool for the messages of a poll, so it must only touch thread safe state.
+     */
+    private void parse(ParallelParser.Result result) throws Exception {
+        result.fingerprint = getFingerprint(result.message);
+        String id = findSubmission(result.message, result.fingerprint);
+        if (id != null) {
+            result.duplicate = true;
+            result.inDoubt = MessageFingerprintIndex.IN_DOUBT.equals(id);
+            return;
+        }
+        result.parsed = new ParsedMessage(result.message);
+        result.parsed.setFingerprint(result.fingerprint);
+        result.record = result.parsed.getEmailMessage();
+    }
+
+    /**
+     * @return a parser of msgs[from, to) on the shared parser pool
+     */
+    private ParallelParser newParser(Message[] msgs, int from, int to) {
+        return new ParallelParser(msgs, from, to) {
+            @Override
+            protected void parse(ParallelParser.Result result) throws Exception {
+                GenericClient.this.parse(result);
+            }
+        };
+    }
+
+    private ParallelParser.Result parse(Message msg) {
+        ParallelParser.Result result = new ParallelParser.Result(msg);
+        try {
+            parse(result);
+        } catch (Exception e) {
+            result.failure = e;
+        }
+        return result;
+    }
+
+    /**
+     * Converts a JavaMail Message to a ParsedMessage and adds it to the batch in progress.  A message that
+     * can not be parsed is logged and will be copied to the error folder with the batch.
+     *
+     * @return the batch that was closed to make room for the message, or null
+     */
+    private MessageBatch addToBatch(BatchBuilder builder, Message msg) {
+        return addToBatch(builder, parse(msg));
+    }
+
+    /**
+     * Same as addToBatch(BatchBuilder, Message), for a message that has been parsed already
+     */
+    private MessageBatch addToBatch(BatchBuilder builder, ParallelParser.Result result) {
+        if (result.failure != null) {
+            logger.error(result.failure, result.failure);
+            builder.addUnparsable(result.message);
+            return null;
+        }
+        if (result.inDoubt) {
+            builder.addInDoubt(result.message);
+            return null;
+        }
+        if (result.duplicate) {
+            builder.addDuplicate(result.message);
+            return null;
+        }
+        return builder.add(result.message, result.parsed, result.record);
+    }
+
+    /**
+     * Same as addToBatch(BatchBuilder, Message), adding the message to the given batch whatever its size.
+     */
+    private void addToBatch(MessageBatch batch, Message msg) {
+        ParallelParser.Result result = parse(msg);
+        if (result.failure != null) {
+            logger.error(result.failure, result.failure);
+            batch.addUnparsable(msg);
+        } else if (result.inDoubt) {
+            batch.addInDoubt(msg);
+        } else if (result.duplicate) {
+            batch.addDuplicate(msg);
+        } else {
+            batch.add(msg, result.parsed, result.record, result.parsed.getEstimatedSize());
+        }
+    }
+
+    /**
+     * @return the fingerprint of the message, or null if no fingerprint index is configured
+     */
+    private byte[] getFingerprint(Message msg) throws MessagingException {
+        if (this.fingerprints == null) return null;
+
+        try {
+            return MessageFingerprintIndex.fingerprint(msg);
+        } catch (IOException ioe) {
+            logger.warn(pFINGERPRINT_FAILED + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the id of the record created for a message with the same fingerprint, IN_DOUBT if it may have
+     *         been created by a call that timed out, or null if the message has not been submitted before
+     */
+    private String findSubmission(Message msg, byte[] fingerprint) throws MessagingException {
+        if (fingerprint == null) return null;
+
+        String id;
+        try {
+            id = this.fingerprints.lookup(fingerprint);
+        } catch (IOException ioe) {
+            logger.warn(pFINGERPRINT_FAILED + ioe.getMessage());
+            return null;
+        }
+        if (id == null) return null;
+
+        String[] messageId = msg.getHeader("Message-ID");
+        String name = messageId == null ? msg.getSubject() : messageId[0];
+        if (MessageFingerprintIndex.IN_DOUBT.equals(id)) {
+            logger.warn(pIN_DOUBT + name);
+        } else {
+            logger.info(pDUPLICATE + id + ", not submitting it again: " + name);
+        }
+        Metrics.increment(METRIC_DUPLICATES);
+        return id;
+    }
+
+    /**
+     * Asks the administrator to check the messages that may have been submitted by a call that timed out.
+     * They are moved to the error folder, or the error directory of the spool, rather than submitted again.
+     */
+    private void notifyInDoubt(MessageBatch batch) {
+        if (batch.getInDoubtMessages().isEmpty()) return;
+
+        String sMessage = IN_DOUBT_MSGS_FOUND.replaceAll("X", String.valueOf(batch.getInDoubtMessages().size()));
+        logger.warn(sMessage);
+        SalesforceAgent.processNotification(Notification.SFDC_IN_DOUBT, sMessage, Notification.SEVERITY_WARNING);
+    }
+
+    /**
+     * Records the id Salesforce returned for a message, so that it is not submitted again
+     */
+    private void rememberSubmission(ParsedMessage parsed, String id) {
+        if (this.fingerprints == null || parsed.getFingerprint() == null) return;
+
+        try {
+            this.fingerprints.put(parsed.getFingerprint(), id);
+        } catch (IOException ioe) {
+            logger.error(pFINGERPRINT_FAILED + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * After a call timed out Salesforce may have created records for the batch without the agent
+     * learning about it.  Its messages without an outcome are recorded as in doubt and are not
+     * submitted again.
+     */
+    private void rememberInDoubt(MessageBatch batch, Throwable t) {
+        if (!(t instanceof ConnectionException) || !(t.getCause() instanceof SocketTimeoutException)) return;
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (!batch.hasOutcome(i)) rememberSubmission(batch.getParsedMessage(i), MessageFingerprintIndex.IN_DOUBT);
+        }
+    }
+
+    /**
+     * Makes the fingerprints recorded so far durable, before the messages are taken out of the inbox or spool
+     */
+    private void syncFingerprints() {
+        if (this.fingerprints == null) return;
+
+        try {
+            this.fingerprints.sync();
+        } catch (IOException ioe) {
+            logger.error(pFINGERPRINT_FAILED + ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * A connected store is borrowed from the MailStorePool on every poll instance utilizing the credentials
+     * fetched when the server is booted.  The pool only connects when it has no live connection for them.
+     * Stores returned by this method must be handed back with releaseStore.
      * @param session
      * @return Message Store holding Inbox, Processed Folder an Error Folder.
      */
-    private Store connectToMailServer(Session session) {
+    protected Store connectToMailServer(Session session) {
 
         Store store;
 
         try {
-            // -- Get hold of a message store, and connect to it --
-            store = session.getStore(getProtocol());
-            int port = this.loginCredentials.getPort();
-            if (port > 0) {
-                store.connect(this.loginCredentials.getServerName(), port, this.loginCredentials.getUserName(),
-                        this.loginCredentials.getPassword());
-            } else {
-                store.connect(this.loginCredentials.getServerName(), this.loginCredentials.getUserName(),
-                        this.loginCredentials.getPassword());
-            }
+            // -- Get hold of a connected message store --
+            store = MailStorePool.getInstance().acquire(getProtocol(), this.loginCredentials, this.connectionIdleTimeout);
         } catch (AuthenticationFailedException afe) {
             store = null;
             StringBuffer sbMessage = new StringBuffer("Service: " + this.loginCredentials.getServerName() + "\n");
@@ -542,6 +1221,15 @@ public abstract class GenericClient {
         return store;
     }
 
+    /**
+     * Hands a store obtained from connectToMailServer back to the pool, which keeps it
+     * connected until it has been idle for longer than the connection idle timeout.
+     * @param store
+     */
+    protected void releaseStore(Store store) {
+        MailStorePool.getInstance().release(store);
+    }
+
     /**
      * Retrieve Messages from the inbox.
      *   First try to retrieve all of them at once, if that fails.
@@ -556,7 +1244,9 @@ public abstract class GenericClient {
     private Message[] retrieveMessages(Folder inbox, Folder readbox, Folder errorbox, Session session) {
 
         try {
-            return inbox.getMessages();
+            Message[] msgs = inbox.getMessages();
+            prefetchMessages(inbox, msgs);
+            return msgs;
         } catch (MessagingException me) {
             logger.error(me,me);
             try {
@@ -581,7 +1271,9 @@ public abstract class GenericClient {
                     String warningText = BAD_MSGS_FOUND.replaceAll("X",String.valueOf(errorMsgs.size()));
                     logger.info(warningText);
                 }
-                return msgs.toArray(new Message[msgs.size()]);
+                Message[] goodMsgs = msgs.toArray(new Message[msgs.size()]);
+                prefetchMessages(inbox, goodMsgs);
+                return goodMsgs;
             }  catch (MessagingException me2) {
                 //if inbox.getMessageCount() fails
                 handleMessagingError(me2, inbox, readbox, errorbox, session, false);
@@ -590,6 +1282,37 @@ public abstract class GenericClient {
         }
     }
 
+    /**
+     * Loads the envelope, all headers, flags, RFC822.SIZE and BODYSTRUCTURE of the given
+     * messages with a single FETCH, so that ParsedMessage reads the From, Subject, headers
+     * and part structure from the message cache instead of making one round trip per item.
+     * A failed prefetch is not fatal; the messages are then loaded lazily as before.
+     *
+     * @param inbox
+     * @param msgs
+     */
+    protected void prefetchMessages(Folder inbox, Message[] msgs) {
+        if (msgs == null || msgs.length == 0) return;
+
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(FetchProfile.Item.SIZE);
+        profile.add(FetchProfile.Item.CONTENT_INFO);
+        if (inbox instanceof UIDFolder) {
+            profile.add(UIDFolder.FetchProfileItem.UID);
+        }
+        if (inbox instanceof IMAPFolder) {
+            profile.add(IMAPFolder.FetchProfileItem.HEADERS);
+        }
+
+        try {
+            inbox.fetch(msgs, profile);
+        } catch (MessagingException me) {
+            logger.warn(pPREFETCH_FAILED, me);
+        }
+    }
+
     protected abstract Folder configureInBox(Folder root) throws InvalidConfigurationException, MessagingException;
     protected abstract Folder configureReadBox(Folder root) throws InvalidConfigurationException, MessagingException;
     protected abstract Folder configureErrorBox(Folder root) throws InvalidConfigurationException, MessagingException;
@@ -610,68 +1333,221 @@ public abstract class GenericClient {
     }
 
     /**
-     * Main routine to load emails into salesforce
+     * Parses the messages and loads them into salesforce as a single batch
      *
      * @param msgs
      * @param inbox
      * @param readbox
      * @param errorbox
      * @param session
+     * @return the ids of the records created
+     * @throws Exception
+     */
+    public String[] handleMessage(Message[] msgs, Folder inbox, Folder readbox, Folder errorbox, Session session)
+        throws Exception {
+
+        if (msgs.length == 0) return null;
+
+        BatchBuilder builder = new BatchBuilder(msgs.length, Long.MAX_VALUE);
+        ParallelParser parser = newParser(msgs, 0, msgs.length);
+        try {
+            while (parser.hasNext()) {
+                addToBatch(builder, parser.next());
+            }
+        } finally {
+            parser.close();
+        }
+        return handleBatch(builder.flush(), inbox, readbox, errorbox, session);
+    }
+
+    /**
+     * Main routine to load emails into salesforce
+     *
+     * @param batch
+     * @param inbox
+     * @param readbox
+     * @param errorbox
+     * @param session
+     * @return the ids of the records created
      * @throws MessagingException
      * @throws IOException
      * @throws FailedBindingException
      * @throws InvalidConfigurationException
      */
-    public String[] handleMessage(Message[] msgs, Folder inbox, Folder readbox, Folder errorbox, Session session)
+    public String[] handleBatch(MessageBatch batch, Folder inbox, Folder readbox, Folder errorbox, Session session)
         throws Exception {
 
-        if (msgs.length == 0) return null;
+        submitBatch(batch);
+        return commitBatch(batch, inbox, readbox, errorbox, session);
+    }
 
-        HandledEmailMessage[] records = new HandledEmailMessage[msgs.length];
-        ParsedMessage[] parsedMsgs = new ParsedMessage[msgs.length];
-        Message[] messages;
-        ArrayList<Message> successMsgs = new ArrayList<Message>();
-        ArrayList<Message> errorMsgs = new ArrayList<Message>();
-        ArrayList<HandledEmailMessage> recordList = new ArrayList<HandledEmailMessage>();
-        ArrayList<Message> goodMsgs = new ArrayList<Message>();
-        ArrayList<String> messageIds = new ArrayList<String>();
+    /**
+     * SOAP API call to handle loading a batch of email messages into cases.  The results, or the
+     * failure of the call, are kept on the batch for commitBatch.
+     *
+     * @param batch
+     */
+    protected void submitBatch(MessageBatch batch) {
+        HandledEmailMessage[] records = batch.getRecords();
+        if (records.length > 0 && SalesforceSessionManager.getInstance().getApiUsage().isPaused()) {
+            // Without outcomes the messages stay in the inbox until the pause is over
+            return;
+        }
+        try {
+            batch.setResults(records.length == 0 ? new SaveResult[0] : callHandleEmailMessage(records));
+        } catch (Throwable t) {
+            if (isRecordFailure(t) && records.length > 1) {
+                //This could be simply a problem with a single message. Split the batch to find the culprits
+                logger.warn(pBISECTING + records.length + pMESSAGES + ": " + t.getMessage());
+                bisect(batch, records, 0, records.length, t);
+            } else if (isRecordFailure(t)) {
+                batch.setRecordFailure(0, t);
+            } else {
+                batch.setFailure(t);
+            }
+        }
+    }
 
-        /*
-         * Convert the JavaMail Messages to ParsedMessages and intercept any errors
-         */
-        for (int i = 0; i < msgs.length; i++) {
+    /**
+     * One handleEmailMessage call for the given records
+     * This was made protected for testing purposes.
+     */
+    protected SaveResult[] callHandleEmailMessage(HandledEmailMessage[] records) throws ConnectionException, InterruptedException {
+        SalesforceSessionManager manager = SalesforceSessionManager.getInstance();
+        // Batches of this client are submitted concurrently, each call gets a connection of its own
+        PartnerConnection conn = getConnection(true);
+        SaveResult[] results;
+        try {
             try {
-                ParsedMessage msg = new ParsedMessage(msgs[i]);
-                parsedMsgs[i] = msg;
-                HandledEmailMessage rec = msg.getEmailMessage();
-                recordList.add(rec);
-                goodMsgs.add(msgs[i]);
-            } catch (Exception me) {
-                // If for some reason the message couldn't be parsed, copy it to the error folder and dump
-                // a stack trace
-                msgs[i].setFlag(Flags.Flag.DELETED, true);
-                errorMsgs.add(msgs[i]);
-                logger.error(me,me);
+                results = manager.handleEmailMessage(conn, records);
+            } catch (ApiFault af) {
+                if (af.getExceptionCode() == ExceptionCode.REQUEST_LIMIT_EXCEEDED) manager.getApiUsage().pause();
+                if (af.getExceptionCode() != ExceptionCode.INVALID_SESSION_ID) throw af;
+                // The shared session expired or was revoked, log in again once and retry
+                conn = renewConnection();
+                results = manager.handleEmailMessage(conn, records);
+            }
+        } catch (ConnectionException ce) {
+            // Faults are answers from Salesforce, only failures to get an answer count against the breaker
+            if (!(ce instanceof SoapFaultException)) {
+                manager.getCircuitBreaker().recordFailure(ce);
+            }
+            throw ce;
+        } finally {
+            releaseConnection(conn);
+        }
+        manager.getCircuitBreaker().recordSuccess();
+        resetBackoff();
+        return results;
+    }
+
+    /**
+     * @return true for failures that may be caused by the content of a record rather than by
+     *         the connection to, or the state of, the Salesforce service
+     */
+    private static boolean isRecordFailure(Throwable t) {
+        return t instanceof Exception && !(t instanceof ConnectionException) && !(t instanceof InterruptedException);
+    }
+
+    /**
+     * Isolates the records in [from, to), which failed together with <code>cause</code>, that
+     * handleEmailMessage can not process.  The range is split in halves; a half that goes through
+     * keeps its results and a half that fails is split again, so k bad records out of n cost about
+     * 2k log2(n) extra calls.  When the first half goes through, the second half is known to fail and
+     * is split without being sent as a whole.  A failure that is not caused by the records stops the
+     * bisection; the records that were not resolved by then are left for the next poll.
+     *
+     * @return false if the bisection was stopped
+     */
+    private boolean bisect(MessageBatch batch, HandledEmailMessage[] records, int from, int to, Throwable cause) {
+        if (to - from == 1) {
+            batch.setRecordFailure(from, cause);
+            return true;
+        }
+
+        int mid = (from + to) >>> 1;
+        Throwable leftFailure = null;
+        try {
+            batch.setResults(from, callHandleEmailMessage(Arrays.copyOfRange(records, from, mid)));
+        } catch (Throwable t) {
+            if (!isRecordFailure(t)) {
+                batch.setFailure(t);
+                return false;
             }
+            leftFailure = t;
         }
-        records = recordList.toArray(new HandledEmailMessage[recordList.size()]);
-        messages = goodMsgs.toArray(new Message[goodMsgs.size()]);
+        if (leftFailure != null && !bisect(batch, records, from, mid, leftFailure)) return false;
+
+        if (leftFailure == null) return bisect(batch, records, mid, to, cause);
 
         try {
+            batch.setResults(mid, callHandleEmailMessage(Arrays.copyOfRange(records, mid, to)));
+            return true;
+        } catch (Throwable t) {
+            if (!isRecordFailure(t)) {
+                batch.setFailure(t);
+                return false;
+            }
+            return bisect(batch, records, mid, to, t);
+        }
+    }
 
-            //SOAP API call to handle loading batch of email messages into cases
-            PartnerConnection conn = getConnection();
-            SaveResult[] results = conn.handleEmailMessage(records);
+    /**
+     * Moves the messages of a submitted batch to the processed or error folder depending on
+     * the results, and handles the failure of the SOAP call if there was one.
+     *
+     * @param batch
+     * @param inbox
+     * @param readbox
+     * @param errorbox
+     * @param session
+     * @return the ids of the records created
+     * @throws Exception
+     */
+    protected String[] commitBatch(MessageBatch batch, Folder inbox, Folder readbox, Folder errorbox, Session session)
+        throws Exception {
+
+        // Captured up front, messages may be expunged once they have been moved
+        long checkpointUid = getCheckpoint() == null ? -1 : highestUid(inbox, batch.getAllMessages());
+        long lowestBatchUid = checkpointUid < 0 ? -1 : lowestUid(inbox, batch.getAllMessages());
+        boolean committed = false;
+
+        Message[] messages = batch.getMessages();
+        ArrayList<Message> successMsgs = new ArrayList<Message>();
+        ArrayList<Message> errorMsgs = new ArrayList<Message>(batch.getUnparsableMessages());
+        errorMsgs.addAll(batch.getInDoubtMessages());
+        ArrayList<Message> pendingMsgs = new ArrayList<Message>();
+        ArrayList<String> messageIds = new ArrayList<String>();
+        Exception pending = null;
+        int isolated = 0;
+
+        try {
+
+            SaveResult[] results = batch.getResults();
 
             for (int i = 0; results != null && i < results.length; i++) {
                 SaveResult r = results[i];
 
-                postProcessParsedMessage(parsedMsgs[i], r.isSuccess());
+                Throwable recordFailure = batch.getRecordFailure(i);
+                if (recordFailure != null) {
+                    logger.error(Calendar.getInstance().getTime().toString() + ":" + pERROR + ":" + i + ": " + recordFailure.getMessage(), recordFailure);
+                    errorMsgs.add(messages[i]);
+                    isolated++;
+                    continue;
+                }
+                if (r == null) {
+                    // Not submitted, stays in the inbox for the next poll
+                    pendingMsgs.add(messages[i]);
+                    continue;
+                }
+
+                postProcessParsedMessage(batch.getParsedMessage(i), r.isSuccess(), r.getId());
 
                 if (r.isSuccess()) {
                     logger.info(Calendar.getInstance().getTime().toString() + ":" + pSUCCESS +":" + i + " ID=" + r.getId() + " "+ pSUCCESS +"=" + r.isSuccess());
                     messageIds.add(r.getId());
                     successMsgs.add(messages[i]);
+                    rememberSubmission(batch.getParsedMessage(i), r.getId());
                 } else {
                     Error error = r.getErrors().length == 0 ? null : r.getErrors()[0];
                     String sMessage = (error == null || error.getMessage() == null) ? "" : error.getMessage();
@@ -680,23 +1556,41 @@ public abstract class GenericClient {
                 }
             }
 
-            if (readbox != null && this instanceof ImapClient) {
-                inbox.copyMessages(successMsgs.toArray(new Message[successMsgs.size()]), readbox);
+            pending = batch.getPendingFailure();
+            rememberInDoubt(batch, pending);
+            syncFingerprints();
+            // Duplicates kept in the inbox were copied to the processed folder when they were first handled
+            if (this.deleteProcessed) successMsgs.addAll(batch.getDuplicateMessages());
+
+            //Move the messages to either the Error box or the Processed Box.
+            //Processed messages stay in the inbox when deleteProcessed is off, the checkpoint skips them next time.
+            routeMessages(inbox, successMsgs.toArray(new Message[successMsgs.size()]), readbox, this.deleteProcessed);
+            if (errorbox != null && errorMsgs.size() > 0) {
+                logger.info("Copying " + errorMsgs.size() + " messages to error mailbox");
             }
-            if (errorbox != null && this instanceof ImapClient) {
-                if(errorMsgs.size() > 0) {
-                    logger.info("Copying " + errorMsgs.size() + " messages to error mailbox");
-                }
-                inbox.copyMessages(errorMsgs.toArray(new Message[errorMsgs.size()]), errorbox);
+            routeMessages(inbox, errorMsgs.toArray(new Message[errorMsgs.size()]), errorbox, true);
+            if (pendingMsgs.size() > 0 && checkpointUid >= 0) {
+                lowerCheckpointCeiling(lowestUid(inbox, pendingMsgs.toArray(new Message[pendingMsgs.size()])));
             }
+            advanceCheckpoint(inbox, checkpointUid);
+            committed = true;
 
-            //By now the messages are copied to either the Error box or the Processed Box, so mark them for delete.
-            for (int i = 0; results != null && i < results.length; i++) {
-                messages[i].setFlag(Flags.Flag.DELETED, true);
+            if (isolated > 0) {
+                String sMessage = BAD_MSGS_FOUND.replaceAll("X", String.valueOf(isolated));
+                SalesforceAgent.processNotification(Notification.UNKNOWN_ERROR, sMessage, Notification.SEVERITY_ERROR);
+            }
+            notifyInDoubt(batch);
+            if (pending instanceof ApiFault && ((ApiFault) pending).getExceptionCode() == ExceptionCode.REQUEST_LIMIT_EXCEEDED) {
+                logger.warn(pAPI_LIMIT_EXCEEDED + pendingMsgs.size() + pMESSAGES);
+                pending = null;
             }
 
         } catch (ApiFault e) {
-            if (e.getExceptionCode() == ExceptionCode.EMAIL_TO_CASE_NOT_ENABLED) {
+            if (e.getExceptionCode() == ExceptionCode.REQUEST_LIMIT_EXCEEDED) {
+                // Not the messages' fault, they are picked up again once the pause is over
+                SalesforceSessionManager.getInstance().getApiUsage().pause();
+                logger.warn(pAPI_LIMIT_EXCEEDED + messages.length + pMESSAGES);
+            } else if (e.getExceptionCode() == ExceptionCode.EMAIL_TO_CASE_NOT_ENABLED) {
                 logger.error(EMAIL_TO_CASE_NOT_ENABLED);
                 logger.info("Shutting down service next cycle...");
                 shutdown(SHUTDOWN_EMAIL_TO_CASE_NOT_ENABLED);
@@ -707,13 +1601,17 @@ public abstract class GenericClient {
                 logger.error(pPASSWORD_EXPIRED);
                 throw new InvalidConfigurationException(ConfigurationExceptionCode.SFDC_AUTHENTICATION_ERROR);
             } else {
-                inbox.copyMessages(messages, errorbox);
-                for(int i = 0; i< messages.length; i++) {
-                    messages[i].setFlag(Flags.Flag.DELETED, true);
-                }
+                routeMessages(inbox, messages, errorbox, true);
+                routeMessages(inbox, batch.getInDoubtMessages().toArray(new Message[0]), errorbox, true);
+                notifyInDoubt(batch);
+                if (this.deleteProcessed) routeMessages(inbox, batch.getDuplicateMessages().toArray(new Message[0]), readbox, true);
+                advanceCheckpoint(inbox, checkpointUid);
+                committed = true;
                 handleAPIError(e, true, true);
             }
         } catch (ConnectionException ce) {
+            rememberInDoubt(batch, ce);
+            syncFingerprints();
             if (ce.getCause() instanceof SocketTimeoutException)
                 throw new InvalidConfigurationException(ConfigurationExceptionCode.SFDC_HTTP_TIMEOUT);
             else throw ce;
@@ -723,26 +1621,128 @@ public abstract class GenericClient {
             Runtime runtime = Runtime.getRuntime();
             String sMaxMemory = "-Xmx = " + Long.toString(runtime.maxMemory()) + " bytes";
             throw new InvalidConfigurationException(ConfigurationExceptionCode.AGENT_OUT_OF_MEMORY,new String[] {sMaxMemory});
-        } catch (Exception e) {
-            //This could be simply a problem with a single message. Let's try to handle each message
-            //one by one to find the culprit and move it to the error box
-            for(int i = 0; i< records.length; i++) {
-                try {
-                    conn.handleEmailMessage(new HandledEmailMessage[] {records[i]});
-                }
-                catch (Exception ex) {
-                    inbox.copyMessages(new Message[] {messages[i]}, errorbox);
-                    messages[i].setFlag(Flags.Flag.DELETED, true);
-                    throw e;
+        } finally {
+            batch.release();
+            // Later batches of this poll must not move the checkpoint past messages left in the inbox
+            if (!committed && lowestBatchUid >= 0) lowerCheckpointCeiling(lowestBatchUid);
+        }
+
+        // The submission was stopped part way, report the failure once the handled messages are committed
+        if (pending != null) throw pending;
+
+        return messageIds.toArray(new String[messageIds.size()]);
+    }
+
+    /**
+     * Copies handled messages to a destination folder and, if <code>remove</code> is set, takes them
+     * out of the inbox.  When the IMAP server supports MOVE this is a single UID MOVE per call.  Otherwise
+     * the messages are copied, flagged deleted with one STORE and, given UIDPLUS, expunged right away with
+     * UID EXPUNGE of just these UIDs.  Without UIDPLUS they are expunged when the inbox is closed.
+     * Destination folders are only used by IMAP clients.
+     *
+     * @param inbox
+     * @param msgs    Messages to route, may be empty
+     * @param target  Destination folder, null to only remove the messages
+     * @param remove  Whether the messages are removed from the inbox
+     * @throws MessagingException
+     */
+    protected void routeMessages(Folder inbox, Message[] msgs, Folder target, boolean remove) throws MessagingException {
+        if (msgs.length == 0) return;
+
+        if (target != null && this instanceof ImapClient) {
+            if (remove && inbox instanceof IMAPFolder) {
+                IMAPFolder imapInbox = (IMAPFolder) inbox;
+                if (ImapCommands.hasCapability(imapInbox, ImapCommands.CAPABILITY_MOVE)) {
+                    long[] uids = new long[msgs.length];
+                    for (int i = 0; i < msgs.length; i++) {
+                        uids[i] = imapInbox.getUID(msgs[i]);
+                    }
+                    ImapCommands.uidMove(imapInbox, uids, target);
+                    return;
                 }
             }
-            throw e;
+            inbox.copyMessages(msgs, target);
         }
 
-        return messageIds.toArray(new String[messageIds.size()]);
+        if (remove) {
+            inbox.setFlags(msgs, new Flags(Flags.Flag.DELETED), true);
+            if (inbox instanceof IMAPFolder && ImapCommands.hasCapability((IMAPFolder) inbox, ImapCommands.CAPABILITY_UIDPLUS)) {
+                ((IMAPFolder) inbox).expunge(msgs);
+            }
+        }
     }
 
-    private void postProcessParsedMessage(ParsedMessage msg, boolean isSuccess) {
+    /**
+     * Releases a batch the pipeline did not submit.  Its messages stay in the inbox for the next poll,
+     * so the checkpoint is kept below them.
+     */
+    private void abandonBatch(MessageBatch batch, Folder inbox) {
+        try {
+            if (getCheckpoint() != null) {
+                long lowest = lowestUid(inbox, batch.getAllMessages());
+                if (lowest >= 0) lowerCheckpointCeiling(lowest);
+            }
+        } catch (MessagingException | IOException e) {
+            // Without the UIDs of the batch the checkpoint can not move for the rest of the poll
+            logger.error(e, e);
+            lowerCheckpointCeiling(0);
+        } finally {
+            batch.release();
+        }
+    }
+
+    /**
+     * @return the highest UID of the given messages, or -1 if the folder has no UIDs
+     */
+    private long highestUid(Folder inbox, Message[] msgs) throws MessagingException {
+        if (!(inbox instanceof UIDFolder)) return -1;
+
+        long highest = -1;
+        for (int i = 0; i < msgs.length; i++) {
+            highest = Math.max(highest, ((UIDFolder) inbox).getUID(msgs[i]));
+        }
+        return highest;
+    }
+
+    /**
+     * @return the lowest UID of the given messages, or -1 if the folder has no UIDs
+     */
+    private long lowestUid(Folder inbox, Message[] msgs) throws MessagingException {
+        if (!(inbox instanceof UIDFolder) || msgs.length == 0) return -1;
+
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < msgs.length; i++) {
+            lowest = Math.min(lowest, ((UIDFolder) inbox).getUID(msgs[i]));
+        }
+        return lowest;
+    }
+
+    /**
+     * Keeps the checkpoint below a message that was left in the inbox for the rest of the poll
+     */
+    private void lowerCheckpointCeiling(long uid) {
+        this.checkpointCeiling = Math.min(this.checkpointCeiling, uid - 1);
+    }
+
+    /**
+     * Moves the UID checkpoint past a batch once all of its messages have been copied and flagged,
+     * but never past a message an earlier batch of the same poll left in the inbox.
+     * A checkpoint that can not be written aborts the poll rather than risk handling messages twice.
+     */
+    private void advanceCheckpoint(Folder inbox, long uid) throws MessagingException, IOException {
+        UidCheckpoint uidCheckpoint = getCheckpoint();
+        uid = Math.min(uid, this.checkpointCeiling);
+        if (uidCheckpoint == null || uid < 0) return;
+
+        uidCheckpoint.update(((UIDFolder) inbox).getUIDValidity(), uid);
+    }
+
+    /**
+     * Stores the oversized attachments of a message Salesforce accepted
+     *
+     * @param recordId The id of the record created for the message
+     */
+    private void postProcessParsedMessage(ParsedMessage msg, boolean isSuccess, String recordId) {
 
         if(isSuccess) {
             HashMap files = msg.getOversizedAttachments();
@@ -754,14 +1754,17 @@ public abstract class GenericClient {
                 while(it.hasNext()){
                     try {
                         fileName = (String)it.next();
+                        AttachmentBuffer content = (AttachmentBuffer) files.get(fileName);
+                        if (AttachmentStore.isBlobName(fileName)) {
+                            AttachmentStore.store(ATTACH_DIR, fileName, content, recordId);
+                            continue;
+                        }
                         File file = new File(ATTACH_DIR + fileName);
                         boolean directoryCreated = file.getParentFile().mkdirs();
                         if(directoryCreated) {
                             logger.info("Directory created - " + file.getParentFile());
                         }
-                        FileChannel channel = new FileOutputStream(file, false).getChannel();
-                        channel.write((ByteBuffer) files.get(fileName));
-                        channel.close();
+                        content.writeTo(file);
                     } catch (SecurityException se) {
                         logger.error("Insufficient access to create external file" + fileName +". ", se);
                     } catch (FileNotFoundException fnf) {
@@ -827,7 +1830,8 @@ public abstract class GenericClient {
             if (readbox != null && readbox.isOpen()) readbox.close(false);
             if (errorbox != null && errorbox.isOpen()) errorbox.close(false);
 
-            if (store != null) store.close();
+            // Make sure the next cycle does not reuse a connection that may be broken
+            MailStorePool.getInstance().invalidate(getProtocol(), this.loginCredentials);
 
         } catch (Exception ex2) {
             logger.error(ex2, ex2);
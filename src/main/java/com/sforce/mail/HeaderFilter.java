@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigParameters;
+
+/**
+ * Decides which headers of an email are sent to Salesforce, from the include and exclude settings
+ * of the headers section.  Both are comma separated lists of header names, case insensitive, where
+ * a name ending with * stands for every name that starts with it.  Without an include list every
+ * header is included; the exclude list is applied after it.
+ *
+ * Header names are also canonicalized here, so that the few distinct names seen in practice are
+ * shared by all messages rather than held once per header.
+ */
+class HeaderFilter {
+    private static final String WILDCARD = "*";
+    // Canonical names kept at most, header names are chosen by senders
+    private static final int MAX_CANONICAL_NAMES = 1024;
+
+    private static final ConcurrentHashMap<String, String> canonicalNames = new ConcurrentHashMap<String, String>();
+    private static volatile HeaderFilter current = new HeaderFilter(null, null);
+
+    private final String includeSetting;
+    private final String excludeSetting;
+    private final NameSet include;
+    private final NameSet exclude;
+
+    private HeaderFilter(String includeSetting, String excludeSetting) {
+        this.includeSetting = includeSetting;
+        this.excludeSetting = excludeSetting;
+        this.include = includeSetting == null ? null : new NameSet(includeSetting);
+        this.exclude = excludeSetting == null ? null : new NameSet(excludeSetting);
+    }
+
+    /**
+     * @return the filter for the current settings
+     */
+    static HeaderFilter getInstance() {
+        String includeSetting = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pHEADERS, ConfigParameters.pHEADERS_INCLUDE);
+        String excludeSetting = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pHEADERS, ConfigParameters.pHEADERS_EXCLUDE);
+
+        HeaderFilter filter = current;
+        if (!equals(filter.includeSetting, includeSetting) || !equals(filter.excludeSetting, excludeSetting)) {
+            filter = new HeaderFilter(includeSetting, excludeSetting);
+            current = filter;
+        }
+        return filter;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    boolean accept(String name) {
+        if (this.include != null && !this.include.contains(name)) return false;
+        return this.exclude == null || !this.exclude.contains(name);
+    }
+
+    /**
+     * @return the shared instance of a header name
+     */
+    static String canonicalName(String name) {
+        if (name == null) return null;
+
+        String canonical = canonicalNames.get(name);
+        if (canonical != null) return canonical;
+        if (canonicalNames.size() >= MAX_CANONICAL_NAMES) return name;
+
+        canonical = canonicalNames.putIfAbsent(name, name);
+        return canonical == null ? name : canonical;
+    }
+
+    private static class NameSet {
+        private final HashSet<String> names = new HashSet<String>();
+        private final ArrayList<String> prefixes = new ArrayList<String>();
+
+        NameSet(String setting) {
+            for (String name : setting.split(",")) {
+                name = name.trim().toLowerCase(Locale.ENGLISH);
+                if (name.length() == 0) continue;
+
+                if (name.endsWith(WILDCARD)) {
+                    this.prefixes.add(name.substring(0, name.length() - 1));
+                } else {
+                    this.names.add(name);
+                }
+            }
+        }
+
+        boolean contains(String name) {
+            String lower = name.toLowerCase(Locale.ENGLISH);
+            if (this.names.contains(lower)) return true;
+            for (int i = 0; i < this.prefixes.size(); i++) {
+                if (lower.startsWith(this.prefixes.get(i))) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -30,17 +30,42 @@
  */
 package com.sforce.mail;
 
+import java.util.Timer;
+import java.util.TimerTask;
+
 import javax.mail.Folder;
 import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
 
 import com.sforce.exception.InvalidConfigurationException;
 import com.sforce.exception.InvalidConfigurationException.ConfigurationExceptionCode;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
 
 
 /**
  * Imap client implementation
  */
 public class ImapClient extends GenericClient {
+    private static final String pIDLE_CAPABILITY = "IDLE";
+    private static final String pNO_DEFAULT_FOLDER = "No default folder";
+    private static final String pIDLE_CONNECT_FAILED = "Unable to connect for IDLE to ";
+
+    // Servers drop an idle connection after 30 minutes, so IDLE is re-issued well before that
+    public static final long IDLE_REISSUE_MILLIS = 25 * 60 * 1000;
+
+    // Shared timer used to break out of IDLE so it can be re-issued
+    private static final Timer idleRefreshTimer = new Timer("IMAP IDLE refresh", true);
+
+    private Store idleStore = null;
+    private IMAPFolder idleFolder = null;
+    private volatile boolean messagesAdded = false;
+
     public ImapClient(LoginCredentials loginCredentials) {
         super(loginCredentials);
     }
@@ -74,6 +99,113 @@ public class ImapClient extends GenericClient {
         return configureMailbox(getErrorBoxName(), root, ConfigurationExceptionCode.MAIL_ERRORBOX_NOT_VALID);
     }
 
+    /**
+     * Opens a dedicated connection to the mail server that keeps the inbox selected for IDLE.
+     *
+     * @return false if the server has no IDLE capability.
+     * @throws InvalidConfigurationException
+     * @throws MessagingException if the server could not be reached or the login failed
+     */
+    public synchronized boolean startIdle() throws InvalidConfigurationException, MessagingException {
+        stopIdle();
+
+        Session session = Session.getDefaultInstance(System.getProperties(), null);
+        Store store = connectToMailServer(session);
+        if (store == null) throw new MessagingException(pIDLE_CONNECT_FAILED + getUrl());
+
+        this.idleStore = store;
+        if (!(store instanceof IMAPStore) || !((IMAPStore) store).hasCapability(pIDLE_CAPABILITY)) {
+            stopIdle();
+            return false;
+        }
+
+        Folder root = store.getDefaultFolder();
+        if (root == null) {
+            stopIdle();
+            throw new MessagingException(pNO_DEFAULT_FOLDER);
+        }
+
+        // The folder gets its own connection from the store, so the store can still be shared
+        IMAPFolder folder;
+        try {
+            folder = (IMAPFolder) configureInBox(root);
+            folder.open(Folder.READ_ONLY);
+        } catch (MessagingException | InvalidConfigurationException e) {
+            stopIdle();
+            throw e;
+        }
+        folder.addMessageCountListener(new MessageCountAdapter() {
+            @Override
+            public void messagesAdded(MessageCountEvent e) {
+                messagesAdded = true;
+            }
+        });
+
+        this.idleFolder = folder;
+        return true;
+    }
+
+    /**
+     * Blocks in IDLE until the server reports new messages (EXISTS) or maxIdleMillis elapses,
+     * after which IDLE has to be re-issued by the caller.
+     *
+     * @param maxIdleMillis
+     * @return true if new messages arrived in the inbox.
+     * @throws MessagingException if the IDLE connection failed; call startIdle() to reconnect.
+     */
+    public boolean waitForMessages(long maxIdleMillis) throws MessagingException {
+        final IMAPFolder folder;
+        synchronized (this) {
+            folder = this.idleFolder;
+        }
+        if (folder == null || !folder.isOpen()) {
+            throw new MessagingException("IDLE connection is not open");
+        }
+
+        int count = folder.getMessageCount();
+        this.messagesAdded = false;
+
+        // Any command on the folder terminates IDLE, a NOOP is the cheapest one
+        TimerTask reissue = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    folder.doCommand(new IMAPFolder.ProtocolCommand() {
+                        @Override
+                        public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                            p.simpleCommand("NOOP", null);
+                            return null;
+                        }
+                    });
+                } catch (MessagingException me) {
+                    logger.warn("Unable to interrupt IDLE: " + me.getMessage());
+                }
+            }
+        };
+        idleRefreshTimer.schedule(reissue, maxIdleMillis);
+        try {
+            folder.idle(true);
+        } finally {
+            reissue.cancel();
+        }
+
+        return this.messagesAdded || folder.getMessageCount() > count;
+    }
+
+    /**
+     * Closes the IDLE connection, if any.
+     */
+    public synchronized void stopIdle() {
+        try {
+            if (this.idleFolder != null && this.idleFolder.isOpen()) this.idleFolder.close(false);
+        } catch (MessagingException me) {
+            logger.warn(me, me);
+        }
+        if (this.idleStore != null) releaseStore(this.idleStore);
+        this.idleFolder = null;
+        this.idleStore = null;
+    }
+
     private Folder configureMailbox(String folderName, Folder root, ConfigurationExceptionCode exceptionCode) throws InvalidConfigurationException, MessagingException {
 
         Folder mailbox = getFullyQualifiedFolder(folderName, root);
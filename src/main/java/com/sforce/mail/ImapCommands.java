@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.Arrays;
+
+import javax.mail.MessagingException;
+
+import javax.mail.Folder;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+
+/**
+ * Raw IMAP commands that are not exposed through the JavaMail Folder API.
+ * All commands run on the connection of an open IMAPFolder.
+ */
+public final class ImapCommands {
+    public static final String CAPABILITY_MOVE = "MOVE";
+    public static final String CAPABILITY_UIDPLUS = "UIDPLUS";
+
+    private ImapCommands() {}
+
+    /**
+     * Returns, in ascending order, the UIDs of all messages in the folder whose UID is
+     * greater than or equal to <code>fromUid</code>.  Only the UIDs are transferred, so
+     * this is cheap even for very large mailboxes.
+     *
+     * @param folder  An open IMAP folder
+     * @param fromUid The lowest UID of interest
+     * @return sorted array of UIDs, possibly empty
+     * @throws MessagingException
+     */
+    public static long[] uidSearchFrom(IMAPFolder folder, final long fromUid) throws MessagingException {
+        long[] uids = (long[]) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                Response[] r = p.command("UID SEARCH UID " + fromUid + ":*", null);
+                Response response = r[r.length - 1];
+                long[] found = new long[16];
+                int count = 0;
+
+                if (response.isOK()) {
+                    for (int i = 0; i < r.length; i++) {
+                        if (!(r[i] instanceof IMAPResponse)) continue;
+
+                        IMAPResponse ir = (IMAPResponse) r[i];
+                        if (ir.keyEquals("SEARCH")) {
+                            long uid;
+                            while ((uid = ir.readLong()) != -1) {
+                                // "n:*" always matches the last message, even when its UID is below n
+                                if (uid < fromUid) continue;
+                                if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                                found[count++] = uid;
+                            }
+                            r[i] = null;
+                        }
+                    }
+                }
+                p.notifyResponseHandlers(r);
+                p.handleResult(response);
+                return Arrays.copyOf(found, count);
+            }
+        });
+        Arrays.sort(uids);
+        return uids;
+    }
+
+    /**
+     * @return true if the server the folder is connected to announced the capability
+     * @throws MessagingException
+     */
+    public static boolean hasCapability(IMAPFolder folder, final String capability) throws MessagingException {
+        Boolean has = (Boolean) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                return Boolean.valueOf(p.hasCapability(capability));
+            }
+        });
+        return has.booleanValue();
+    }
+
+    /**
+     * Moves the messages with the given UIDs to another folder with a single UID MOVE (RFC 6851).
+     * The server expunges the messages from the source folder; the untagged EXPUNGE responses are
+     * passed on to the folder so its message cache stays in step.  Callers must check the MOVE capability.
+     *
+     * @param folder The open source folder
+     * @param uids   UIDs of the messages to move
+     * @param target The destination folder
+     * @throws MessagingException
+     */
+    public static void uidMove(IMAPFolder folder, long[] uids, Folder target) throws MessagingException {
+        if (uids.length == 0) return;
+
+        final String set = toUidSet(uids);
+        final String mailbox = BASE64MailboxEncoder.encode(target.getFullName());
+        folder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                Argument args = new Argument();
+                args.writeAtom(set);
+                args.writeString(mailbox);
+                Response[] r = p.command("UID MOVE", args);
+                p.notifyResponseHandlers(r);
+                p.handleResult(r[r.length - 1]);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Compacts UIDs into an IMAP sequence set, e.g. 1,2,3,5,7,8 becomes "1:3,5,7:8".
+     */
+    public static String toUidSet(long[] uids) {
+        long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < sorted.length) {
+            long start = sorted[i];
+            long end = start;
+            while (++i < sorted.length && sorted[i] <= end + 1) {
+                end = sorted[i];
+            }
+            if (sb.length() > 0) sb.append(',');
+            sb.append(start);
+            if (end != start) sb.append(':').append(end);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.Arrays;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Walks an inbox in fixed size windows instead of materializing every message at once.
+ *
+ * Windows are either ranges of message sequence numbers or ranges of UIDs.  Once a window
+ * has been processed, {@link #release(Message[])} closes and re-opens the folder, which
+ * expunges the handled messages and drops the folder's message cache along with any
+ * headers and content cached on the Message objects.  Heap use therefore depends on the
+ * window size, not on the size of the backlog.
+ */
+public class InboxTraversal {
+    public static final String MODE_SEQUENCE = "sequence";
+    public static final String MODE_UID = "uid";
+
+    private static final String pUID_NOT_SUPPORTED = "UID windows require an IMAP folder, using sequence windows for ";
+
+    static Logger logger = Logger.getLogger(InboxTraversal.class.getName());
+
+    private final Folder inbox;
+    private final int windowSize;
+    private final int openMode;
+    private final boolean byUid;
+
+    // Sequence windows: messages earlier windows left in the inbox, e.g. when there is no readbox
+    private int retained = 0;
+
+    // UID windows
+    private long[] pendingUids = null;
+    private int pendingIndex = 0;
+    private long lastUid = 0;
+    private long uidValidity = -1;
+
+    /**
+     * @param inbox      The open inbox
+     * @param mode       MODE_SEQUENCE or MODE_UID
+     * @param windowSize Maximum number of messages per window
+     */
+    public InboxTraversal(Folder inbox, String mode, int windowSize) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize must be at least 1");
+
+        this.inbox = inbox;
+        this.windowSize = windowSize;
+        this.openMode = inbox.getMode();
+
+        boolean uidMode = MODE_UID.equalsIgnoreCase(mode);
+        if (uidMode && !(inbox instanceof IMAPFolder)) {
+            logger.warn(pUID_NOT_SUPPORTED + inbox.getFullName());
+            uidMode = false;
+        }
+        this.byUid = uidMode;
+    }
+
+    /**
+     * Starts a UID traversal after a previously handled UID instead of at the first message.
+     * The position is ignored if the folder's UIDVALIDITY no longer matches.
+     */
+    public void startAfter(long uidValidity, long lastUid) {
+        if (this.byUid) {
+            this.uidValidity = uidValidity;
+            this.lastUid = lastUid;
+        }
+    }
+
+    public boolean isByUid() {
+        return this.byUid;
+    }
+
+    /**
+     * @return the next window of messages, or null when the inbox has been walked completely.
+     * @throws MessagingException
+     */
+    public Message[] nextWindow() throws MessagingException {
+        return this.byUid ? nextUidWindow() : nextSequenceWindow();
+    }
+
+    /**
+     * Releases the messages of a processed window.  Messages flagged as deleted are expunged and
+     * the folder is re-opened with an empty message cache.
+     *
+     * @param window the window returned by the last call to nextWindow()
+     * @throws MessagingException
+     */
+    public void release(Message[] window) throws MessagingException {
+        if (!this.byUid) {
+            for (int i = 0; i < window.length; i++) {
+                if (!window[i].isExpunged() && !window[i].isSet(Flags.Flag.DELETED)) {
+                    this.retained++;
+                }
+            }
+        }
+
+        if (this.inbox.isOpen()) this.inbox.close(true);
+        this.inbox.open(this.openMode);
+    }
+
+    private Message[] nextSequenceWindow() throws MessagingException {
+        int total = this.inbox.getMessageCount();
+        int start = this.retained + 1;
+        if (start > total) return null;
+
+        int end = (int) Math.min(total, (long) start + this.windowSize - 1);
+        return this.inbox.getMessages(start, end);
+    }
+
+    private Message[] nextUidWindow() throws MessagingException {
+        IMAPFolder folder = (IMAPFolder) this.inbox;
+
+        long validity = folder.getUIDValidity();
+        if (validity != this.uidValidity) {
+            // UIDs from a previous incarnation of the mailbox are meaningless
+            this.uidValidity = validity;
+            this.lastUid = 0;
+            this.pendingUids = null;
+        }
+
+        while (true) {
+            if (this.pendingUids == null || this.pendingIndex >= this.pendingUids.length) {
+                // Pick up anything that arrived while the previous windows were processed
+                this.pendingUids = ImapCommands.uidSearchFrom(folder, this.lastUid + 1);
+                this.pendingIndex = 0;
+                if (this.pendingUids.length == 0) return null;
+            }
+
+            int end = (int) Math.min(this.pendingUids.length, (long) this.pendingIndex + this.windowSize);
+            long[] uids = Arrays.copyOfRange(this.pendingUids, this.pendingIndex, end);
+            this.pendingIndex = end;
+            this.lastUid = uids[uids.length - 1];
+
+            // Messages removed since the search come back as null
+            Message[] msgs = folder.getMessagesByUID(uids);
+            int count = 0;
+            for (int i = 0; i < msgs.length; i++) {
+                if (msgs[i] != null) msgs[count++] = msgs[i];
+            }
+            if (count > 0) return Arrays.copyOf(msgs, count);
+        }
+    }
+}
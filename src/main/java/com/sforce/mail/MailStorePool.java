@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps connected mail Stores alive between polling cycles, one per protocol and set of
+ * LoginCredentials, so that a cycle does not pay for a TCP connect, TLS handshake and login.
+ *
+ * A pooled store is health checked when it is borrowed (for IMAP, isConnected() issues a NOOP)
+ * and transparently reconnected if the server dropped it.  Stores that nobody borrowed for
+ * longer than their idle timeout are closed by a background reaper.
+ */
+public class MailStorePool {
+    private static final String pCONNECTING = "Connecting to mail server ";
+    private static final String pRECONNECTING = "Pooled mail connection is no longer alive, reconnecting to ";
+    private static final String pCLOSING_IDLE = "Closing idle mail connection to ";
+    private static final long REAPER_INTERVAL = 60 * 1000;
+
+    private static final MailStorePool instance = new MailStorePool();
+
+    static Logger logger = Logger.getLogger(MailStorePool.class.getName());
+
+    private final Map<String, PooledStore> stores = new HashMap<String, PooledStore>();
+    private final Map<Store, PooledStore> borrowed = new HashMap<Store, PooledStore>();
+    private Timer reaper = null;
+
+    public static MailStorePool getInstance() {
+        return instance;
+    }
+
+    private MailStorePool() {}
+
+    /**
+     * Borrows a connected store for the given credentials, connecting or reconnecting as needed.
+     * Every store returned must be handed back with {@link #release(Store)}.
+     *
+     * @param protocol         The JavaMail store protocol, e.g. imap or imaps
+     * @param credentials      The mail server credentials
+     * @param idleTimeoutMillis How long an unused store is kept open, 0 to close it on release
+     * @return a connected store
+     * @throws MessagingException if the store can not be connected
+     */
+    public Store acquire(String protocol, LoginCredentials credentials, long idleTimeoutMillis) throws MessagingException {
+        PooledStore pooled;
+        synchronized (this) {
+            String key = getKey(protocol, credentials);
+            pooled = this.stores.get(key);
+            if (pooled == null || pooled.invalid) {
+                pooled = new PooledStore(key, protocol, credentials);
+                this.stores.put(key, pooled);
+            }
+            pooled.borrowers++;
+            pooled.idleTimeout = idleTimeoutMillis;
+        }
+
+        try {
+            synchronized (pooled) {
+                pooled.connect(createSession(protocol, idleTimeoutMillis));
+            }
+        } catch (MessagingException me) {
+            synchronized (this) {
+                pooled.borrowers--;
+                pooled.invalid = true;
+                closeIfUnused(pooled);
+            }
+            throw me;
+        }
+
+        synchronized (this) {
+            this.borrowed.put(pooled.store, pooled);
+            if (idleTimeoutMillis > 0) startReaper();
+        }
+        return pooled.store;
+    }
+
+    /**
+     * Hands a store obtained from {@link #acquire(String, LoginCredentials, long)} back to the pool.
+     */
+    public synchronized void release(Store store) {
+        PooledStore pooled = this.borrowed.get(store);
+        if (pooled == null) {
+            closeQuietly(store);
+            return;
+        }
+
+        pooled.borrowers--;
+        pooled.lastUsed = System.currentTimeMillis();
+        if (pooled.borrowers <= 0) {
+            this.borrowed.remove(store);
+        }
+        if (pooled.idleTimeout <= 0) {
+            pooled.invalid = true;
+        }
+        closeIfUnused(pooled);
+    }
+
+    /**
+     * Marks the store for the given credentials as broken, e.g. after a messaging error.
+     * It is closed as soon as no one is using it and the next acquire reconnects.
+     */
+    public synchronized void invalidate(String protocol, LoginCredentials credentials) {
+        PooledStore pooled = this.stores.get(getKey(protocol, credentials));
+        if (pooled != null) {
+            pooled.invalid = true;
+            closeIfUnused(pooled);
+        }
+    }
+
+    private void closeIfUnused(PooledStore pooled) {
+        if (pooled.invalid && pooled.borrowers <= 0) {
+            if (this.stores.get(pooled.key) == pooled) {
+                this.stores.remove(pooled.key);
+            }
+            if (pooled.store != null) {
+                this.borrowed.remove(pooled.store);
+                closeQuietly(pooled.store);
+            }
+        }
+    }
+
+    private synchronized void closeIdleStores() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledStore> it = this.stores.values().iterator();
+        while (it.hasNext()) {
+            PooledStore pooled = it.next();
+            if (pooled.borrowers <= 0 && now - pooled.lastUsed > pooled.idleTimeout) {
+                logger.info(pCLOSING_IDLE + pooled.key);
+                it.remove();
+                if (pooled.store != null) closeQuietly(pooled.store);
+            }
+        }
+    }
+
+    private void startReaper() {
+        if (this.reaper != null) return;
+
+        this.reaper = new Timer("Mail store pool", true);
+        this.reaper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                closeIdleStores();
+            }
+        }, REAPER_INTERVAL, REAPER_INTERVAL);
+    }
+
+    private Session createSession(String protocol, long idleTimeoutMillis) {
+        Properties props = new Properties();
+        props.putAll(System.getProperties());
+
+        // Keep the connections JavaMail opens for folders around as long as the store itself
+        if (idleTimeoutMillis > 0 && !props.containsKey("mail." + protocol + ".connectionpooltimeout")) {
+            props.put("mail." + protocol + ".connectionpooltimeout", String.valueOf(idleTimeoutMillis));
+        }
+        return Session.getInstance(props, null);
+    }
+
+    private static String getKey(String protocol, LoginCredentials credentials) {
+        return protocol + "://" + credentials.getUserName() + "@" + credentials.getServerName() + ":" + credentials.getPort();
+    }
+
+    private static void closeQuietly(Store store) {
+        try {
+            store.close();
+        } catch (MessagingException me) {
+            logger.warn(me, me);
+        }
+    }
+
+    private static class PooledStore {
+        private final String key;
+        private final String protocol;
+        private final LoginCredentials credentials;
+        private Store store = null;
+        private int borrowers = 0;
+        private long lastUsed = System.currentTimeMillis();
+        private long idleTimeout = 0;
+        private boolean invalid = false;
+
+        private PooledStore(String key, String protocol, LoginCredentials credentials) {
+            this.key = key;
+            this.protocol = protocol;
+            this.credentials = credentials;
+        }
+
+        private void connect(Session session) throws MessagingException {
+            if (this.store != null) {
+                // For IMAP this sends a NOOP, so a connection the server dropped is detected here
+                if (this.store.isConnected()) return;
+
+                logger.info(pRECONNECTING + this.key);
+                closeQuietly(this.store);
+            } else {
+                logger.debug(pCONNECTING + this.key);
+                this.store = session.getStore(this.protocol);
+            }
+
+            int port = this.credentials.getPort();
+            if (port > 0) {
+                this.store.connect(this.credentials.getServerName(), port, this.credentials.getUserName(),
+                        this.credentials.getPassword());
+            } else {
+                this.store.connect(this.credentials.getServerName(), this.credentials.getUserName(),
+                        this.credentials.getPassword());
+            }
+        }
+    }
+}
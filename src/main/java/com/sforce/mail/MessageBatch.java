@@ -0,0 +1,207 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Message;
+
+import com.sforce.soap.partner.wsc.HandledEmailMessage;
+import com.sforce.soap.partner.wsc.SaveResult;
+
+/**
+ * A group of messages submitted to Salesforce with one handleEmailMessage call.
+ *
+ * The mail messages, their parsed form and the records built from them share the same index.
+ * Messages that could not be parsed travel with the batch so that they are routed to the
+ * error folder together with it, and so do messages that were already submitted before, which
+ * are routed like processed ones.
+ *
+ * The outcome is kept per record: the SaveResult of the call that submitted it, or the failure
+ * that isolated it as a bad record.  A record with neither was not submitted.
+ */
+public class MessageBatch {
+    private final List<Message> messages = new ArrayList<Message>();
+    private final List<ParsedMessage> parsedMessages = new ArrayList<ParsedMessage>();
+    private final List<HandledEmailMessage> records = new ArrayList<HandledEmailMessage>();
+    private final List<Message> unparsableMessages = new ArrayList<Message>();
+    private final List<Message> duplicateMessages = new ArrayList<Message>();
+    private final List<Message> inDoubtMessages = new ArrayList<Message>();
+    private long estimatedSize = 0;
+    private SaveResult[] results = null;
+    private Throwable[] recordFailures = null;
+    private Throwable failure = null;
+
+    void add(Message message, ParsedMessage parsed, HandledEmailMessage record, long size) {
+        this.messages.add(message);
+        this.parsedMessages.add(parsed);
+        this.records.add(record);
+        this.estimatedSize += size;
+    }
+
+    void addUnparsable(Message message) {
+        this.unparsableMessages.add(message);
+    }
+
+    void addDuplicate(Message message) {
+        this.duplicateMessages.add(message);
+    }
+
+    void addInDoubt(Message message) {
+        this.inDoubtMessages.add(message);
+    }
+
+    public int size() { return this.records.size(); }
+
+    public boolean isEmpty() {
+        return this.records.isEmpty() && this.unparsableMessages.isEmpty() && this.duplicateMessages.isEmpty()
+            && this.inDoubtMessages.isEmpty();
+    }
+
+    public long getEstimatedSize() { return this.estimatedSize; }
+
+    public Message[] getMessages() {
+        return this.messages.toArray(new Message[this.messages.size()]);
+    }
+
+    public ParsedMessage getParsedMessage(int i) {
+        return this.parsedMessages.get(i);
+    }
+
+    public HandledEmailMessage[] getRecords() {
+        return this.records.toArray(new HandledEmailMessage[this.records.size()]);
+    }
+
+    public List<Message> getUnparsableMessages() {
+        return this.unparsableMessages;
+    }
+
+    public List<Message> getDuplicateMessages() {
+        return this.duplicateMessages;
+    }
+
+    /**
+     * @return the messages that may have been submitted by a call that timed out
+     */
+    public List<Message> getInDoubtMessages() {
+        return this.inDoubtMessages;
+    }
+
+    /**
+     * Keeps the outcome of the handleEmailMessage call for the commit stage
+     */
+    public void setResults(SaveResult[] results) {
+        setResults(0, results);
+    }
+
+    /**
+     * Keeps the outcome of a call that submitted the records from <code>offset</code> on
+     */
+    public synchronized void setResults(int offset, SaveResult[] subResults) {
+        if (this.results == null) this.results = new SaveResult[size()];
+        System.arraycopy(subResults, 0, this.results, offset, Math.min(subResults.length, size() - offset));
+    }
+
+    /**
+     * Marks a record as one that handleEmailMessage can not process
+     */
+    public synchronized void setRecordFailure(int i, Throwable t) {
+        if (this.recordFailures == null) this.recordFailures = new Throwable[size()];
+        this.recordFailures[i] = t;
+    }
+
+    public synchronized Throwable getRecordFailure(int i) {
+        return this.recordFailures == null ? null : this.recordFailures[i];
+    }
+
+    /**
+     * @return true if at least one record was submitted or isolated as a bad record
+     */
+    public synchronized boolean hasOutcomes() {
+        for (int i = 0; i < size(); i++) {
+            if (hasOutcome(i)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the record was submitted or isolated as a bad record
+     */
+    public synchronized boolean hasOutcome(int i) {
+        return (this.results != null && this.results[i] != null) || getRecordFailure(i) != null;
+    }
+
+    public void setFailure(Throwable failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * @return the results of the handleEmailMessage calls, null for records that were not submitted
+     * @throws Exception the failure of the call, if no record was submitted or isolated
+     */
+    public synchronized SaveResult[] getResults() throws Exception {
+        if (this.failure != null && !hasOutcomes()) {
+            if (this.failure instanceof Error) throw (Error) this.failure;
+            throw (Exception) this.failure;
+        }
+        return this.results == null ? new SaveResult[size()] : this.results;
+    }
+
+    /**
+     * @return the failure that stopped the submission part way, after some records were handled
+     */
+    public synchronized Exception getPendingFailure() {
+        if (this.failure instanceof Exception && hasOutcomes()) return (Exception) this.failure;
+        return null;
+    }
+
+    /**
+     * Frees the attachment buffers of the parsed messages, once the batch is committed
+     */
+    void release() {
+        for (ParsedMessage parsed : this.parsedMessages) parsed.release();
+    }
+
+    /**
+     * @return every mail message of the batch, parsed, unparsable, duplicate or in doubt
+     */
+    public Message[] getAllMessages() {
+        Message[] all = new Message[this.messages.size() + this.unparsableMessages.size() + this.duplicateMessages.size()
+            + this.inDoubtMessages.size()];
+        int i = 0;
+        for (Message m : this.messages) all[i++] = m;
+        for (Message m : this.unparsableMessages) all[i++] = m;
+        for (Message m : this.duplicateMessages) all[i++] = m;
+        for (Message m : this.inDoubtMessages) all[i++] = m;
+        return all;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+
+import javax.mail.Header;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent index of the messages that have been submitted to Salesforce, keyed by a fingerprint
+ * of each message, with the id Salesforce returned for it.  It keeps a message that is fetched
+ * again, e.g. because the agent stopped before moving it out of the inbox, from creating a second
+ * case.
+ *
+ * Entries are appended to a file, each one being the SHA-256 fingerprint, the record id and a
+ * CRC32, and are never rewritten.  In memory only an open addressing table of the first 8 bytes
+ * of each fingerprint and the offset of its entry is kept, so millions of entries fit in a few
+ * dozen megabytes and a lookup costs one probe and one read of the entry.
+ *
+ * A fingerprint can also be recorded without an id when a call timed out, so that Salesforce may
+ * have created the record without the agent learning about it.
+ *
+ * Fingerprints hash the headers and the size of a message, not its body, so that they are the same
+ * whether the message is checked on the mail server or read back from the spool, and turning the
+ * spool on or off keeps the index valid.  The price is that a message whose headers and size match
+ * one submitted before is taken for it even if its body differs.
+ */
+public class MessageFingerprintIndex {
+    public static final String IN_DOUBT = "";
+
+    private static final int DIGEST_SIZE = 32;
+    private static final int MAX_ID_LENGTH = 255;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final String pFILE_EXT = ".fingerprints";
+    private static final String pTORN_RECORD = "Discarding incomplete entry at the end of fingerprint index ";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static Logger logger = Logger.getLogger(MessageFingerprintIndex.class.getName());
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long size = 0;
+    // Open addressing table: key 0 marks a free slot, offsets hold the position of the entry in the file
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int count = 0;
+
+    /**
+     * @param directory Directory holding the index files
+     * @param mailboxId Unique name of the mailbox the index is for
+     * @throws IOException if the index can not be opened or read
+     */
+    public MessageFingerprintIndex(File directory, String mailboxId) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create fingerprint directory " + directory);
+        }
+        this.file = new File(directory, mailboxId.replaceAll("[^A-Za-z0-9._-]", "_") + pFILE_EXT);
+        this.raf = new RandomAccessFile(this.file, "rw");
+        this.channel = this.raf.getChannel();
+        load();
+    }
+
+    /**
+     * Computes the fingerprint of a message from all of its headers, the Message-ID among them,
+     * and its size.  The server reports the size without sending the body, so messages still on
+     * the mail server are checked before they are fetched, and a spooled message, whose size is
+     * that of the content fetched, gets the same fingerprint it had on the server.  The body itself
+     * is not hashed: two messages with the same headers and size count as the same message, which
+     * given the Message-ID and Date headers only happens for resends of the same mail.
+     */
+    public static byte[] fingerprint(Message message) throws MessagingException, IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+
+        Enumeration<?> headers = message.getAllHeaders();
+        while (headers.hasMoreElements()) {
+            Header header = (Header) headers.nextElement();
+            digest.update(String.valueOf(header.getName()).getBytes(UTF8));
+            digest.update((byte) ':');
+            digest.update(String.valueOf(header.getValue()).getBytes(UTF8));
+            digest.update((byte) '\n');
+        }
+        digest.update((byte) '\n');
+
+        int size = message instanceof SpooledMessage ? ((SpooledMessage) message).getRawSize() : message.getSize();
+        digest.update(String.valueOf(size).getBytes(ASCII));
+        return digest.digest();
+    }
+
+    /**
+     * @return the id recorded for the fingerprint, {@link #IN_DOUBT} if the outcome of its
+     *         submission is not known, or null if it was never submitted
+     */
+    public synchronized String lookup(byte[] fingerprint) throws IOException {
+        long key = keyOf(fingerprint);
+        int mask = this.keys.length - 1;
+        byte[] stored = new byte[DIGEST_SIZE];
+
+        for (int slot = slotOf(key, mask); this.keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (this.keys[slot] != key) continue;
+
+            ByteBuffer entry = readEntry(this.offsets[slot]);
+            entry.get(stored);
+            if (MessageDigest.isEqual(stored, fingerprint)) {
+                byte[] id = new byte[entry.get() & 0xff];
+                entry.get(id);
+                return new String(id, ASCII);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the id of the record created for a message.  A later entry for the same fingerprint
+     * replaces an earlier one.  The entry is durable with the next {@link #sync()}.
+     */
+    public synchronized void put(byte[] fingerprint, String id) throws IOException {
+        byte[] idBytes = id.getBytes(ASCII);
+        if (fingerprint.length != DIGEST_SIZE || idBytes.length > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Invalid fingerprint entry for " + id);
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(DIGEST_SIZE + 1 + idBytes.length + 4);
+        entry.put(fingerprint).put((byte) idBytes.length).put(idBytes);
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 0, entry.position());
+        entry.putInt((int) crc.getValue());
+        entry.flip();
+
+        long offset = this.size;
+        long position = offset;
+        while (entry.hasRemaining()) {
+            position += this.channel.write(entry, position);
+        }
+        this.size = position;
+        index(keyOf(fingerprint), offset, fingerprint);
+    }
+
+    /**
+     * Forces the entries added so far to disk
+     */
+    public synchronized void sync() throws IOException {
+        this.channel.force(false);
+    }
+
+    public synchronized int size() {
+        return this.count;
+    }
+
+    public synchronized void close() throws IOException {
+        this.raf.close();
+    }
+
+    private void load() throws IOException {
+        long end = this.channel.size();
+        long offset = 0;
+
+        while (offset < end) {
+            try {
+                ByteBuffer entry = readEntry(offset);
+                byte[] fingerprint = new byte[DIGEST_SIZE];
+                entry.get(fingerprint);
+                index(keyOf(fingerprint), offset, null);
+                offset += entry.capacity();
+            } catch (EOFException eof) {
+                logger.warn(pTORN_RECORD + this.file + " at offset " + offset);
+                this.channel.truncate(offset);
+                this.channel.force(true);
+                break;
+            }
+        }
+        this.size = offset;
+    }
+
+    /**
+     * @return the entry at <code>offset</code>, positioned at its fingerprint
+     * @throws EOFException if the entry is incomplete or corrupt
+     */
+    private ByteBuffer readEntry(long offset) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(DIGEST_SIZE + 1);
+        readFully(offset, head);
+        int idLength = head.get(DIGEST_SIZE) & 0xff;
+
+        ByteBuffer entry = ByteBuffer.allocate(DIGEST_SIZE + 1 + idLength + 4);
+        readFully(offset, entry);
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), 0, DIGEST_SIZE + 1 + idLength);
+        if (entry.getInt(DIGEST_SIZE + 1 + idLength) != (int) crc.getValue()) throw new EOFException();
+
+        entry.rewind();
+        return entry;
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = this.channel.read(buffer, position);
+            if (n < 0) throw new EOFException();
+            position += n;
+        }
+    }
+
+    /**
+     * Points the slot of the fingerprint at a new entry, replacing the slot of an earlier entry with
+     * the same fingerprint.  While loading, where a full comparison would read every entry back, only
+     * the 64 bit keys are compared.
+     */
+    private void index(long key, long offset, byte[] fingerprint) throws IOException {
+        if ((this.count + 1) * 4L > this.keys.length * 3L) grow();
+
+        int mask = this.keys.length - 1;
+        int slot = slotOf(key, mask);
+        byte[] stored = new byte[DIGEST_SIZE];
+        while (this.keys[slot] != 0) {
+            if (this.keys[slot] == key) {
+                boolean same = true;
+                if (fingerprint != null) {
+                    readEntry(this.offsets[slot]).get(stored);
+                    same = MessageDigest.isEqual(stored, fingerprint);
+                }
+                if (same) {
+                    this.offsets[slot] = offset;
+                    return;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = key;
+        this.offsets[slot] = offset;
+        this.count++;
+    }
+
+    private void grow() {
+        long[] oldKeys = this.keys;
+        long[] oldOffsets = this.offsets;
+        this.keys = new long[oldKeys.length * 2];
+        this.offsets = new long[oldKeys.length * 2];
+
+        int mask = this.keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = slotOf(oldKeys[i], mask);
+            while (this.keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.keys[slot] = oldKeys[i];
+            this.offsets[slot] = oldOffsets[i];
+        }
+    }
+
+    private static long keyOf(byte[] fingerprint) {
+        long key = ByteBuffer.wrap(fingerprint, 0, 8).getLong();
+        return key == 0 ? 1 : key;
+    }
+
+    private static int slotOf(long key, int mask) {
+        // The key is a slice of a SHA-256 digest and already well mixed
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return this.file.getPath();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.util.Metrics;
+
+/**
+ * Crash safe spool of raw messages between the mail server and Salesforce.
+ *
+ * The spool is an append-only journal of DATA records, each holding one message as fetched from
+ * the mail server, and ACK records, written once a message has been handled.  Appends are made
+ * durable in groups with {@link #sync()}, after which the messages may be removed from the mail
+ * server.  On start the journal is replayed, every DATA record without an ACK is pending again,
+ * and a record torn by a crash is cut off.
+ *
+ * Each record is laid out as type (1 byte), id (8 bytes), payload length (4 bytes), payload and a
+ * CRC32 of everything before it.  Once nothing is pending the journal is truncated, and when most
+ * of a large journal has been acknowledged the pending records are copied to a new one.
+ */
+public class MessageSpool {
+    private static final byte DATA = 'D';
+    private static final byte ACK = 'A';
+    private static final int HEADER_SIZE = 1 + 8 + 4;
+    private static final int TRAILER_SIZE = 4;
+    static final long COMPACT_THRESHOLD = 64 * 1024 * 1024;
+
+    private static final String pFILE_EXT = ".spool";
+    private static final String pERROR_DIR = "error";
+    private static final String pTORN_RECORD = "Discarding incomplete record at the end of spool ";
+    private static final String pREPLAYED = " message(s) left in spool ";
+
+    public static final String METRIC_SPOOL_PENDING = "spool.pending.";
+    public static final String METRIC_SPOOL_BYTES = "spool.bytes.";
+    public static final String METRIC_SPOOL_SYNC = "spool.sync.ms.";
+
+    static Logger logger = Logger.getLogger(MessageSpool.class.getName());
+
+    private final String name;
+    private final File file;
+    private final File errorDirectory;
+    private final long compactThreshold;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long size = 0;
+    private long liveBytes = 0;
+    private long nextId = 1;
+    // Offset and length of the DATA record of every pending message, in spool order
+    private final LinkedHashMap<Long, long[]> pending = new LinkedHashMap<Long, long[]>();
+
+    /**
+     * @param directory Directory holding the spool files
+     * @param mailboxId Unique name of the mailbox the spool is for
+     * @throws IOException if the spool can not be opened or replayed
+     */
+    public MessageSpool(File directory, String mailboxId) throws IOException {
+        this(directory, mailboxId, COMPACT_THRESHOLD);
+    }
+
+    /**
+     * @param compactThreshold Size in bytes above which a mostly acknowledged journal is rewritten
+     */
+    MessageSpool(File directory, String mailboxId, long compactThreshold) throws IOException {
+        this.compactThreshold = compactThreshold;
+        String name = mailboxId.replaceAll("[^A-Za-z0-9._-]", "_");
+        this.name = name;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        this.file = new File(directory, name + pFILE_EXT);
+        this.errorDirectory = new File(directory, pERROR_DIR + File.separator + name);
+        open();
+        replay();
+        if (this.pending.size() > 0) {
+            logger.info(this.pending.size() + pREPLAYED + this.file);
+        }
+        recordMetrics();
+    }
+
+    /**
+     * Writes a message to the spool.  It is only durable once {@link #sync()} has returned.
+     *
+     * @return the id of the message in the spool
+     */
+    public synchronized long append(byte[] message) throws IOException {
+        long id = this.nextId++;
+        long offset = this.size;
+        long length = write(DATA, id, message);
+        this.pending.put(id, new long[] { offset, length });
+        this.liveBytes += length;
+        return id;
+    }
+
+    /**
+     * Forces everything appended so far to disk and wakes up the submitter.
+     */
+    public synchronized void sync() throws IOException {
+        long start = System.currentTimeMillis();
+        this.channel.force(false);
+        Metrics.record(METRIC_SPOOL_SYNC + this.name, System.currentTimeMillis() - start);
+        recordMetrics();
+        notifyAll();
+    }
+
+    /**
+     * Marks a message as handled.  The acknowledgement is durable with the next {@link #sync()}.
+     */
+    public synchronized void ack(long id) throws IOException {
+        long[] location = this.pending.remove(id);
+        if (location == null) return;
+
+        this.liveBytes -= location[1];
+        write(ACK, id, new byte[0]);
+    }
+
+    /**
+     * Copies a message that Salesforce did not accept to the error directory of the spool and
+     * acknowledges it.
+     *
+     * @return the file the message was written to
+     */
+    public synchronized File reject(long id) throws IOException {
+        byte[] message = read(id);
+        if (message == null) return null;
+
+        if (!this.errorDirectory.exists() && !this.errorDirectory.mkdirs()) {
+            throw new IOException("Unable to create spool error directory " + this.errorDirectory);
+        }
+        File target = new File(this.errorDirectory, System.currentTimeMillis() + "-" + id + ".eml");
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            out.write(message);
+            out.getFD().sync();
+        }
+        ack(id);
+        return target;
+    }
+
+    /**
+     * @return the ids of up to <code>max</code> pending messages, oldest first
+     */
+    public synchronized long[] getPending(int max) {
+        long[] ids = new long[Math.min(max, this.pending.size())];
+        Iterator<Long> it = this.pending.keySet().iterator();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = it.next();
+        }
+        return ids;
+    }
+
+    public synchronized int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * @return the message spooled under <code>id</code>, or null if it has been acknowledged
+     */
+    public synchronized byte[] read(long id) throws IOException {
+        long[] location = this.pending.get(id);
+        if (location == null) return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) location[1] - HEADER_SIZE - TRAILER_SIZE);
+        readFully(location[0] + HEADER_SIZE, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Waits until more messages have been synced to the spool or the time is up.
+     */
+    public synchronized void await(long millis) throws InterruptedException {
+        if (millis > 0) wait(millis);
+    }
+
+    /**
+     * Same as {@link #await(long)}, but returns right away if messages are pending.
+     */
+    public synchronized void awaitPending(long millis) throws InterruptedException {
+        if (this.pending.isEmpty()) await(millis);
+    }
+
+    /**
+     * Truncates the journal once nothing is pending any more, or rewrites it with just the pending
+     * messages when they take up less than half of a large journal.
+     */
+    public synchronized void compact() throws IOException {
+        if (this.pending.isEmpty()) {
+            if (this.size == 0) return;
+            this.channel.truncate(0);
+            this.channel.force(true);
+            this.size = 0;
+        } else if (this.size > this.compactThreshold && this.liveBytes < this.size / 2) {
+            File tmp = new File(this.file.getPath() + ".tmp");
+            long newSize = 0;
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                out.setLength(0);
+                FileChannel target = out.getChannel();
+                for (long[] location : this.pending.values()) {
+                    long copied = 0;
+                    while (copied < location[1]) {
+                        copied += this.channel.transferTo(location[0] + copied, location[1] - copied, target);
+                    }
+                    location[0] = newSize;
+                    newSize += location[1];
+                }
+                target.force(true);
+            }
+            close();
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            open();
+        }
+        recordMetrics();
+    }
+
+    public synchronized void close() throws IOException {
+        if (this.raf != null) {
+            this.raf.close();
+            this.raf = null;
+            this.channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        this.raf = new RandomAccessFile(this.file, "rw");
+        this.channel = this.raf.getChannel();
+        this.size = this.channel.size();
+    }
+
+    private long write(byte type, long id, byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length + TRAILER_SIZE);
+        buffer.put(type).putLong(id).putInt(payload.length).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        long position = this.size;
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+        long length = position - this.size;
+        this.size = position;
+        return length;
+    }
+
+    private void replay() throws IOException {
+        long offset = 0;
+        long end = this.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        while (offset < end) {
+            try {
+                header.clear();
+                readFully(offset, header);
+                header.flip();
+                byte type = header.get();
+                long id = header.getLong();
+                int length = header.getInt();
+                if ((type != DATA && type != ACK) || length < 0 || offset + HEADER_SIZE + length + TRAILER_SIZE > end) {
+                    throw new EOFException();
+                }
+
+                ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length + TRAILER_SIZE);
+                readFully(offset, record);
+                CRC32 crc = new CRC32();
+                crc.update(record.array(), 0, HEADER_SIZE + length);
+                if (record.getInt(HEADER_SIZE + length) != (int) crc.getValue()) throw new EOFException();
+
+                long recordLength = record.capacity();
+                if (type == DATA) {
+                    this.pending.put(id, new long[] { offset, recordLength });
+                    this.liveBytes += recordLength;
+                } else {
+                    long[] location = this.pending.remove(id);
+                    if (location != null) this.liveBytes -= location[1];
+                }
+                this.nextId = Math.max(this.nextId, id + 1);
+                offset += recordLength;
+            } catch (EOFException eof) {
+                logger.warn(pTORN_RECORD + this.file + " at offset " + offset);
+                this.channel.truncate(offset);
+                this.channel.force(true);
+                break;
+            }
+        }
+        this.size = offset;
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = this.channel.read(buffer, position);
+            if (n < 0) throw new EOFException();
+            position += n;
+        }
+    }
+
+    private void recordMetrics() {
+        Metrics.record(METRIC_SPOOL_PENDING + this.name, this.pending.size());
+        Metrics.record(METRIC_SPOOL_BYTES + this.name, this.size);
+    }
+
+    @Override
+    public String toString() {
+        return this.file.getPath();
+    }
+}
@@ -43,6 +43,7 @@ public abstract class Notification {
 
     public final static String SFDC_SERVICE_DOWN = "Unable to connect to salesforce.com service.";
     public final static String SFDC_API_ERROR = "Unable to process mail message.";
+    public final static String SFDC_IN_DOUBT = "Mail message may already have been submitted.";
     public final static String UNKNOWN_ERROR = "Unknown error while processing mail message.";
 
     public static final String SEVERITY_ERROR = "ERROR";
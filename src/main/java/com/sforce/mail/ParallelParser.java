@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.mail.Message;
+
+import com.sforce.soap.partner.wsc.HandledEmailMessage;
+
+/**
+ * Parses messages on the shared parser pool, a window of messages ahead of the caller, and hands
+ * the results back in the order of the messages.
+ */
+abstract class ParallelParser {
+
+    /**
+     * What became of one message
+     */
+    static class Result {
+        final Message message;
+        byte[] fingerprint;
+        boolean duplicate = false;
+        // Set with duplicate if the earlier submission timed out
+        boolean inDoubt = false;
+        ParsedMessage parsed;
+        HandledEmailMessage record;
+        // Set if the message could not be parsed
+        Exception failure;
+
+        Result(Message message) {
+            this.message = message;
+        }
+    }
+
+    private final ExecutorService pool;
+    private final int windowSize;
+    private final Message[] messages;
+    private int next;
+    private final int end;
+    private final ArrayDeque<Future<Result>> window = new ArrayDeque<Future<Result>>();
+
+    /**
+     * @param messages The messages, of which those in [from, to) are parsed
+     */
+    ParallelParser(Message[] messages, int from, int to) {
+        ProcessingPools pools = ProcessingPools.getInstance();
+        this.pool = pools.getParser();
+        this.windowSize = pools.getParserParallelism() * 2;
+        this.messages = messages;
+        this.next = from;
+        this.end = to;
+    }
+
+    /**
+     * Parses the message of the result, on a thread of the parser pool
+     */
+    protected abstract void parse(Result result) throws Exception;
+
+    boolean hasNext() {
+        return !this.window.isEmpty() || this.next < this.end;
+    }
+
+    /**
+     * @return the result for the next message, waiting for it to be parsed
+     */
+    Result next() throws InterruptedException {
+        while (this.window.size() < this.windowSize && this.next < this.end) {
+            final Result result = new Result(this.messages[this.next++]);
+            this.window.add(this.pool.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    try {
+                        parse(result);
+                    } catch (Exception e) {
+                        result.failure = e;
+                    }
+                    return result;
+                }
+            }));
+        }
+
+        try {
+            return this.window.remove().get();
+        } catch (ExecutionException ee) {
+            // parse catches exceptions, only errors get here
+            if (ee.getCause() instanceof Error) throw (Error) ee.getCause();
+            throw new IllegalStateException(ee.getCause());
+        }
+    }
+
+    /**
+     * Stops parsing ahead, releasing the messages that were parsed but not taken
+     */
+    void close() {
+        for (Future<Result> future : this.window) {
+            if (future.cancel(false)) continue;
+            try {
+                Result result = future.get();
+                if (result.parsed != null) result.parsed.release();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | CancellationException e) {
+                // nothing to release
+            }
+        }
+        this.window.clear();
+    }
+}
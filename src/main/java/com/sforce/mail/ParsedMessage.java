@@ -31,12 +31,12 @@
 package com.sforce.mail;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -52,6 +52,7 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
@@ -75,16 +76,27 @@ public class ParsedMessage {
     private static final String pCONTENT_TYPE_WARNING = "Content Type Lookup Failed.  Attempting to retrieve content type from header data.";
     private static final String charactersToReplace = "\"*:/\\?<>|";
     private static final String replacementCharacters = "_________";
-    private static final DateFormat unsafeFormat = new SimpleDateFormat("yyyyMMdd_HHmmssSSS");
+    // SimpleDateFormat is not thread safe and messages are parsed in parallel
+    private static final ThreadLocal<DateFormat> attachmentDateFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyyMMdd_HHmmssSSS");
+        }
+    };
     private static final String PROXY_TEXT = "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\"><html><head><title>@@FILENAME@@</title></head><body><a href=\"@@FILENAME@@\">@@FILENAME@@</a></body></html>";
     private static final String PROXY_EXT = ".html";
 
     private static final String DEFAULT_CONTENT_TYPE = "TEXT/PLAIN;";
+    private static final int RECORD_OVERHEAD = 512;
+    private static final int ELEMENT_OVERHEAD = 64;
+    // Attachments above this many KB are buffered in a temporary file
+    private static final long DEFAULT_MEMORY_THRESHOLD = 1024;
 
     private EmailHeaders headers;
     private EmailFrom from;
     private EmailSubject subject;
     private EmailBody body;
+    private byte[] fingerprint;
 
     private static final String ATTACHMENT_PROCESSING_DEFAULT = "DEFAULT";
 
@@ -118,11 +130,38 @@ public class ParsedMessage {
     static Logger logger = Logger.getLogger(ParsedMessage.class.getName());
 
     private static final String pCONTENT_TYPE = "Content-Type";
+    private static final String pSTREAMING_FAILED = "Streaming parse failed, parsing with JavaMail instead: ";
+    private static final String pATTACHMENT_READ_FAILED = "Unable to read attachment ";
+    // What JavaMail assumes for text without a charset parameter
+    private static final String DEFAULT_CHARSET = "us-ascii";
 
     private static String getAttachUrl() {
         return SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pATTACH, ConfigParameters.pATTACH_URL);
     }
 
+    private static boolean isStreamingParser() {
+        return Boolean.parseBoolean(SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN,
+            ConfigParameters.pSTREAMING_PARSER));
+    }
+
+    /**
+     * @return the memoryThreshold setting of the attachments section, in bytes
+     */
+    private static long getAttachMemoryThreshold() {
+        String threshold = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pATTACH, ConfigParameters.pATTACH_MEMORY_THRESHOLD);
+        if (threshold == null) return DEFAULT_MEMORY_THRESHOLD * 1024;
+
+        try {
+            long kb = Long.parseLong(threshold.trim());
+            if (kb < 0) throw new NumberFormatException();
+            return kb * 1024;
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid argument for " + ConfigParameters.pATTACH_MEMORY_THRESHOLD + " setting, defaulted to "
+                + DEFAULT_MEMORY_THRESHOLD + " (" + threshold + ")");
+            return DEFAULT_MEMORY_THRESHOLD * 1024;
+        }
+    }
+
     private static double getAttachMaxSize() {
         String size = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pATTACH, ConfigParameters.pATTACH_SIZE);
         double dSize = Double.MAX_VALUE;
@@ -171,6 +210,17 @@ public class ParsedMessage {
         return this.from;
     }
 
+    /**
+     * @return the fingerprint the message is recorded under once submitted, see MessageFingerprintIndex
+     */
+    public byte[] getFingerprint() {
+        return this.fingerprint;
+    }
+
+    public void setFingerprint(byte[] fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
     public HandledEmailMessage getEmailMessage() {
         HandledEmailMessage email = new HandledEmailMessage();
         email.setHeaders(this.headers.getEmailMessageHeaders());
@@ -192,19 +242,82 @@ public class ParsedMessage {
     }
 
     /**
-     * @return HashMap <String, ByteBuffer>
+     * Estimates how many bytes this message adds to a handleEmailMessage request: the subject, bodies
+     * and headers as escaped UTF-8, plus the base64 encoded attachments that are sent inline, plus
+     * some allowance for the XML around each element.  Oversized attachments are not sent and do not
+     * count.
+     *
+     * @return estimated serialized size in bytes
+     */
+    public long getEstimatedSize() {
+        long size = RECORD_OVERHEAD + serializedLength(this.subject.subject) + serializedLength(this.body.textMessage)
+            + serializedLength(this.body.htmlMessage);
+
+        for (int i = 0; i < this.headers.headers.length; i++) {
+            size += ELEMENT_OVERHEAD + serializedLength(this.headers.headers[i].headerName)
+                + serializedLength(this.headers.headers[i].headerValue);
+        }
+
+        EmailBody.EmailAttachment[] attachments = this.body.getEmailAttachments();
+        for (int i = 0; i < attachments.length; i++) {
+            size += ELEMENT_OVERHEAD + serializedLength(attachments[i].name) + serializedLength(attachments[i].getContentType())
+                + (attachments[i].size() + 2L) / 3 * 4;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes the value takes in the request as UTF-8, with the characters
+     *         that XML escapes counted at the length of their entity
+     */
+    static long serializedLength(String value) {
+        if (value == null) return 0;
+
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&') {
+                length += 5;
+            } else if (c == '<' || c == '>') {
+                length += 4;
+            } else if (c == '"') {
+                length += 6;
+            } else if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                // A surrogate pair takes four bytes, two for each half
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return HashMap <String, AttachmentBuffer>, valid until the message is released
      */
-    public HashMap<String,ByteBuffer> getOversizedAttachments() {
-        HashMap<String,ByteBuffer> map = new HashMap<String, ByteBuffer>();
+    public HashMap<String,AttachmentBuffer> getOversizedAttachments() {
+        HashMap<String,AttachmentBuffer> map = new HashMap<String, AttachmentBuffer>();
         EmailBody.EmailAttachment[] attachments = this.body.getOversizedAttachments();
         if (attachments == null || attachments.length == 0) return map;
 
         for (int i = 0; i < attachments.length; i++) {
-            map.put(attachments[i].getFilename(), ByteBuffer.wrap(attachments[i].content));
+            map.put(attachments[i].getFilename(), attachments[i].buffer);
         }
         return map;
     }
 
+    /**
+     * Frees the buffers and spill files of the oversized attachments
+     */
+    public void release() {
+        EmailBody.EmailAttachment[] attachments = this.body.getOversizedAttachments();
+        for (int i = 0; i < attachments.length; i++) {
+            attachments[i].release();
+        }
+    }
+
     @Override
     public String toString() {
         StringBuffer buff = new StringBuffer();
@@ -217,31 +330,7 @@ public class ParsedMessage {
 
 
     private static String cleanString(String value) {
-
-        if (value == null) return value;
-
-        StringBuffer buff = new StringBuffer();
-
-        for (int i = 0; i < value.length(); i++) {
-            char c = value.charAt(i);
-
-            switch (c) {
-            case '\n': // Line Feed is OK
-            case '\r': // Carriage Return is OK
-            case '\t': // Tab is OK
-                // These characters are specifically OK, as exceptions to the general rule below:
-                buff.append(c);
-                break;
-            default:
-                if (((c >= 0x20) && (c <= 0xD7FF)) || ((c >= 0xE000) && (c <= 0xFFFD))) {
-                    buff.append(c);
-                }
-            // For chars outside these ranges (such as control chars),
-            // do nothing; it's not legal XML to print these chars,
-            // even escaped
-            }
-        }
-        return buff.toString();
+        return TextUtil.removeInvalidXmlChars(value);
     }
 
 
@@ -250,21 +339,30 @@ public class ParsedMessage {
      */
     private static class EmailHeaders {
         private final EmailHeader[] headers;
+        private NameValuePair[] headerRecords;
+
         private EmailHeaders(Message message) throws MessagingException {
             ArrayList<EmailHeader> headerList = new ArrayList<EmailHeader>();
+            HeaderFilter filter = HeaderFilter.getInstance();
 
             Enumeration enumHeaders = message.getAllHeaders();
             while(enumHeaders.hasMoreElements()) {
                 Header header = (Header)enumHeaders.nextElement();
-                String value = header.getValue();
                 String name = header.getName();
-                EmailHeader h = new EmailHeader(name, value);
+                if (!filter.accept(name)) continue;
+
+                EmailHeader h = new EmailHeader(HeaderFilter.canonicalName(name), header.getValue());
                 headerList.add(h);
             }
             this.headers = headerList.toArray(new EmailHeader[headerList.size()]);
         }
 
+        /**
+         * Values are decoded the first time the records are asked for, and kept for later calls
+         */
         public NameValuePair[] getEmailMessageHeaders() {
+            if (this.headerRecords != null) return this.headerRecords;
+
             NameValuePair[] headerRecords = new NameValuePair[this.headers.length];
             for (int i = 0; i < this.headers.length; i++) {
                 headerRecords[i] = new NameValuePair();
@@ -277,6 +375,7 @@ public class ParsedMessage {
                 headerRecords[i].setValue(decoded);
 
             }
+            this.headerRecords = headerRecords;
             return headerRecords;
         }
 
@@ -393,8 +492,9 @@ public class ParsedMessage {
             private final String fromName;
             private final String fromAddress;
             private EmailAddress(String name, String address) {
-                this.fromName = cleanString(name);
-                this.fromAddress = cleanString(address);
+                // Cleaned by the caller
+                this.fromName = name;
+                this.fromAddress = address;
             }
             @Override
             public String toString() {
@@ -440,38 +540,33 @@ public class ParsedMessage {
             this.attachments = new ArrayList<EmailAttachment>();
             this.largeAttachments = new ArrayList<EmailAttachment>();
 
+            if (isStreamingParser() && message instanceof MimeMessage) {
+                try {
+                    parseStreaming((MimeMessage)message);
+                    return;
+                } catch (AttachmentReadException are) {
+                    releaseAttachments();
+                    throw are;
+                } catch (MessagingException | IOException e) {
+                    logger.warn(pSTREAMING_FAILED + e);
+                    releaseAttachments();
+                }
+            }
+
             try {
                 Part[] parts = flattenMessageParts(message);
-                StringBuffer text = new StringBuffer();
-                StringBuffer html = new StringBuffer();
+                StringBuilder text = new StringBuilder();
+                StringBuilder html = new StringBuilder();
                 for (int i = 0; i < parts.length; i++) {
-                    Part part = parts[i];
-                    String deposition = part.getDisposition();
-                    if (deposition != null && deposition.equalsIgnoreCase(Part.ATTACHMENT)) {
-                        addAttachment(part);
-                    } else {
-                        String type = ParsedMessage.getPartContentType(part);
-
-                        if (type != null) {
-                            type = type.toLowerCase();
-                            if (type.startsWith(CONTENT_TYPE_TEXT)) {
-                                Object content = part.getContent();
-                                text.append(content);
-                                text.append("\n\n");
-                            } else if (type.startsWith(CONTENT_TYPE_HTML)) {
-                                Object content = part.getContent();
-                                html.append(content);
-                                html.append("\n\n");
-                            } else {
-                                // Add it as a attachment if we do not recognize the contentType
-                                addAttachment(part);
-                            }
-                        }
-                    }
+                    addPart(parts[i], null, text, html);
                 }
 
                 this.textMessage = cleanString(text.toString().trim());
                 this.htmlMessage = cleanString(html.toString().trim());
+            } catch (AttachmentReadException are) {
+                // Sending the message without the attachment, or as raw text, would lose it silently
+                releaseAttachments();
+                throw are;
             } catch (MessagingException me) {
                 this.textMessage = getRawContent(message);
                 this.htmlMessage = "";
@@ -481,21 +576,114 @@ public class ParsedMessage {
             }
         }
 
+        private void releaseAttachments() {
+            this.attachments.clear();
+            for (EmailAttachment attach : this.largeAttachments) attach.release();
+            this.largeAttachments.clear();
+        }
+
+        /**
+         * Parses the body in one pass over the raw message with the StreamingMimeParser, decoding text
+         * parts straight into the body text and copying attachments as they are read.  The outcome is
+         * the same as that of the JavaMail parsing, which is still used when this fails.
+         */
+        private void parseStreaming(MimeMessage message) throws MessagingException, IOException {
+            final StringBuilder text = new StringBuilder();
+            final StringBuilder html = new StringBuilder();
+
+            try (InputStream raw = message.getRawInputStream()) {
+                StreamingMimeParser.parse(message, raw, new StreamingMimeParser.PartHandler() {
+                    @Override
+                    public void part(Part part, InputStream content) throws MessagingException, IOException {
+                        addPart(part, content, text, html);
+                    }
+                });
+            }
+
+            this.textMessage = cleanString(text.toString().trim());
+            this.htmlMessage = cleanString(html.toString().trim());
+        }
+
+        /**
+         * @param content The decoded content of the part, or null to get it from the part itself
+         */
+        private void addPart(Part part, InputStream content, StringBuilder text, StringBuilder html)
+                throws MessagingException, IOException {
+            String deposition = part.getDisposition();
+            if (deposition != null && deposition.equalsIgnoreCase(Part.ATTACHMENT)) {
+                addAttachment(part, content);
+            } else {
+                String type = ParsedMessage.getPartContentType(part);
+
+                if (type != null) {
+                    type = type.toLowerCase();
+                    if (type.startsWith(CONTENT_TYPE_TEXT)) {
+                        appendText(text, part, content);
+                        text.append("\n\n");
+                    } else if (type.startsWith(CONTENT_TYPE_HTML)) {
+                        appendText(html, part, content);
+                        html.append("\n\n");
+                    } else {
+                        // Add it as a attachment if we do not recognize the contentType
+                        addAttachment(part, content);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Appends the text of a part, decoded with its charset the way JavaMail's text handler does.
+         */
+        private static void appendText(StringBuilder out, Part part, InputStream content)
+                throws MessagingException, IOException {
+            if (content == null) {
+                out.append(part.getContent());
+                return;
+            }
+
+            String charset = new ContentType(ParsedMessage.getPartContentType(part)).getParameter("charset");
+            if (charset == null) charset = DEFAULT_CHARSET;
+
+            Reader reader = new InputStreamReader(content, MimeUtility.javaCharset(charset));
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                out.append(buffer, 0, read);
+            }
+        }
+
         protected void addAttachment(Part part) throws MessagingException, IOException {
-            EmailAttachment attach = new EmailAttachment(part);
+            addAttachment(part, null);
+        }
+
+        private void addAttachment(Part part, InputStream content) throws MessagingException, IOException {
+            EmailAttachment attach = new EmailAttachment(part, content);
             double maxSize = getAttachMaxSize();
             if (attach.size() >= maxSize && maxSize >= 0) {
                 logger.info("Removing Large Attachment from Email");
-                String filename = makeAttachmentFilename(attach);
+                String digest = attach.getBuffer().getDigest();
+                String proxyName;
+                String filename;
+                if (digest != null) {
+                    // Content addressed, see AttachmentStore
+                    proxyName = attach.getFilename();
+                    filename = AttachmentStore.getBlobName(digest, proxyName);
+                } else {
+                    filename = makeAttachmentFilename(attach);
+                    proxyName = filename;
+                }
                 attach.setFilename(filename);
                 this.largeAttachments.add(attach);
                 //Create a small attachment that Acts as a Proxy to the Large attachment being stored externally.
-                EmailAttachment proxy = new EmailAttachment(filename + PROXY_EXT, getAttachUrl() + filename,
+                EmailAttachment proxy = new EmailAttachment(proxyName + PROXY_EXT, getAttachUrl() + filename,
                         CONTENT_TYPE_HTML);
                 this.attachments.add(proxy);
             } else if (attach.size() == 0) {
                 logger.warn("Attachment cannot be empty, skipping file: " + attach.getFilename());
+                attach.release();
             } else {
+                // Sent inline, the SOAP record needs it as one array
+                attach.materialize();
                 this.attachments.add(attach);
             }
         }
@@ -505,10 +693,7 @@ public class ParsedMessage {
             String filename = TextUtil.removeWhitespace(att.getFilename());
             filename = TextUtil.translate(filename, charactersToReplace, replacementCharacters);
 
-            String dateTime;
-            synchronized(unsafeFormat) {
-                dateTime = unsafeFormat.format(new Date(dateMS));
-            }
+            String dateTime = attachmentDateFormat.get().format(new Date(dateMS));
             filename = dateTime.substring(0,8) + File.separator + dateTime + "_" + filename;
             return  filename.replace('\\', '/');
         }
@@ -612,8 +797,42 @@ public class ParsedMessage {
         protected static class EmailAttachment {
             private final String contentType;
             private String name;
-            private final byte[] content;
-            public int size() { return content.length; }
+            // Either the content itself, or the buffer of an attachment read from the message
+            private byte[] content;
+            private AttachmentBuffer buffer;
+            public long size() { return this.buffer != null ? this.buffer.size() : this.content.length; }
+
+            /**
+             * Replaces the buffer by the content it holds
+             */
+            private void materialize() throws IOException {
+                if (this.buffer == null) return;
+                try {
+                    this.content = this.buffer.toByteArray();
+                } finally {
+                    this.buffer.release();
+                    this.buffer = null;
+                }
+            }
+
+            private void release() {
+                if (this.buffer != null) this.buffer.release();
+            }
+
+            /**
+             * @return the buffer of the content, into which content given as an array is moved first
+             */
+            private AttachmentBuffer getBuffer() throws IOException {
+                if (this.buffer == null) {
+                    AttachmentBuffer contentBuffer = new AttachmentBuffer(getAttachMemoryThreshold(),
+                        AttachmentStore.isEnabled());
+                    contentBuffer.write(this.content);
+                    contentBuffer.close();
+                    this.buffer = contentBuffer;
+                    this.content = null;
+                }
+                return this.buffer;
+            }
 
             protected static String getFileName(Part part) throws MessagingException {
                 String fname = null;
@@ -724,15 +943,15 @@ public class ParsedMessage {
 
             /**
              *
-             * @param part
+             * @param content The decoded content of the part
              * @return array of bytes representing the embedded content in a part.
              * @throws MessagingException
              * @throws IOException
              */
-            private byte[] getEmbeddedContent(Part part) throws MessagingException, IOException {
+            private byte[] getEmbeddedContent(InputStream content) throws MessagingException, IOException {
 
                 try {
-                    ParsedMessage msg = new ParsedMessage(new MimeMessage(null,part.getInputStream()));
+                    ParsedMessage msg = new ParsedMessage(new MimeMessage(null, content));
                     StringBuffer sbMsg = new StringBuffer(1024);
                     String sFileExtension;
 
@@ -747,6 +966,8 @@ public class ParsedMessage {
 
                     this.name = cleanFilename(msg.subject.subject);
                     this.name = this.name + sFileExtension;
+                    // Only the text of the embedded message is kept
+                    msg.release();
                     return sbMsg.toString().getBytes();
                 } catch (MessagingException me) {
                     logger.error(me, me);
@@ -766,32 +987,20 @@ public class ParsedMessage {
                 this.content = html.getBytes();
             }
 
-            private EmailAttachment(Part part) throws MessagingException, IOException {
+            /**
+             * @param content The decoded content of the part, or null to get it from the part itself
+             */
+            private EmailAttachment(Part part, InputStream content) throws MessagingException, IOException {
 
                 this.contentType = ParsedMessage.getPartContentType(part);
                 byte[] attachmentContent = null;
                 try {
                     if (isEmbeddedMessage(part)) {
-                        attachmentContent = getEmbeddedContent(part);
+                        attachmentContent = getEmbeddedContent(content != null ? content : part.getInputStream());
                     }
                     else {
 
                         this.name = getFileName(part);
-                        ByteArrayOutputStream bStream = new ByteArrayOutputStream();
-                        byte[] buffer = new byte[255];
-
-                        try {
-                            InputStream stream = part.getInputStream();
-                            int numRead = stream.read(buffer);
-                            while (numRead != -1) {
-                                bStream.write(buffer, 0, numRead);
-                                numRead = stream.read(buffer);
-                            }
-                        } catch (IOException ioe) {
-                            logger.error(ioe,ioe);
-                        }
-
-                        attachmentContent = bStream.toByteArray();
                     }
                 } catch (MessagingException me) {
                     logger.error(me, me);
@@ -799,6 +1008,35 @@ public class ParsedMessage {
                 }
 
                 this.content = attachmentContent;
+                if (attachmentContent == null) {
+                    this.buffer = readContent(part, content);
+                }
+            }
+
+            /**
+             * Copies the content of the part into a new buffer.  A buffer that could not be filled, because
+             * the part could not be read or spilling to disk failed, is released.
+             *
+             * @throws AttachmentReadException if the content could not be read completely
+             */
+            private AttachmentBuffer readContent(Part part, InputStream content) throws AttachmentReadException {
+                AttachmentBuffer attachmentBuffer = new AttachmentBuffer(getAttachMemoryThreshold(),
+                    AttachmentStore.isEnabled());
+                byte[] buffer = new byte[8192];
+
+                try {
+                    InputStream stream = content != null ? content : TransferDecoder.getInputStream(part);
+                    int numRead = stream.read(buffer);
+                    while (numRead != -1) {
+                        attachmentBuffer.write(buffer, 0, numRead);
+                        numRead = stream.read(buffer);
+                    }
+                    attachmentBuffer.close();
+                    return attachmentBuffer;
+                } catch (IOException | MessagingException | RuntimeException e) {
+                    attachmentBuffer.release();
+                    throw new AttachmentReadException(pATTACHMENT_READ_FAILED + this.name + ": " + e.getMessage(), e);
+                }
             }
 
             public String getFilename() {
@@ -820,5 +1058,15 @@ public class ParsedMessage {
         }
     }
 
-}
+    /**
+     * Thrown when the content of an attachment could not be read or buffered completely.  The message
+     * is not parsed any further, so that it goes to the error folder instead of being sent without it.
+     */
+    static class AttachmentReadException extends IOException {
+        private static final long serialVersionUID = 1L;
 
+        AttachmentReadException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
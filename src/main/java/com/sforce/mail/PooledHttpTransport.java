@@ -0,0 +1,281 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigParameters;
+import com.sforce.util.Metrics;
+import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.transport.Transport;
+import com.sforce.ws.util.Base64;
+
+/**
+ * WSC transport that reuses persistent connections to the Salesforce endpoint and compresses
+ * large requests.
+ *
+ * The request is buffered so that its size is known before it is sent.  Requests of at least
+ * compressionThreshold bytes are gzipped, smaller ones are sent as they are, and every request
+ * asks for a gzipped response.  Requests go out with a fixed Content-Length and responses are
+ * read to the end and closed without disconnecting, which lets the JDK keep the TLS connection
+ * alive and hand it to the next call.  Up to httpMaxConnections idle connections are kept per
+ * endpoint.
+ *
+ * The size of each request body, and the bytes actually written and read, are recorded in the
+ * soap.request.bytes, soap.request.wire.bytes and soap.response.wire.bytes metrics.
+ */
+public class PooledHttpTransport implements Transport {
+    public static final int defaultCompressionThreshold = 8192;
+    public static final int defaultMaxConnections = 10;
+
+    public static final String METRIC_REQUEST_BYTES = "soap.request.bytes";
+    public static final String METRIC_REQUEST_WIRE_BYTES = "soap.request.wire.bytes";
+    public static final String METRIC_RESPONSE_WIRE_BYTES = "soap.response.wire.bytes";
+
+    private static final String pGZIP = "gzip";
+    private static final String pSETTING_INVALID = "Invalid argument for X setting, defaulted to ";
+
+    static Logger logger = Logger.getLogger(PooledHttpTransport.class.getName());
+
+    private static final int compressionThreshold = getIntSetting(ConfigParameters.pCOMPRESSION_THRESHOLD, defaultCompressionThreshold);
+
+    private ConnectorConfig config;
+    private URL url;
+    private HashMap<String, String> headers;
+    private boolean compress;
+    private ByteArrayOutputStream request;
+    private boolean successful;
+
+    public PooledHttpTransport() {
+    }
+
+    /**
+     * Turns on HTTP keep-alive and sets how many idle connections the JDK keeps per endpoint, from the
+     * httpMaxConnections setting, unless they were given as system properties.  The JDK reads both
+     * once, when the first HTTP connection of the JVM is made, so this must be called at start-up
+     * before anything connects.
+     */
+    public static void configureKeepAlive() {
+        if (System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "true");
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                String.valueOf(Math.max(1, getIntSetting(ConfigParameters.pHTTP_MAX_CONNECTIONS, defaultMaxConnections))));
+        }
+    }
+
+    /**
+     * @return the request size from which requests are gzipped, negative if they never are
+     */
+    public static int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @Override
+    public void setConfig(ConnectorConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public OutputStream connect(String uri, String soapAction) throws IOException {
+        if (soapAction == null) soapAction = "";
+
+        HashMap<String, String> header = new HashMap<String, String>();
+        header.put("SOAPAction", "\"" + soapAction + "\"");
+        header.put("Content-Type", "text/xml; charset=UTF-8");
+        header.put("Accept", "text/xml");
+        return connect(uri, header);
+    }
+
+    @Override
+    public OutputStream connect(String uri, HashMap<String, String> httpHeaders) throws IOException {
+        return connect(uri, httpHeaders, true);
+    }
+
+    @Override
+    public OutputStream connect(String uri, HashMap<String, String> httpHeaders, boolean enableCompression) throws IOException {
+        this.url = new URL(uri);
+        this.headers = httpHeaders;
+        this.compress = enableCompression && this.config.isCompression() && compressionThreshold >= 0;
+        this.request = new ByteArrayOutputStream(8192);
+        return this.request;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        byte[] body = this.request.toByteArray();
+        this.request = null;
+
+        boolean gzipped = this.compress && body.length >= compressionThreshold;
+        byte[] payload = gzipped ? gzip(body) : body;
+        Metrics.record(METRIC_REQUEST_BYTES, body.length);
+        Metrics.record(METRIC_REQUEST_WIRE_BYTES, payload.length);
+
+        HttpURLConnection connection = openConnection(payload.length, gzipped);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+
+        this.successful = connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+        InputStream in = this.successful ? connection.getInputStream() : connection.getErrorStream();
+        if (in == null) in = connection.getInputStream();
+
+        in = new CountingInputStream(in);
+        if (pGZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    @Override
+    public boolean isSuccessful() {
+        return this.successful;
+    }
+
+    private HttpURLConnection openConnection(int length, boolean gzipped) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) (this.config.getProxy() == null
+            ? this.url.openConnection() : this.url.openConnection(this.config.getProxy()));
+
+        connection.setRequestMethod("POST");
+        connection.setDoInput(true);
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setFixedLengthStreamingMode(length);
+        if (this.config.getReadTimeout() != 0) connection.setReadTimeout(this.config.getReadTimeout());
+        if (this.config.getConnectionTimeout() != 0) connection.setConnectTimeout(this.config.getConnectionTimeout());
+
+        connection.setRequestProperty("User-Agent", "EmailAgent/" + SalesforceAgent.SALESFORCE_AGENT_VERSION);
+        connection.setRequestProperty("Accept-Encoding", pGZIP);
+        if (gzipped) {
+            connection.setRequestProperty("Content-Encoding", pGZIP);
+        }
+
+        if (this.config.getProxyUsername() != null) {
+            String token = this.config.getProxyUsername() + ":" + this.config.getProxyPassword();
+            String auth = "Basic " + new String(Base64.encode(token.getBytes("UTF-8")), "US-ASCII");
+            connection.setRequestProperty("Proxy-Authorization", auth);
+            connection.setRequestProperty("Https-Proxy-Authorization", auth);
+        }
+
+        if (this.headers != null) {
+            for (Map.Entry<String, String> header : this.headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        if (this.config.getHeaders() != null) {
+            for (Map.Entry<String, String> header : this.config.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        return connection;
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes, 8192);
+        out.write(body);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static int getIntSetting(String name, int defaultValue) {
+        if (SalesforceAgent.GLOBAL_CONFIG == null) return defaultValue;
+
+        String value = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, name);
+        if (value == null) return defaultValue;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            logger.error(pSETTING_INVALID.replace("X", name) + defaultValue + " (" + value + ")");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Counts the bytes read from the connection and records them once the response is closed
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+        private boolean recorded = false;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) this.count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) this.count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.recorded) {
+                this.recorded = true;
+                Metrics.record(METRIC_RESPONSE_WIRE_BYTES, this.count);
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigParameters;
+import com.sforce.util.Metrics;
+
+/**
+ * The thread pools shared by all mailboxes of the agent.
+ *
+ * Polls run on the fetcher pool, which connects to the mail server, fetches and parses messages
+ * and packs them into batches.  The batches go through a bounded queue to the submitter pool,
+ * which sends them to Salesforce.  When the queue is full the fetcher waits, so parsing never
+ * runs further ahead of Salesforce than the queue allows, and a mailbox busy with a large message
+ * only holds up one fetcher.  The fetchers hand the parsing of the messages themselves to the
+ * parser pool, so the messages of a poll are parsed on all cores.
+ *
+ * The pool sizes and the queue size are the fetcherThreads, submitterThreads, submitQueueSize and
+ * parserThreads settings of the sfdcLogin section.
+ */
+public class ProcessingPools {
+    public static final int defaultFetcherThreads = 4;
+    public static final int defaultSubmitterThreads = 4;
+    public static final int defaultSubmitQueueSize = 16;
+
+    public static final String METRIC_FETCH_QUEUE_DEPTH = "fetch.queue.depth";
+    public static final String METRIC_FETCH_QUEUE_WAIT = "fetch.queue.wait.ms";
+    public static final String METRIC_SUBMIT_QUEUE_DEPTH = "submit.queue.depth";
+    public static final String METRIC_SUBMIT_QUEUE_WAIT = "submit.queue.wait.ms";
+
+    private static final String pPOLL_PENDING = "Previous poll still queued, skipping poll of ";
+    private static final String pPOLL_RUNNING = "Previous poll still running, polling again after it for ";
+
+    static Logger logger = Logger.getLogger(ProcessingPools.class.getName());
+
+    private static ProcessingPools instance = null;
+
+    private final ThreadPoolExecutor fetcher;
+    private final SubmitterPool submitter;
+    private final ForkJoinPool parser;
+    // Mailboxes with a poll queued or running on the fetcher pool, guarded by itself
+    private final Set<GenericClient> polling = new HashSet<GenericClient>();
+    // The subset of them whose poll is running, and those asked to poll again once it is done
+    private final Set<GenericClient> running = new HashSet<GenericClient>();
+    private final Set<GenericClient> pollAgain = new HashSet<GenericClient>();
+
+    private ProcessingPools(int fetcherThreads, int submitterThreads, int submitQueueSize, int parserThreads) {
+        this.fetcher = new ThreadPoolExecutor(fetcherThreads, fetcherThreads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Mail fetcher "));
+        this.submitter = new SubmitterPool(submitterThreads, submitQueueSize);
+        this.parser = new ForkJoinPool(parserThreads);
+    }
+
+    /**
+     * @return the pools configured in the sfdcLogin section
+     */
+    public static synchronized ProcessingPools getInstance() {
+        if (instance == null) {
+            instance = new ProcessingPools(
+                getSetting(ConfigParameters.pFETCHER_THREADS, defaultFetcherThreads),
+                getSetting(ConfigParameters.pSUBMITTER_THREADS, defaultSubmitterThreads),
+                getSetting(ConfigParameters.pSUBMIT_QUEUE_SIZE, defaultSubmitQueueSize),
+                getSetting(ConfigParameters.pPARSER_THREADS, Runtime.getRuntime().availableProcessors()));
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a poll of the mailbox on the fetcher pool, unless one is already queued.  While a poll
+     * is running, which may have looked at the inbox before new mail arrived, a single poll is queued
+     * after it, however often this is called in the meantime.
+     */
+    public void fetch(final GenericClient client) {
+        synchronized (this.polling) {
+            if (this.running.contains(client)) {
+                if (this.pollAgain.add(client)) logger.debug(pPOLL_RUNNING + client.getUser() + "@" + client.getUrl());
+                return;
+            }
+            if (!this.polling.add(client)) {
+                logger.debug(pPOLL_PENDING + client.getUser() + "@" + client.getUrl());
+                return;
+            }
+        }
+
+        final long queued = System.currentTimeMillis();
+        try {
+            this.fetcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Metrics.record(METRIC_FETCH_QUEUE_WAIT, System.currentTimeMillis() - queued);
+                    synchronized (ProcessingPools.this.polling) {
+                        ProcessingPools.this.running.add(client);
+                    }
+                    boolean again;
+                    try {
+                        client.receive();
+                    } finally {
+                        synchronized (ProcessingPools.this.polling) {
+                            ProcessingPools.this.running.remove(client);
+                            ProcessingPools.this.polling.remove(client);
+                            again = ProcessingPools.this.pollAgain.remove(client);
+                        }
+                    }
+                    if (again && !client.isShutdown()) fetch(client);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            synchronized (this.polling) {
+                this.polling.remove(client);
+            }
+            throw ree;
+        }
+        Metrics.record(METRIC_FETCH_QUEUE_DEPTH, this.fetcher.getQueue().size());
+    }
+
+    /**
+     * @return the pool batches are submitted to Salesforce on.  Submitting blocks while its queue is full.
+     */
+    public ExecutorService getSubmitter() {
+        return this.submitter;
+    }
+
+    /**
+     * @return the pool messages are parsed on, shared by all mailboxes, see ParallelParser
+     */
+    public ExecutorService getParser() {
+        return this.parser;
+    }
+
+    public int getParserParallelism() {
+        return this.parser.getParallelism();
+    }
+
+    private static int getSetting(String name, int defaultValue) {
+        String value = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, name);
+        if (value == null) return defaultValue;
+
+        try {
+            int n = Integer.parseInt(value.trim());
+            if (n < 1) throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid argument for " + name + " setting, defaulted to " + defaultValue + " (" + value + ")");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Pool with a bounded queue, handing work to it waits while the queue is full
+     */
+    private static class SubmitterPool extends ThreadPoolExecutor {
+        SubmitterPool(int threads, int queueSize) {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new NamedThreadFactory("Salesforce submit "), new WaitForRoom());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            long start = System.currentTimeMillis();
+            super.execute(command);
+            Metrics.record(METRIC_SUBMIT_QUEUE_WAIT, System.currentTimeMillis() - start);
+            Metrics.record(METRIC_SUBMIT_QUEUE_DEPTH, getQueue().size());
+        }
+    }
+
+    private static class WaitForRoom implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) throw new RejectedExecutionException("Submitter pool shut down");
+
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ie);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, this.prefix + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
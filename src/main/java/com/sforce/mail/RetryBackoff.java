@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Capped exponential backoff with full jitter for one mailbox.
+ *
+ * After the n-th consecutive failure the next attempt is due after a random delay between 0 and
+ * min(maxDelay, baseDelay * 2^(n-1)).  The randomness keeps mailboxes that failed together from
+ * retrying together.  Nothing sleeps; callers ask {@link #isWaiting()} and schedule the retry
+ * themselves.
+ */
+public class RetryBackoff {
+    public static final long defaultBaseDelay = 30 * 1000;
+    public static final long defaultMaxDelay = 30 * 60 * 1000;
+
+    private static final Random random = new Random();
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private int attempts = 0;
+    private long nextAttempt = 0;
+    private String lastError = null;
+
+    public RetryBackoff() {
+        this(defaultBaseDelay, defaultMaxDelay);
+    }
+
+    public RetryBackoff(long baseDelay, long maxDelay) {
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+    }
+
+    /**
+     * Records a failed attempt.
+     *
+     * @return the delay in milliseconds until the next attempt
+     */
+    public synchronized long failed(Throwable cause) {
+        this.attempts++;
+        this.lastError = cause == null ? null : cause.getMessage();
+
+        long ceiling = this.baseDelay << Math.min(this.attempts - 1, 30);
+        if (ceiling <= 0 || ceiling > this.maxDelay) ceiling = this.maxDelay;
+
+        long delay = (long) (random.nextDouble() * ceiling);
+        this.nextAttempt = System.currentTimeMillis() + delay;
+        return delay;
+    }
+
+    /**
+     * Records a successful attempt, which ends the backoff.
+     */
+    public synchronized void succeeded() {
+        this.attempts = 0;
+        this.nextAttempt = 0;
+        this.lastError = null;
+    }
+
+    /**
+     * @return true while the next attempt is not due yet
+     */
+    public synchronized boolean isWaiting() {
+        return this.attempts > 0 && System.currentTimeMillis() < this.nextAttempt;
+    }
+
+    /**
+     * @return the number of consecutive failed attempts
+     */
+    public synchronized int getAttempts() {
+        return this.attempts;
+    }
+
+    public synchronized long getNextAttempt() {
+        return this.nextAttempt;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (this.attempts == 0) return "no failures";
+        return this.attempts + " failed attempt(s), next attempt at " + new Date(this.nextAttempt) + ", last error: " + this.lastError;
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigParameters;
+import com.sforce.soap.partner.wsc.Connector;
+import com.sforce.soap.partner.wsc.HandledEmailMessage;
+import com.sforce.soap.partner.wsc.LoginResult;
+import com.sforce.soap.partner.wsc.PartnerConnection;
+import com.sforce.soap.partner.wsc.SaveResult;
+import com.sforce.util.Metrics;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+/**
+ * Keeps one Salesforce session per login endpoint and user name for the whole agent.
+ *
+ * Every mail client used to log in on its own and refresh its own session.  The manager logs in
+ * once, hands out connections that all carry the shared session id, and logs in again in the
+ * background shortly before loginRefresh runs out.  When a call still comes back with
+ * INVALID_SESSION_ID, {@link #renewSession(Session)} makes sure that only one of the clients that
+ * noticed it actually logs in again.
+ *
+ * The manager also holds the org wide budget of concurrent handleEmailMessage calls,
+ * maxConcurrentCalls in the sfdcLogin section, shared by every mailbox.  How many of those permits are handed out follows
+ * the API usage Salesforce reports with each response, see {@link ApiUsageTracker}.
+ */
+public class SalesforceSessionManager {
+    private static final String pAGENT_WILL_CONNECT_TO = "Agent will connect to: ";
+    private static final String pLOGIN_URL = "LoginURL: ";
+    private static final String pLOGIN_REFRESH = "Could not read loginRefresh from config, defaulting to 25 minutes.";
+    private static final String pTIMEOUT = "Could not read timeout from config, defaulting to 2 minutes.";
+    private static final String pREFRESH_FAILED = "Background refresh of the Salesforce session failed, retrying in a minute: ";
+
+    // Refresh the session this long before loginRefresh runs out
+    private static final long REFRESH_MARGIN = 60 * 1000;
+    private static final long REFRESH_RETRY = 60 * 1000;
+
+    public static final int defaultMaxConcurrentCalls = 4;
+    public static final String METRIC_CALL_PERMIT_WAIT = "sfdc.permit.wait.ms";
+    public static final String METRIC_CALLS_IN_FLIGHT = "sfdc.calls.inflight";
+
+    static Logger logger = Logger.getLogger(SalesforceSessionManager.class.getName());
+
+    private static final Map<String, SalesforceSessionManager> managers = new HashMap<String, SalesforceSessionManager>();
+    private static final Timer refreshTimer = new Timer("Salesforce session refresh", true);
+
+    private final String loginUrl;
+    private final String userName;
+    private volatile Session session = null;
+    private TimerTask refreshTask = null;
+    private boolean firstTime = true;
+    private int generation = 0;
+    private int timeout = GenericClient.defaultTimeout;
+
+    private final int maxConcurrentCalls;
+    private final CallPermits callPermits;
+    private final ApiUsageTracker apiUsage;
+    private long lastCallStart = 0;
+    private final AtomicInteger callsInFlight = new AtomicInteger();
+    private final CircuitBreaker circuitBreaker;
+
+    private SalesforceSessionManager(String loginUrl, String userName) {
+        this.loginUrl = loginUrl;
+        this.userName = userName;
+        this.maxConcurrentCalls = getMaxConcurrentCalls();
+        this.callPermits = new CallPermits(this.maxConcurrentCalls);
+        this.apiUsage = new ApiUsageTracker(
+            getIntSetting(ConfigParameters.pAPI_RESERVE, ApiUsageTracker.defaultReservePercent),
+            getIntSetting(ConfigParameters.pAPI_PAUSE_MINUTES, ApiUsageTracker.defaultPauseMinutes));
+        this.circuitBreaker = new CircuitBreaker(userName + "@" + loginUrl,
+            getIntSetting(ConfigParameters.pBREAKER_FAILURE_THRESHOLD, CircuitBreaker.defaultFailureThreshold),
+            getIntSetting(ConfigParameters.pBREAKER_OPEN_SECONDS, CircuitBreaker.defaultOpenSeconds) * 1000L);
+    }
+
+    /**
+     * @return the manager for the sfdcLogin section of the agent configuration
+     */
+    public static SalesforceSessionManager getInstance() {
+        return getInstance(SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pURL),
+            SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pUSERNAME));
+    }
+
+    public static SalesforceSessionManager getInstance(String loginUrl, String userName) {
+        String key = loginUrl + "|" + userName;
+        synchronized (managers) {
+            SalesforceSessionManager manager = managers.get(key);
+            if (manager == null) {
+                manager = new SalesforceSessionManager(loginUrl, userName);
+                managers.put(key, manager);
+            }
+            return manager;
+        }
+    }
+
+    /**
+     * @return the current session, logging in if there is none yet
+     * @throws ConnectionException if the login fails
+     */
+    public Session getSession() throws ConnectionException {
+        Session current = this.session;
+        if (current != null) return current;
+
+        synchronized (this) {
+            if (this.session == null) login();
+            return this.session;
+        }
+    }
+
+    /**
+     * Logs in again because <code>stale</code> was rejected, unless another caller has already
+     * replaced it, in which case that newer session is returned.
+     *
+     * @throws ConnectionException if the login fails
+     */
+    public synchronized Session renewSession(Session stale) throws ConnectionException {
+        if (this.session == null || this.session == stale) {
+            login();
+        }
+        return this.session;
+    }
+
+    /**
+     * Drops <code>stale</code>, if it is still current, so that the next getSession logs in again.
+     */
+    public synchronized void invalidate(Session stale) {
+        if (stale != null && this.session == stale) {
+            this.session = null;
+        }
+    }
+
+    /**
+     * @return the circuit breaker guarding calls to this org
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * @return the API usage of this org as last reported by Salesforce
+     */
+    public ApiUsageTracker getApiUsage() {
+        return this.apiUsage;
+    }
+
+    /**
+     * Makes a handleEmailMessage call once one of the org wide call permits is free.  Calls are
+     * spaced out when the API budget runs low, and the number of permits is adjusted to the usage
+     * returned with the response.  The usage is read from the response headers kept on
+     * <code>conn</code>, so no other call may use it at the same time.
+     */
+    public SaveResult[] handleEmailMessage(PartnerConnection conn, HandledEmailMessage[] records)
+        throws ConnectionException, InterruptedException {
+
+        long start = System.currentTimeMillis();
+        this.callPermits.acquire();
+        try {
+            pace();
+            Metrics.record(METRIC_CALL_PERMIT_WAIT, System.currentTimeMillis() - start);
+            Metrics.record(METRIC_CALLS_IN_FLIGHT, this.callsInFlight.incrementAndGet());
+            conn.clearLimitInfoHeader();
+            try {
+                return conn.handleEmailMessage(records);
+            } finally {
+                this.callsInFlight.decrementAndGet();
+                this.apiUsage.update(conn.getLimitInfoHeader());
+                this.callPermits.setPermits(this.apiUsage.getConcurrency(this.maxConcurrentCalls));
+            }
+        } finally {
+            this.callPermits.release();
+        }
+    }
+
+    /**
+     * Waits until the minimum interval between calls asked for by the API usage has passed.
+     * Only ever runs on the submit pool, never on a poll thread.
+     */
+    private void pace() throws InterruptedException {
+        long interval = this.apiUsage.getCallInterval();
+        long wait;
+        synchronized (this.callPermits) {
+            long now = System.currentTimeMillis();
+            long next = Math.max(now, this.lastCallStart + interval);
+            this.lastCallStart = next;
+            wait = next - now;
+        }
+        if (wait > 0) Thread.sleep(wait);
+    }
+
+    /**
+     * Builds a connection that uses the given session without logging in.
+     */
+    public PartnerConnection connect(Session s) throws ConnectionException {
+        ConnectorConfig config = newConfig();
+        config.setSessionId(s.getSessionId());
+        config.setServiceEndpoint(s.getServiceEndpoint());
+
+        PartnerConnection conn = Connector.newConnection(config);
+        conn.setCallOptions("EmailAgent/" + SalesforceAgent.SALESFORCE_AGENT_VERSION, "");
+        conn.setAssignmentRuleHeader(null, true);
+        conn.setSessionHeader(s.getSessionId());
+        return conn;
+    }
+
+    private ConnectorConfig newConfig() {
+        ConnectorConfig config = new ConnectorConfig();
+        config.setUsername(this.userName);
+        config.setPassword(SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pPASSWORD));
+        config.setAuthEndpoint(this.loginUrl);
+        config.setCompression(PooledHttpTransport.getCompressionThreshold() >= 0);
+        config.setTransport(PooledHttpTransport.class);
+        config.setConnectionTimeout(this.timeout);
+        //need to do a manual login to set the proper headers
+        config.setManualLogin(true);
+        return config;
+    }
+
+    private synchronized void login() throws ConnectionException {
+        this.timeout = getTimeout();
+        ConnectorConfig config = newConfig();
+        config.setServiceEndpoint(config.getAuthEndpoint());
+
+        PartnerConnection conn = Connector.newConnection(config);
+        conn.setCallOptions("EmailAgent/" + SalesforceAgent.SALESFORCE_AGENT_VERSION, "");
+        LoginResult loginresult = conn.login(config.getUsername(), config.getPassword());
+        if (loginresult.getServerUrl() == null) throw new ConnectionException("Please set ServiceEndpoint");
+
+        this.session = new Session(loginresult.getSessionId(), loginresult.getServerUrl(), ++this.generation);
+
+        if (this.firstTime) {
+            logger.info(pLOGIN_URL + config.getAuthEndpoint());
+            logger.info(pAGENT_WILL_CONNECT_TO + loginresult.getServerUrl());
+            this.firstTime = false;
+        }
+        scheduleRefresh(Math.max(REFRESH_RETRY, getLoginRefresh() * 60L * 1000L - REFRESH_MARGIN));
+    }
+
+    private synchronized void scheduleRefresh(long delay) {
+        if (this.refreshTask != null) this.refreshTask.cancel();
+
+        this.refreshTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (SalesforceSessionManager.this) {
+                        login();
+                    }
+                } catch (ConnectionException ce) {
+                    // Keep the current session, clients renew it themselves should it expire meanwhile
+                    logger.warn(pREFRESH_FAILED + ce.getMessage());
+                    scheduleRefresh(REFRESH_RETRY);
+                }
+            }
+        };
+        refreshTimer.schedule(this.refreshTask, delay);
+    }
+
+    private static int getLoginRefresh() {
+        String refresh = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pLOGIN_REFRESH);
+        if (refresh == null) {
+            logger.info(pLOGIN_REFRESH);
+            return GenericClient.defaultRefresh;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(refresh.trim()));
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid argument for loginRefresh setting, defaulted to " + GenericClient.defaultRefresh + " minutes (" + refresh + ")");
+            return GenericClient.defaultRefresh;
+        }
+    }
+
+    private static int getMaxConcurrentCalls() {
+        String calls = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pMAX_CONCURRENT_CALLS);
+        if (calls == null) return defaultMaxConcurrentCalls;
+
+        try {
+            int max = Integer.parseInt(calls.trim());
+            if (max < 1) throw new NumberFormatException();
+            return max;
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid argument for maxConcurrentCalls setting, defaulted to " + defaultMaxConcurrentCalls + " (" + calls + ")");
+            return defaultMaxConcurrentCalls;
+        }
+    }
+
+    private static int getIntSetting(String name, int defaultValue) {
+        String value = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, name);
+        if (value == null) return defaultValue;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid argument for " + name + " setting, defaulted to " + defaultValue + " (" + value + ")");
+            return defaultValue;
+        }
+    }
+
+    private static int getTimeout() {
+        String sTimeout = SalesforceAgent.GLOBAL_CONFIG.get(ConfigParameters.pLOGIN, ConfigParameters.pTIMEOUT);
+        if (sTimeout == null) {
+            logger.info(pTIMEOUT);
+            return GenericClient.defaultTimeout;
+        }
+        try {
+            return Integer.parseInt(sTimeout.trim());
+        } catch (NumberFormatException nfe) {
+            logger.error("Invalid argument for timeout setting, defaulted to " + GenericClient.defaultTimeout + " minutes (" + sTimeout + ")");
+            SalesforceAgent.GLOBAL_CONFIG.put(ConfigParameters.pLOGIN, ConfigParameters.pTIMEOUT, String.valueOf(GenericClient.defaultTimeout));
+            return GenericClient.defaultTimeout;
+        }
+    }
+
+    /**
+     * Call permits whose number can be changed while calls hold them
+     */
+    @SuppressWarnings("serial")
+    private static class CallPermits extends Semaphore {
+        private int permits;
+
+        CallPermits(int permits) {
+            super(permits, true);
+            this.permits = permits;
+        }
+
+        synchronized void setPermits(int n) {
+            if (n > this.permits) {
+                release(n - this.permits);
+            } else if (n < this.permits) {
+                reducePermits(this.permits - n);
+            }
+            this.permits = n;
+        }
+    }
+
+    /**
+     * A logged in Salesforce session
+     */
+    public static class Session {
+        private final String sessionId;
+        private final String serviceEndpoint;
+        private final int generation;
+
+        Session(String sessionId, String serviceEndpoint, int generation) {
+            this.sessionId = sessionId;
+            this.serviceEndpoint = serviceEndpoint;
+            this.generation = generation;
+        }
+
+        public String getSessionId() { return this.sessionId; }
+        public String getServiceEndpoint() { return this.serviceEndpoint; }
+        public int getGeneration() { return this.generation; }
+    }
+}
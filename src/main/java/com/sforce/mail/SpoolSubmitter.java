@@ -0,0 +1,76 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Drains the {@link MessageSpool} of one mailbox to Salesforce on its own thread, so that fetching
+ * mail never waits for Salesforce and Salesforce outages never hold up the mail server.
+ */
+public class SpoolSubmitter implements Runnable {
+    // How long to wait for new messages when the spool is empty
+    static final long IDLE_WAIT = 60 * 1000;
+
+    static Logger logger = Logger.getLogger(SpoolSubmitter.class.getName());
+
+    private final GenericClient client;
+    private final MessageSpool spool;
+
+    public SpoolSubmitter(GenericClient client, MessageSpool spool) {
+        this.client = client;
+        this.spool = spool;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.client.isShutdown()) {
+                long delay;
+                try {
+                    delay = this.client.drainSpool(this.spool);
+                } catch (InterruptedException ie) {
+                    throw ie;
+                } catch (Exception e) {
+                    logger.error(e, e);
+                    delay = IDLE_WAIT;
+                }
+                if (delay > 0) {
+                    this.spool.await(delay);
+                } else {
+                    this.spool.awaitPending(IDLE_WAIT);
+                }
+            }
+        } catch (InterruptedException ie) {
+            logger.warn("Spool submitter interrupted.");
+        }
+    }
+}
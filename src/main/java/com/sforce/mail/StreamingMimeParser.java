@@ -0,0 +1,387 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimePart;
+
+/**
+ * Single pass parser for the body of a MIME message.
+ *
+ * Instead of building the Multipart object graph of JavaMail, which fetches an IMAP message part
+ * by part and keeps every part in memory, the parser reads the raw body once, front to back, and
+ * hands each leaf part to a {@link PartHandler} together with a stream of its decoded content.
+ * Nothing but the current line is buffered, so a part can be copied straight to its destination.
+ *
+ * The parts passed to the handler are header-only MimeBodyParts: their content type, disposition,
+ * file name and so on answer exactly as those of the JavaMail parts would, but their content must
+ * be read from the stream.  The top level part is the message itself.
+ */
+public class StreamingMimeParser {
+    private static final String CONTENT_TYPE_MULTIPART = "multipart";
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final byte[] NO_CONTENT = new byte[0];
+    private static final String pNO_BOUNDARY = "Multipart without boundary parameter: ";
+
+    /**
+     * Receives the leaf parts of a message in the order they appear
+     */
+    public interface PartHandler {
+        /**
+         * @param part    The part, for its headers only
+         * @param content The decoded content of the part, only valid during the call
+         */
+        public void part(Part part, InputStream content) throws MessagingException, IOException;
+    }
+
+    private final LineReader reader;
+    // Delimiters of the enclosing multiparts, innermost last
+    private final ArrayList<byte[]> delimiters = new ArrayList<byte[]>();
+
+    private StreamingMimeParser(InputStream body) {
+        this.reader = new LineReader(body);
+    }
+
+    /**
+     * Parses the body of a message or part.
+     *
+     * @param top     The message or part whose headers describe the body
+     * @param body    The raw body, without the headers of <code>top</code>, still transfer encoded
+     * @param handler Receives the leaf parts
+     */
+    public static void parse(Part top, InputStream body, PartHandler handler) throws MessagingException, IOException {
+        StreamingMimeParser parser = new StreamingMimeParser(body);
+        String contentType = ParsedMessage.getPartContentType(top);
+
+        if (isMultipart(contentType)) {
+            parser.parseMultipart(contentType, handler);
+        } else {
+            // The whole stream is the content, up to the last byte
+            handler.part(top, decode(top, new RawContent(parser.reader)));
+        }
+    }
+
+    private static boolean isMultipart(String contentType) {
+        return contentType != null && contentType.toLowerCase().startsWith(CONTENT_TYPE_MULTIPART);
+    }
+
+    private static InputStream decode(Part part, InputStream content) throws MessagingException {
+        String encoding = part instanceof MimePart ? ((MimePart) part).getEncoding() : null;
+        return TransferDecoder.decode(content, encoding);
+    }
+
+    private void parseMultipart(String contentType, PartHandler handler) throws MessagingException, IOException {
+        String boundary = new ContentType(contentType).getParameter("boundary");
+        if (boundary == null) throw new MessagingException(pNO_BOUNDARY + contentType);
+
+        this.delimiters.add(("--" + boundary).getBytes(LATIN1));
+        try {
+            // Skip the preamble
+            PartContent content = new PartContent();
+            drain(content);
+
+            while (content.endedByDelimiter && !content.closed) {
+                InternetHeaders headers = readHeaders();
+                if (headers == null) return;
+
+                MimeBodyPart part = new MimeBodyPart(headers, NO_CONTENT);
+                String partType = ParsedMessage.getPartContentType(part);
+                content = new PartContent();
+
+                if (isMultipart(partType)) {
+                    parseMultipart(partType, handler);
+                } else {
+                    handler.part(part, decode(part, content));
+                }
+                // Whatever the handler left, or the epilogue of a nested multipart
+                drain(content);
+            }
+        } finally {
+            this.delimiters.remove(this.delimiters.size() - 1);
+        }
+    }
+
+    /**
+     * @return the headers of the next part, or null at the end of the stream
+     */
+    private InternetHeaders readHeaders() throws IOException {
+        InternetHeaders headers = new InternetHeaders();
+        while (this.reader.next()) {
+            if (this.reader.contentLength() == 0) return headers;
+            headers.addHeaderLine(this.reader.toString(LATIN1));
+        }
+        return null;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) >= 0) {
+            // skip
+        }
+    }
+
+    /**
+     * The content of the current part: the lines up to the next delimiter of the current or an
+     * enclosing multipart.  The line break before a delimiter belongs to the delimiter.
+     */
+    private class PartContent extends InputStream {
+        // The line break of the last line read, content only if another line follows
+        private final byte[] pendingEol = new byte[2];
+        private int pendingEolLength = 0;
+        private final byte[] eol = new byte[2];
+        private int eolLength = 0;
+        private int eolPosition = 0;
+        private int linePosition = 0;
+        private int lineLength = 0;
+        private boolean done = false;
+        boolean endedByDelimiter = false;
+        boolean closed = false;
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            if (this.eolPosition < this.eolLength) return this.eol[this.eolPosition++] & 0xff;
+            return StreamingMimeParser.this.reader.line[this.linePosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+
+            int n = 0;
+            while (n < len && this.eolPosition < this.eolLength) {
+                b[off + n++] = this.eol[this.eolPosition++];
+            }
+            int count = Math.min(len - n, this.lineLength - this.linePosition);
+            System.arraycopy(StreamingMimeParser.this.reader.line, this.linePosition, b, off + n, count);
+            this.linePosition += count;
+            return n + count;
+        }
+
+        /**
+         * @return true if there is content left, reading the next line if needed
+         */
+        private boolean fill() throws IOException {
+            while (this.eolPosition >= this.eolLength && this.linePosition >= this.lineLength) {
+                if (this.done) return false;
+                nextLine();
+            }
+            return true;
+        }
+
+        private void nextLine() throws IOException {
+            LineReader r = StreamingMimeParser.this.reader;
+
+            if (!r.next()) {
+                this.done = true;
+                // No delimiter follows, so the last line break is content
+                System.arraycopy(this.pendingEol, 0, this.eol, 0, this.pendingEolLength);
+                this.eolLength = this.pendingEolLength;
+                this.eolPosition = 0;
+                this.pendingEolLength = 0;
+                this.linePosition = 0;
+                this.lineLength = 0;
+                return;
+            }
+            int innermost = StreamingMimeParser.this.delimiters.size() - 1;
+            for (int i = innermost; i >= 0; i--) {
+                byte[] delimiter = StreamingMimeParser.this.delimiters.get(i);
+                if (r.isDelimiter(delimiter)) {
+                    this.done = true;
+                    if (i == innermost) {
+                        this.endedByDelimiter = true;
+                        this.closed = r.isCloseDelimiter(delimiter);
+                    } else {
+                        // Belongs to an enclosing multipart, which reads it next
+                        r.pushBack();
+                    }
+                    return;
+                }
+            }
+
+            System.arraycopy(this.pendingEol, 0, this.eol, 0, this.pendingEolLength);
+            this.eolLength = this.pendingEolLength;
+            this.eolPosition = 0;
+            this.pendingEolLength = r.length - r.contentLength();
+            System.arraycopy(r.line, r.contentLength(), this.pendingEol, 0, this.pendingEolLength);
+            this.linePosition = 0;
+            this.lineLength = r.contentLength();
+        }
+    }
+
+    /**
+     * Content of a part that is not enclosed by a multipart: everything up to the end of the stream
+     */
+    private static class RawContent extends InputStream {
+        private final LineReader reader;
+
+        RawContent(LineReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.reader.readRaw(b, off, len);
+        }
+    }
+
+    /**
+     * Reads a stream line by line into a reusable buffer, line breaks included
+     */
+    private static class LineReader {
+        private final InputStream in;
+        private final byte[] chunk = new byte[8192];
+        private int chunkPosition = 0;
+        private int chunkLength = 0;
+        private boolean pushedBack = false;
+        byte[] line = new byte[1024];
+        int length = 0;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        boolean next() throws IOException {
+            if (this.pushedBack) {
+                this.pushedBack = false;
+                return true;
+            }
+
+            this.length = 0;
+            while (true) {
+                if (this.chunkPosition == this.chunkLength) {
+                    this.chunkLength = this.in.read(this.chunk, 0, this.chunk.length);
+                    this.chunkPosition = 0;
+                    if (this.chunkLength < 0) {
+                        this.chunkLength = 0;
+                        return this.length > 0;
+                    }
+                }
+
+                int end = this.chunkPosition;
+                while (end < this.chunkLength && this.chunk[end] != '\n') end++;
+                boolean complete = end < this.chunkLength;
+                if (complete) end++;
+
+                append(end - this.chunkPosition);
+                if (complete) return true;
+            }
+        }
+
+        private void append(int count) {
+            if (this.length + count > this.line.length) {
+                byte[] larger = new byte[Math.max(this.line.length * 2, this.length + count)];
+                System.arraycopy(this.line, 0, larger, 0, this.length);
+                this.line = larger;
+            }
+            System.arraycopy(this.chunk, this.chunkPosition, this.line, this.length, count);
+            this.length += count;
+            this.chunkPosition += count;
+        }
+
+        /**
+         * Reads past the line structure, for content that runs to the end of the stream
+         */
+        int readRaw(byte[] b, int off, int len) throws IOException {
+            if (this.chunkPosition < this.chunkLength) {
+                int count = Math.min(len, this.chunkLength - this.chunkPosition);
+                System.arraycopy(this.chunk, this.chunkPosition, b, off, count);
+                this.chunkPosition += count;
+                return count;
+            }
+            return this.in.read(b, off, len);
+        }
+
+        void pushBack() {
+            this.pushedBack = true;
+        }
+
+        /**
+         * @return the length of the line without its line break
+         */
+        int contentLength() {
+            int n = this.length;
+            if (n > 0 && this.line[n - 1] == '\n') n--;
+            if (n > 0 && this.line[n - 1] == '\r') n--;
+            return n;
+        }
+
+        boolean startsWith(byte[] prefix) {
+            if (contentLength() < prefix.length) return false;
+            for (int i = 0; i < prefix.length; i++) {
+                if (this.line[i] != prefix[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the line is the delimiter, optionally followed by "--" or by transport padding.
+         *         A line that merely starts with it, e.g. that of a longer boundary, is content.
+         */
+        boolean isDelimiter(byte[] delimiter) {
+            if (!startsWith(delimiter)) return false;
+            if (isCloseDelimiter(delimiter)) return true;
+
+            for (int i = delimiter.length; i < contentLength(); i++) {
+                if (this.line[i] != ' ' && this.line[i] != '\t') return false;
+            }
+            return true;
+        }
+
+        boolean isCloseDelimiter(byte[] delimiter) {
+            return contentLength() >= delimiter.length + 2
+                && this.line[delimiter.length] == '-' && this.line[delimiter.length + 1] == '-';
+        }
+
+        String toString(Charset charset) {
+            return new String(this.line, 0, contentLength(), charset);
+        }
+    }
+}
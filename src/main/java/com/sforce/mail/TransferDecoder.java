@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Decodes base64 and quoted-printable content in large chunks.
+ *
+ * The JavaMail decoding streams work a byte or a line at a time; these read the encoded content
+ * 64 KB at a time and decode each chunk with a table driven loop, base64 four characters at a time.
+ * Like JavaMail they are lenient: characters that are not part of the encoding are skipped and a
+ * malformed quoted-printable escape is kept as is.  Other transfer encodings go through JavaMail.
+ */
+public class TransferDecoder {
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String BASE64 = "base64";
+    private static final String QUOTED_PRINTABLE = "quoted-printable";
+
+    private static final byte INVALID = -1;
+    private static final byte PAD = -2;
+    private static final byte[] BASE64_VALUES = new byte[256];
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    static {
+        Arrays.fill(BASE64_VALUES, INVALID);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+        BASE64_VALUES['='] = PAD;
+
+        Arrays.fill(HEX_VALUES, INVALID);
+        for (int i = 0; i < 10; i++) HEX_VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private TransferDecoder() {
+    }
+
+    /**
+     * @param encoded  The content, still transfer encoded
+     * @param encoding The Content-Transfer-Encoding, null if there is none
+     * @return the decoded content
+     */
+    public static InputStream decode(InputStream encoded, String encoding) throws MessagingException {
+        if (encoding == null) return encoded;
+        if (encoding.equalsIgnoreCase(BASE64)) return new Base64Stream(encoded);
+        if (encoding.equalsIgnoreCase(QUOTED_PRINTABLE)) return new QuotedPrintableStream(encoded);
+        return MimeUtility.decode(encoded, encoding);
+    }
+
+    /**
+     * The decoded content of a part, as Part.getInputStream() would return it
+     */
+    public static InputStream getInputStream(Part part) throws MessagingException, IOException {
+        String encoding = part instanceof MimePart ? ((MimePart) part).getEncoding() : null;
+        if (encoding != null && (encoding.equalsIgnoreCase(BASE64) || encoding.equalsIgnoreCase(QUOTED_PRINTABLE))) {
+            if (part instanceof MimeBodyPart) return decode(((MimeBodyPart) part).getRawInputStream(), encoding);
+            if (part instanceof MimeMessage) return decode(((MimeMessage) part).getRawInputStream(), encoding);
+        }
+        return part.getInputStream();
+    }
+
+    /**
+     * Reads the encoded content a chunk at a time and hands out what each chunk decodes to.
+     */
+    private abstract static class ChunkedStream extends InputStream {
+        private final InputStream encoded;
+        protected byte[] in = new byte[CHUNK_SIZE];
+        // Encoded bytes left over from the previous chunk, at the start of in
+        private int carried = 0;
+        private byte[] out = new byte[CHUNK_SIZE];
+        private int outPosition = 0;
+        private int outLength = 0;
+        private boolean eof = false;
+        // Set by decode, the number of bytes it wrote to out
+        protected int decodedLength;
+
+        ChunkedStream(InputStream encoded) {
+            this.encoded = encoded;
+        }
+
+        /**
+         * Decodes in[0, length) into out
+         *
+         * @param last Whether no more input follows
+         * @return the number of input bytes used, the rest is passed again with the next chunk
+         */
+        protected abstract int decode(int length, boolean last, byte[] out);
+
+        /**
+         * @return how many decoded bytes <code>length</code> encoded bytes may produce at most
+         */
+        protected abstract int maxDecodedLength(int length);
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return this.out[this.outPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+
+            int count = Math.min(len, this.outLength - this.outPosition);
+            System.arraycopy(this.out, this.outPosition, b, off, count);
+            this.outPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.outLength - this.outPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.encoded.close();
+        }
+
+        private boolean fill() throws IOException {
+            while (this.outPosition == this.outLength) {
+                if (this.eof && this.carried == 0) return false;
+
+                int length = this.carried;
+                if (!this.eof) {
+                    if (length == this.in.length) this.in = Arrays.copyOf(this.in, this.in.length * 2);
+                    int read = this.encoded.read(this.in, length, this.in.length - length);
+                    if (read < 0) {
+                        this.eof = true;
+                    } else {
+                        length += read;
+                    }
+                }
+
+                int maxLength = maxDecodedLength(length);
+                if (this.out.length < maxLength) this.out = new byte[maxLength];
+
+                this.outPosition = 0;
+                this.outLength = 0;
+                int used = decode(length, this.eof, this.out);
+                this.carried = length - used;
+                System.arraycopy(this.in, used, this.in, 0, this.carried);
+                this.outLength = this.decodedLength;
+                if (this.eof) this.carried = 0;
+            }
+            return true;
+        }
+    }
+
+    private static class Base64Stream extends ChunkedStream {
+        // Sextets of an incomplete quantum
+        private int bits = 0;
+        private int count = 0;
+
+        Base64Stream(InputStream encoded) {
+            super(encoded);
+        }
+
+        @Override
+        protected int maxDecodedLength(int length) {
+            return length / 4 * 3 + 3;
+        }
+
+        @Override
+        protected int decode(int length, boolean last, byte[] out) {
+            byte[] in = this.in;
+            int i = 0;
+            int o = 0;
+
+            while (i < length) {
+                if (this.count == 0) {
+                    // Whole quanta, the bulk of every line
+                    while (i + 4 <= length) {
+                        int a = BASE64_VALUES[in[i] & 0xff];
+                        int b = BASE64_VALUES[in[i + 1] & 0xff];
+                        int c = BASE64_VALUES[in[i + 2] & 0xff];
+                        int d = BASE64_VALUES[in[i + 3] & 0xff];
+                        if ((a | b | c | d) < 0) break;
+
+                        out[o] = (byte) (a << 2 | b >> 4);
+                        out[o + 1] = (byte) (b << 4 | c >> 2);
+                        out[o + 2] = (byte) (c << 6 | d);
+                        o += 3;
+                        i += 4;
+                    }
+                    if (i >= length) break;
+                }
+
+                int value = BASE64_VALUES[in[i++] & 0xff];
+                if (value >= 0) {
+                    this.bits = this.bits << 6 | value;
+                    if (++this.count == 4) {
+                        out[o++] = (byte) (this.bits >> 16);
+                        out[o++] = (byte) (this.bits >> 8);
+                        out[o++] = (byte) this.bits;
+                        this.bits = 0;
+                        this.count = 0;
+                    }
+                } else if (value == PAD) {
+                    o = endQuantum(out, o);
+                }
+                // Anything else, line breaks mostly, is skipped
+            }
+
+            if (last) o = endQuantum(out, o);
+            this.decodedLength = o;
+            return length;
+        }
+
+        /**
+         * Writes the bytes of a quantum cut short by padding or the end of the content
+         */
+        private int endQuantum(byte[] out, int o) {
+            if (this.count == 2) {
+                out[o++] = (byte) (this.bits >> 4);
+            } else if (this.count == 3) {
+                out[o++] = (byte) (this.bits >> 10);
+                out[o++] = (byte) (this.bits >> 2);
+            }
+            this.bits = 0;
+            this.count = 0;
+            return o;
+        }
+    }
+
+    private static class QuotedPrintableStream extends ChunkedStream {
+
+        QuotedPrintableStream(InputStream encoded) {
+            super(encoded);
+        }
+
+        @Override
+        protected int maxDecodedLength(int length) {
+            return length;
+        }
+
+        @Override
+        protected int decode(int length, boolean last, byte[] out) {
+            byte[] in = this.in;
+            int i = 0;
+            int o = 0;
+
+            while (i < length) {
+                byte c = in[i];
+
+                if (c == '=') {
+                    if (i + 1 >= length && !last) break;
+
+                    if (i + 1 >= length) {
+                        // Soft line break at the very end
+                        i = length;
+                    } else if (in[i + 1] == '\n') {
+                        i += 2;
+                    } else if (in[i + 1] == '\r') {
+                        if (i + 2 >= length && !last) break;
+                        i = i + 2 < length && in[i + 2] == '\n' ? i + 3 : i + 2;
+                    } else if (i + 2 < length) {
+                        int high = HEX_VALUES[in[i + 1] & 0xff];
+                        int low = HEX_VALUES[in[i + 2] & 0xff];
+                        if ((high | low) >= 0) {
+                            out[o++] = (byte) (high << 4 | low);
+                            i += 3;
+                        } else {
+                            out[o++] = c;
+                            i++;
+                        }
+                    } else if (!last) {
+                        // The escape continues in the next chunk
+                        break;
+                    } else {
+                        out[o++] = c;
+                        i++;
+                    }
+                } else if (c == ' ') {
+                    int next = skipSpaces(in, i, length);
+                    if (next >= length && !last) break;
+
+                    if (next < length && in[next] != '\r' && in[next] != '\n') {
+                        System.arraycopy(in, i, out, o, next - i);
+                        o += next - i;
+                    }
+                    // Spaces at the end of a line were added in transport, JavaMail keeps tabs
+                    i = next;
+                } else {
+                    out[o++] = c;
+                    i++;
+                }
+            }
+
+            this.decodedLength = o;
+            return i;
+        }
+
+        private static int skipSpaces(byte[] in, int i, int length) {
+            while (i < length && in[i] == ' ') i++;
+            return i;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persisted UID checkpoint of a single mailbox: the UIDVALIDITY of the folder and the highest UID
+ * that has been handled.  It lets a poll fetch only the messages that arrived since the previous one,
+ * and makes it possible to leave processed messages in the inbox.
+ *
+ * The checkpoint is kept in a small properties file which is replaced atomically on every update.
+ */
+public class UidCheckpoint {
+    private static final String pUID_VALIDITY = "uidValidity";
+    private static final String pLAST_UID = "lastUid";
+    private static final String pFILE_EXT = ".checkpoint";
+    private static final String pCHECKPOINT_RESET = "UIDVALIDITY changed, discarding checkpoint ";
+
+    static Logger logger = Logger.getLogger(UidCheckpoint.class.getName());
+
+    private final File file;
+    private long uidValidity = -1;
+    private long lastUid = 0;
+
+    /**
+     * @param directory Directory holding the checkpoint files
+     * @param mailboxId Unique name of the mailbox, e.g. server:port:user:inbox
+     * @throws IOException if an existing checkpoint can not be read
+     */
+    public UidCheckpoint(File directory, String mailboxId) throws IOException {
+        this.file = new File(directory, mailboxId.replaceAll("[^A-Za-z0-9._-]", "_") + pFILE_EXT);
+        load();
+    }
+
+    public synchronized long getUidValidity() { return this.uidValidity; }
+
+    public synchronized long getLastUid() { return this.lastUid; }
+
+    /**
+     * Records that every message up to and including <code>uid</code> has been handled.
+     * A new UIDVALIDITY replaces the checkpoint, an older UID is ignored.
+     *
+     * @throws IOException if the checkpoint could not be written
+     */
+    public synchronized void update(long newUidValidity, long uid) throws IOException {
+        if (newUidValidity != this.uidValidity) {
+            if (this.uidValidity != -1) {
+                logger.warn(pCHECKPOINT_RESET + this.file);
+            }
+            this.uidValidity = newUidValidity;
+            this.lastUid = 0;
+        }
+        if (uid <= this.lastUid) return;
+
+        this.lastUid = uid;
+        save();
+    }
+
+    private void load() throws IOException {
+        if (!this.file.exists()) return;
+
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(this.file)) {
+            props.load(in);
+        }
+        try {
+            this.uidValidity = Long.parseLong(props.getProperty(pUID_VALIDITY, "-1"));
+            this.lastUid = Long.parseLong(props.getProperty(pLAST_UID, "0"));
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Corrupt checkpoint file " + this.file, nfe);
+        }
+    }
+
+    private void save() throws IOException {
+        File dir = this.file.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create checkpoint directory " + dir);
+        }
+
+        Properties props = new Properties();
+        props.setProperty(pUID_VALIDITY, String.valueOf(this.uidValidity));
+        props.setProperty(pLAST_UID, String.valueOf(this.lastUid));
+
+        File tmp = new File(dir, this.file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return this.file.getPath();
+    }
+}
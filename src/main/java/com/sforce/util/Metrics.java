@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Metrics
+ *
+ * Process wide registry of named statistics.  Each metric keeps the count, total, minimum,
+ * maximum and last of the values recorded under its name, which covers counters as well as
+ * distributions such as batch sizes.  The registry is published over JMX and can be written
+ * to the log with {@link #logSummary()}.
+ */
+public final class Metrics implements MetricsMBean {
+    private static final String pOBJECT_NAME = "com.sforce.email2case:type=Metrics";
+    private static final String pREGISTER_FAILED = "Unable to register metrics with JMX: ";
+
+    static Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private static final Metrics INSTANCE = new Metrics();
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(pOBJECT_NAME));
+        } catch (Exception e) {
+            logger.warn(pREGISTER_FAILED + e.getMessage());
+        }
+    }
+
+    private final ConcurrentMap<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
+
+    private Metrics() {}
+
+    public static Metrics getInstance() { return INSTANCE; }
+
+    /**
+     * @return the metric with the given name, created on first use
+     */
+    public static Stat get(String name) {
+        Stat stat = INSTANCE.stats.get(name);
+        if (stat == null) {
+            Stat created = new Stat();
+            stat = INSTANCE.stats.putIfAbsent(name, created);
+            if (stat == null) stat = created;
+        }
+        return stat;
+    }
+
+    public static void record(String name, long value) {
+        get(name).record(value);
+    }
+
+    public static void increment(String name) {
+        get(name).record(1);
+    }
+
+    public static void logSummary() {
+        if (logger.isInfoEnabled()) {
+            logger.info("Metrics:\n" + INSTANCE.getSummary());
+        }
+    }
+
+    @Override
+    public String[] getNames() {
+        String[] names = this.stats.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Override
+    public String getStat(String name) {
+        Stat stat = this.stats.get(name);
+        return stat == null ? null : stat.toString();
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuffer buff = new StringBuffer();
+        String[] names = getNames();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) buff.append("\n");
+            buff.append(names[i]).append(": ").append(this.stats.get(names[i]));
+        }
+        return buff.toString();
+    }
+
+    @Override
+    public void reset() {
+        this.stats.clear();
+    }
+
+    /**
+     * Running statistics of the values recorded under one name
+     */
+    public static class Stat {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+        private volatile long last;
+
+        public void record(long value) {
+            this.count.incrementAndGet();
+            this.total.addAndGet(value);
+            this.last = value;
+
+            long current;
+            while (value < (current = this.min.get()) && !this.min.compareAndSet(current, value)) {}
+            while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value)) {}
+        }
+
+        public long getCount() { return this.count.get(); }
+        public long getTotal() { return this.total.get(); }
+        public long getLast() { return this.last; }
+        public long getMin() { return getCount() == 0 ? 0 : this.min.get(); }
+        public long getMax() { return getCount() == 0 ? 0 : this.max.get(); }
+
+        public double getMean() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) getTotal() / n;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" + String.format("%.1f", getMean()) + " min=" + getMin()
+                + " max=" + getMax() + " last=" + getLast();
+        }
+    }
+}
@@ -209,6 +209,53 @@ public class TextUtil {
         return buf.toString();
     }
 
+    /**
+     * Removes the characters that are not allowed in an XML document, even escaped: control
+     * characters other than tab, line feed and carriage return, U+FFFE, U+FFFF and unpaired
+     * surrogates.  Surrogate pairs, the characters beyond U+FFFF, are kept.
+     *
+     * @param s
+     * @return <code>s</code> itself when it has nothing to remove, which is the common case
+     */
+    public static String removeInvalidXmlChars(String s) {
+
+        if (s == null) return s;
+
+        int length = s.length();
+        int pos = 0;
+        while (pos < length) {
+            int valid = validXmlCharLength(s.charAt(pos), pos + 1 < length ? s.charAt(pos + 1) : 0);
+            if (valid == 0) break;
+            pos += valid;
+        }
+        if (pos == length) return s;
+
+        // Compact the rest in place in a single copy of the string
+        char[] chars = s.toCharArray();
+        int out = pos;
+        while (pos < length) {
+            int valid = validXmlCharLength(chars[pos], pos + 1 < length ? chars[pos + 1] : 0);
+            if (valid == 0) {
+                pos++;
+            } else {
+                chars[out++] = chars[pos++];
+                if (valid == 2) chars[out++] = chars[pos++];
+            }
+        }
+        return new String(chars, 0, out);
+    }
+
+    /**
+     * @return how many chars make up the XML character starting with <code>c</code>, 0 if it is invalid
+     */
+    private static int validXmlCharLength(char c, char next) {
+        if (c >= 0x20) {
+            if (c <= 0xD7FF || (c >= 0xE000 && c <= 0xFFFD)) return 1;
+            return Character.isHighSurrogate(c) && Character.isLowSurrogate(next) ? 2 : 0;
+        }
+        return c == '\n' || c == '\r' || c == '\t' ? 1 : 0;
+    }
+
     /**
      * Splits <code>s</code> into a List of Strings separated by <code>split</code>,
      * which is not a regex. This is more efficient than String.split or TextUtil.split
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.sforce.soap.partner.wsc.LimitInfo;
+import com.sforce.soap.partner.wsc.LimitInfoHeader_element;
+
+/**
+ * How ApiUsageTracker turns the reported API usage into batch size, concurrency, call spacing
+ * and pauses
+ */
+public class ApiUsageTrackerTest {
+
+    @Test
+    public void testNothingKnown() {
+        ApiUsageTracker tracker = new ApiUsageTracker(10, 30);
+        assertEquals(0, tracker.getUsedFraction(), 0);
+        assertEquals(1, tracker.getBatchSizeFactor());
+        assertEquals(4, tracker.getConcurrency(4));
+        assertEquals(0, tracker.getCallInterval());
+        assertFalse(tracker.isPaused());
+    }
+
+    @Test
+    public void testThrottlesAsTheBudgetAboveTheReserveIsUsed() {
+        // 10% of 1000 is left to other integrations, the budget is 900
+        ApiUsageTracker tracker = new ApiUsageTracker(10, 30);
+
+        tracker.update(449, 1000);
+        assertEquals(1, tracker.getBatchSizeFactor());
+        assertEquals(4, tracker.getConcurrency(4));
+
+        tracker.update(450, 1000);
+        assertEquals(0.5, tracker.getUsedFraction(), 1e-9);
+        assertEquals(2, tracker.getBatchSizeFactor());
+        assertEquals(2, tracker.getConcurrency(4));
+        assertEquals(1, tracker.getConcurrency(1));
+
+        tracker.update(675, 1000);
+        assertEquals(4, tracker.getBatchSizeFactor());
+        assertEquals(1, tracker.getConcurrency(4));
+        assertEquals(0, tracker.getCallInterval());
+
+        tracker.update(810, 1000);
+        assertTrue(tracker.getCallInterval() > 0);
+        assertFalse(tracker.isPaused());
+
+        tracker.update(900, 1000);
+        assertTrue(tracker.isPaused());
+    }
+
+    @Test
+    public void testReadsApiRequestsFromTheHeader() {
+        ApiUsageTracker tracker = new ApiUsageTracker(0, 30);
+        LimitInfoHeader_element header = new LimitInfoHeader_element();
+        header.setLimitInfo(new LimitInfo[] { limitInfo("DATA STORAGE", 999, 1000), null, limitInfo("Api Requests", 600, 1000) });
+
+        tracker.update(header);
+        assertEquals(0.6, tracker.getUsedFraction(), 1e-9);
+
+        // Responses without the header leave the last usage in place
+        tracker.update((LimitInfoHeader_element) null);
+        tracker.update(new LimitInfoHeader_element());
+        assertEquals(0.6, tracker.getUsedFraction(), 1e-9);
+    }
+
+    @Test
+    public void testPause() {
+        ApiUsageTracker tracker = new ApiUsageTracker(10, 30);
+        long before = System.currentTimeMillis();
+        long until = tracker.pause();
+        assertTrue(tracker.isPaused());
+        assertTrue(until >= before + 30 * 60 * 1000);
+        assertEquals(until, tracker.getPausedUntil());
+
+        // Usage reported while paused does not end or extend the pause
+        tracker.update(100, 1000);
+        tracker.update(1000, 1000);
+        assertEquals(until, tracker.getPausedUntil());
+    }
+
+    @Test
+    public void testReserveIsClamped() {
+        ApiUsageTracker tracker = new ApiUsageTracker(150, 0);
+        tracker.update(5, 1000);
+        // At most 99% is reserved, leaving a budget of 10
+        assertEquals(0.5, tracker.getUsedFraction(), 1e-9);
+    }
+
+    private static LimitInfo limitInfo(String type, int current, int limit) {
+        LimitInfo info = new LimitInfo();
+        info.setType(type);
+        info.setCurrent(current);
+        info.setLimit(limit);
+        return info;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Heap chunks, spilling and release of AttachmentBuffer
+ */
+public class AttachmentBufferTest {
+    private static final int THRESHOLD = 3 * AttachmentBuffer.CHUNK_SIZE + 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testContentBelowThresholdStaysOnHeap() throws IOException {
+        byte[] content = content(THRESHOLD, 1);
+        AttachmentBuffer buffer = write(content, 1000);
+        try {
+            assertFalse(buffer.isSpilled());
+            assertEquals(content.length, buffer.size());
+            assertArrayEquals(content, buffer.toByteArray());
+
+            File target = this.folder.newFile("target");
+            buffer.writeTo(target);
+            assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testContentOverThresholdIsSpilled() throws IOException {
+        byte[] content = content(THRESHOLD + 1, 2);
+        AttachmentBuffer buffer = write(content, 777);
+        File spillFile = buffer.getSpillFile();
+        assertTrue(buffer.isSpilled());
+        assertTrue(spillFile.exists());
+        assertEquals(content.length, buffer.size());
+        assertArrayEquals(content, buffer.toByteArray());
+
+        buffer.release();
+        assertFalse(spillFile.exists());
+        assertNull(buffer.getSpillFile());
+        // Releasing twice does no harm
+        buffer.release();
+    }
+
+    @Test
+    public void testSpilledContentIsMoved() throws IOException {
+        byte[] content = content(THRESHOLD * 2, 3);
+        AttachmentBuffer buffer = write(content, content.length);
+        File spillFile = buffer.getSpillFile();
+
+        File target = new File(this.folder.getRoot(), "target");
+        buffer.writeTo(target);
+        assertFalse(spillFile.exists());
+        buffer.release();
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void testSingleByteWritesAcrossChunks() throws IOException {
+        byte[] content = content(2 * AttachmentBuffer.CHUNK_SIZE + 5, 4);
+        AttachmentBuffer buffer = new AttachmentBuffer(THRESHOLD);
+        try {
+            for (byte b : content) {
+                buffer.write(b);
+            }
+            assertArrayEquals(content, buffer.toByteArray());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testReleasedChunksDoNotLeakContent() throws IOException {
+        AttachmentBuffer first = write(content(THRESHOLD, 5), 4096);
+        first.release();
+
+        byte[] content = content(10, 6);
+        AttachmentBuffer second = write(content, 3);
+        try {
+            assertArrayEquals(content, second.toByteArray());
+            File target = this.folder.newFile("target");
+            second.writeTo(target);
+            assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        } finally {
+            second.release();
+        }
+    }
+
+    @Test
+    public void testDigest() throws IOException {
+        assertNull(new AttachmentBuffer(THRESHOLD).getDigest());
+
+        for (int length : new int[] { 0, 100, THRESHOLD + 1 }) {
+            byte[] content = content(length, 7);
+            AttachmentBuffer buffer = new AttachmentBuffer(THRESHOLD, true);
+            try {
+                buffer.write(content, 0, content.length);
+                buffer.close();
+                assertEquals(sha256(content), buffer.getDigest());
+                assertEquals(sha256(content), buffer.getDigest());
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Writes the content to a new buffer in pieces of <code>piece</code> bytes
+     */
+    private static AttachmentBuffer write(byte[] content, int piece) throws IOException {
+        AttachmentBuffer buffer = new AttachmentBuffer(THRESHOLD);
+        for (int off = 0; off < content.length; off += piece) {
+            buffer.write(content, off, Math.min(piece, content.length - off));
+        }
+        buffer.close();
+        return buffer;
+    }
+
+    private static byte[] content(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
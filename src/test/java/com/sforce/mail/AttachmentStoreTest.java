@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sforce.util.Metrics;
+
+/**
+ * Blob naming and storing of AttachmentStore, against a temporary directory
+ */
+public class AttachmentStoreTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBlobName() {
+        String digest = "ab" + repeat('0', 62);
+        assertEquals("blobs/ab/" + digest + ".pdf", AttachmentStore.getBlobName(digest, "Report.PDF"));
+        assertEquals("blobs/ab/" + digest + ".gz", AttachmentStore.getBlobName(digest, "logs.tar.gz"));
+        assertEquals("blobs/ab/" + digest, AttachmentStore.getBlobName(digest, "README"));
+        assertEquals("blobs/ab/" + digest, AttachmentStore.getBlobName(digest, null));
+        assertEquals("blobs/ab/" + digest, AttachmentStore.getBlobName(digest, "a.b c"));
+        assertEquals("blobs/ab/" + digest, AttachmentStore.getBlobName(digest, "a.verylongextension"));
+        assertTrue(AttachmentStore.isBlobName(AttachmentStore.getBlobName(digest, "x.txt")));
+        assertFalse(AttachmentStore.isBlobName("attachment.txt"));
+    }
+
+    @Test
+    public void testExistingBlobIsNotWrittenAgain() throws IOException {
+        String directory = this.folder.getRoot().getPath() + File.separator;
+        byte[] content = "first content".getBytes(UTF8);
+        AttachmentBuffer buffer = buffer(content);
+        String blobName = AttachmentStore.getBlobName(buffer.getDigest(), "report.pdf");
+
+        try {
+            assertTrue(AttachmentStore.store(directory, blobName, buffer, "500000000000001"));
+        } finally {
+            buffer.release();
+        }
+        File blob = new File(directory + blobName);
+        assertArrayEquals(content, Files.readAllBytes(blob.toPath()));
+        // No temporary file is left next to the blob
+        assertEquals(1, blob.getParentFile().listFiles().length);
+
+        long deduplicated = Metrics.get(AttachmentStore.METRIC_DEDUPLICATED).getCount();
+        // The blob is looked up by name only, so different content proves it was not rewritten
+        AttachmentBuffer again = buffer("second content".getBytes(UTF8));
+        try {
+            assertFalse(AttachmentStore.store(directory, blobName, again, "500000000000002"));
+        } finally {
+            again.release();
+        }
+        assertArrayEquals(content, Files.readAllBytes(blob.toPath()));
+        assertEquals(1, blob.getParentFile().listFiles().length);
+        assertEquals(deduplicated + 1, Metrics.get(AttachmentStore.METRIC_DEDUPLICATED).getCount());
+
+        List<String> references = Files.readAllLines(
+            new File(directory + AttachmentStore.BLOB_DIR + AttachmentStore.INDEX_FILE).toPath(), UTF8);
+        assertEquals(2, references.size());
+        String relativeName = blobName.substring(AttachmentStore.BLOB_DIR.length());
+        assertTrue(references.get(0), references.get(0).startsWith(relativeName + " 500000000000001 "));
+        assertTrue(references.get(1), references.get(1).startsWith(relativeName + " 500000000000002 "));
+    }
+
+    private static AttachmentBuffer buffer(byte[] content) throws IOException {
+        AttachmentBuffer buffer = new AttachmentBuffer(1024, true);
+        buffer.write(content, 0, content.length);
+        buffer.close();
+        return buffer;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.mail.Folder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigInfo;
+import com.sforce.soap.partner.wsc.HandledEmailMessage;
+import com.sforce.soap.partner.wsc.SaveResult;
+import com.sforce.ws.ConnectionException;
+
+/**
+ * Isolation of the records handleEmailMessage rejects by bisecting the batch, against a client
+ * whose calls fail whenever a bad record is part of them
+ */
+public class BatchBisectionTest {
+
+    private ConfigInfo savedConfig;
+
+    @Before
+    public void setUp() {
+        this.savedConfig = SalesforceAgent.GLOBAL_CONFIG;
+        SalesforceAgent.GLOBAL_CONFIG = new ConfigInfo();
+    }
+
+    @After
+    public void tearDown() {
+        SalesforceAgent.GLOBAL_CONFIG = this.savedConfig;
+    }
+
+    @Test
+    public void testSingleRecord() throws Exception {
+        FakeClient client = new FakeClient();
+        MessageBatch batch = newBatch(client, 1, 0);
+        client.submitBatch(batch);
+
+        assertEquals(1, client.calls);
+        assertNotNull(batch.getRecordFailure(0));
+        assertNull(batch.getResults()[0]);
+    }
+
+    @Test
+    public void testOneBadRecordAtEveryPosition() throws Exception {
+        for (int size : new int[] { 2, 3, 5, 7, 8 }) {
+            for (int bad = 0; bad < size; bad++) {
+                FakeClient client = new FakeClient();
+                MessageBatch batch = newBatch(client, size, bad);
+                client.submitBatch(batch);
+
+                String where = size + " records, bad one at " + bad;
+                assertOnlyFailures(batch, where, bad);
+                int log2 = 32 - Integer.numberOfLeadingZeros(size - 1);
+                assertTrue(where + ": " + client.calls + " calls", client.calls <= 1 + 2 * log2);
+            }
+        }
+    }
+
+    @Test
+    public void testSeveralBadRecords() throws Exception {
+        FakeClient client = new FakeClient();
+        MessageBatch batch = newBatch(client, 9, 0, 4, 5, 8);
+        client.submitBatch(batch);
+
+        assertOnlyFailures(batch, "9 records", 0, 4, 5, 8);
+        assertNull(batch.getPendingFailure());
+    }
+
+    @Test
+    public void testConnectionFailureStopsBisection() throws Exception {
+        FakeClient client = new FakeClient();
+        MessageBatch batch = newBatch(client, 8, 7);
+        // The whole batch fails, its first half goes through, then the connection drops
+        client.connectionFailsAfter = 2;
+        client.submitBatch(batch);
+
+        SaveResult[] results = batch.getResults();
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(results[i]);
+            assertNull(batch.getRecordFailure(i));
+        }
+        // Left in the inbox for the next poll
+        for (int i = 4; i < 8; i++) {
+            assertNull(results[i]);
+            assertNull(batch.getRecordFailure(i));
+        }
+        assertTrue(batch.getPendingFailure() instanceof ConnectionException);
+    }
+
+    private static void assertOnlyFailures(MessageBatch batch, String where, int... bad) throws Exception {
+        Set<Integer> expected = new HashSet<Integer>();
+        for (int i : bad) expected.add(i);
+
+        SaveResult[] results = batch.getResults();
+        for (int i = 0; i < batch.size(); i++) {
+            if (expected.contains(i)) {
+                assertNotNull(where + ": record " + i + " not isolated", batch.getRecordFailure(i));
+                assertNull(where + ": record " + i, results[i]);
+            } else {
+                assertNull(where + ": record " + i + " isolated", batch.getRecordFailure(i));
+                assertNotNull(where + ": record " + i + " not submitted", results[i]);
+            }
+        }
+    }
+
+    private static MessageBatch newBatch(FakeClient client, int size, int... bad) {
+        MessageBatch batch = new MessageBatch();
+        for (int i = 0; i < size; i++) {
+            HandledEmailMessage record = new HandledEmailMessage();
+            record.setSubject("message " + i);
+            batch.add(null, null, record, 0);
+        }
+        HandledEmailMessage[] records = batch.getRecords();
+        for (int i : bad) client.badRecords.add(records[i]);
+        return batch;
+    }
+
+    /**
+     * Stands in for Salesforce: a call that carries a bad record is rejected as a whole
+     */
+    private static class FakeClient extends GenericClient {
+        final Set<HandledEmailMessage> badRecords = new HashSet<HandledEmailMessage>();
+        int connectionFailsAfter = Integer.MAX_VALUE;
+        int calls = 0;
+
+        @Override
+        protected SaveResult[] callHandleEmailMessage(HandledEmailMessage[] records) throws ConnectionException {
+            this.calls++;
+            if (this.calls > this.connectionFailsAfter) throw new ConnectionException("connection reset");
+            for (HandledEmailMessage record : records) {
+                if (this.badRecords.contains(record)) throw new IllegalArgumentException("Cannot handle " + record.getSubject());
+            }
+            SaveResult[] results = new SaveResult[records.length];
+            for (int i = 0; i < results.length; i++) results[i] = new SaveResult();
+            return results;
+        }
+
+        @Override
+        protected String getProtocol() { return "test"; }
+
+        @Override
+        protected Folder configureInBox(Folder root) { return root; }
+
+        @Override
+        protected Folder configureReadBox(Folder root) { return root; }
+
+        @Override
+        protected Folder configureErrorBox(Folder root) { return root; }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigInfo;
+import com.sforce.soap.partner.wsc.EmailAttachment;
+import com.sforce.soap.partner.wsc.HandledEmailMessage;
+import com.sforce.soap.partner.wsc.NameValuePair;
+
+/**
+ * Checks that the batches BatchBuilder closes stay within their limits, measuring each record
+ * the way it goes over the wire: escaped UTF-8 text and base64 attachments.
+ */
+public class BatchBuilderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MAX_BYTES = 40 * 1024;
+
+    private final Session session = Session.getInstance(new Properties());
+    private ConfigInfo savedConfig;
+
+    @Before
+    public void setUp() {
+        this.savedConfig = SalesforceAgent.GLOBAL_CONFIG;
+        SalesforceAgent.GLOBAL_CONFIG = new ConfigInfo();
+    }
+
+    @After
+    public void tearDown() {
+        SalesforceAgent.GLOBAL_CONFIG = this.savedConfig;
+    }
+
+    @Test
+    public void testEstimateCoversWireSize() throws Exception {
+        for (Message message : corpus()) {
+            ParsedMessage parsed = new ParsedMessage(message);
+            long wire = wireSize(parsed.getEmailMessage());
+            assertTrue(message.getSubject() + ": " + parsed.getEstimatedSize() + " < " + wire, parsed.getEstimatedSize() >= wire);
+        }
+    }
+
+    @Test
+    public void testBatchesStayUnderByteLimit() throws Exception {
+        BatchBuilder builder = new BatchBuilder(Integer.MAX_VALUE, MAX_BYTES);
+        List<MessageBatch> batches = new ArrayList<MessageBatch>();
+        List<Message> corpus = corpus();
+        for (int round = 0; round < 5; round++) {
+            for (Message message : corpus) {
+                ParsedMessage parsed = new ParsedMessage(message);
+                MessageBatch closed = builder.add(message, parsed, parsed.getEmailMessage());
+                if (closed != null) batches.add(closed);
+            }
+        }
+        batches.add(builder.flush());
+
+        int records = 0;
+        for (MessageBatch batch : batches) {
+            long wire = 0;
+            for (HandledEmailMessage record : batch.getRecords()) {
+                wire += wireSize(record);
+            }
+            records += batch.size();
+            assertTrue(batch.size() + " records, " + wire + " bytes", batch.size() == 1 || wire <= MAX_BYTES);
+        }
+        assertEquals(5 * corpus.size(), records);
+    }
+
+    @Test
+    public void testBatchesStayUnderCountLimit() throws Exception {
+        BatchBuilder builder = new BatchBuilder(3, Long.MAX_VALUE);
+        Message message = textMessage("small", "text/plain", "hello");
+        ParsedMessage parsed = new ParsedMessage(message);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(null, builder.add(message, parsed, parsed.getEmailMessage()));
+        }
+        MessageBatch closed = builder.add(message, parsed, parsed.getEmailMessage());
+        assertEquals(3, closed.size());
+        assertEquals(1, builder.flush().size());
+    }
+
+    /**
+     * Messages whose text grows on the wire: multi-byte characters, markup that XML escapes, and
+     * an attachment
+     */
+    private List<Message> corpus() throws Exception {
+        List<Message> corpus = new ArrayList<Message>();
+        corpus.add(textMessage("ascii", "text/plain", repeat("Plain text line.\r\n", 400)));
+        corpus.add(textMessage("cyrillic", "text/plain", repeat("Здравствуйте, пишу по поводу заказа.\r\n", 200)));
+        corpus.add(textMessage("cjk", "text/plain", repeat("ご注文の件でご連絡いたします。\r\n", 300)));
+        corpus.add(textMessage("emoji", "text/plain", repeat("😀👍 ", 1000)));
+        corpus.add(textMessage("html", "text/html", repeat("<tr><td class=\"a\">&nbsp;</td><td>R&amp;D</td></tr>\r\n", 150)));
+
+        MimeMessage withAttachment = new MimeMessage(this.session);
+        withAttachment.setSubject("attachment", "UTF-8");
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("see attached", "UTF-8");
+        multipart.addBodyPart(text);
+        MimeBodyPart attachment = new MimeBodyPart();
+        byte[] content = new byte[6000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        attachment.setContent(content, "application/octet-stream");
+        attachment.setFileName("data.bin");
+        multipart.addBodyPart(attachment);
+        withAttachment.setContent(multipart);
+        corpus.add(reparse(withAttachment));
+        return corpus;
+    }
+
+    private Message textMessage(String subject, String type, String body) throws Exception {
+        MimeMessage message = new MimeMessage(this.session);
+        message.setFrom(new InternetAddress("sender@example.com"));
+        message.setSubject(subject, "UTF-8");
+        message.setContent(body, type + "; charset=UTF-8");
+        return reparse(message);
+    }
+
+    /**
+     * @return the message as read back from its bytes, like a fetched one
+     */
+    private Message reparse(MimeMessage message) throws Exception {
+        message.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return new MimeMessage(this.session, new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static long wireSize(HandledEmailMessage record) {
+        long size = wireSize(record.getSubject()) + wireSize(record.getTextBody()) + wireSize(record.getHtmlBody());
+        if (record.getHeaders() != null) {
+            for (NameValuePair header : record.getHeaders()) {
+                size += wireSize(header.getName()) + wireSize(header.getValue());
+            }
+        }
+        if (record.getAttachments() != null) {
+            for (EmailAttachment attachment : record.getAttachments()) {
+                size += wireSize(attachment.getFileName()) + wireSize(attachment.getContentType())
+                    + (attachment.getBody().length + 2) / 3 * 4;
+            }
+        }
+        return size;
+    }
+
+    private static long wireSize(String value) {
+        if (value == null) return 0;
+        String escaped = value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        return escaped.getBytes(UTF8).length;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
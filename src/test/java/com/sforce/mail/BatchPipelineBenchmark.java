@@ -0,0 +1,148 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sforce.util.Metrics;
+
+/**
+ * Cost of running one poll through a BatchPipeline, with the commit thread of the mailbox reused
+ * across polls or, as before, started and stopped by every poll.  The stages do no work, so the
+ * score is the overhead of the pipeline itself.  The time put spent waiting for room in the
+ * pipeline, the pipeline.wait.ms metric, is reported as the waitMs counter.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.sforce.mail.BatchPipelineBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BatchPipelineBenchmark {
+
+    @Param({"true", "false"})
+    public boolean sharedCommitter;
+
+    @Param({"4"})
+    public int batchesPerPoll;
+
+    private ExecutorService submitter;
+    private ExecutorService committer;
+
+    private static final BatchPipeline.Stages NO_OP = new BatchPipeline.Stages() {
+        @Override
+        public void submit(MessageBatch batch) {
+        }
+
+        @Override
+        public void commit(MessageBatch batch) {
+        }
+
+        @Override
+        public void abandon(MessageBatch batch) {
+        }
+    };
+
+    /**
+     * Milliseconds put waited for a batch in flight to be committed, per iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WaitCounters {
+        public long waitMs;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.waitMs = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        this.submitter = Executors.newFixedThreadPool(BatchPipeline.defaultDepth, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "benchmark submit");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.committer = BatchPipeline.newCommitter("benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.submitter.shutdown();
+        this.committer.shutdown();
+    }
+
+    @Benchmark
+    public void poll(WaitCounters counters) throws Exception {
+        long waited = Metrics.get(BatchPipeline.METRIC_PIPELINE_WAIT).getTotal();
+        ExecutorService pollCommitter = this.sharedCommitter ? this.committer : BatchPipeline.newCommitter("benchmark poll");
+        try {
+            BatchPipeline pipeline = new BatchPipeline(BatchPipeline.defaultDepth, this.submitter, pollCommitter, NO_OP);
+            for (int i = 0; i < this.batchesPerPoll; i++) {
+                pipeline.put(new MessageBatch());
+            }
+            pipeline.finish();
+            counters.waitMs += Metrics.get(BatchPipeline.METRIC_PIPELINE_WAIT).getTotal() - waited;
+        } finally {
+            if (pollCommitter != this.committer) pollCommitter.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(BatchPipelineBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigInfo;
+
+/**
+ * State changes of CircuitBreaker and its single half-open probe
+ */
+public class CircuitBreakerTest {
+    private static final IOException DOWN = new IOException("connection refused");
+
+    private ConfigInfo savedConfig;
+
+    @Before
+    public void setUp() {
+        // No notification settings, the notification the breaker sends when it opens is only logged
+        this.savedConfig = SalesforceAgent.GLOBAL_CONFIG;
+        SalesforceAgent.GLOBAL_CONFIG = new ConfigInfo();
+    }
+
+    @After
+    public void tearDown() {
+        SalesforceAgent.GLOBAL_CONFIG = this.savedConfig;
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60 * 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.allowRequest());
+
+        breaker.recordFailure(DOWN);
+        breaker.recordFailure(DOWN);
+        // A success in between starts the count again
+        breaker.recordSuccess();
+        breaker.recordFailure(DOWN);
+        breaker.recordFailure(DOWN);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.allowRequest());
+
+        breaker.recordFailure(DOWN);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.allowRequest());
+        assertNull(breaker.allowRequest());
+    }
+
+    @Test
+    public void testOnlyOneProbeAtATime() {
+        CircuitBreaker breaker = open(0);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNull(breaker.allowRequest());
+
+        // A probe that found no mail lets the next client probe
+        breaker.releaseProbe();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.allowRequest());
+        assertNull(breaker.allowRequest());
+    }
+
+    @Test
+    public void testProbeSuccessCloses() {
+        CircuitBreaker breaker = open(0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.allowRequest());
+
+        // Closed again, it takes the full threshold to open it
+        breaker.recordFailure(DOWN);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testProbeFailureOpensAgain() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 60 * 60 * 1000);
+        breaker.recordFailure(DOWN);
+        breaker.recordFailure(DOWN);
+        assertNull(breaker.allowRequest());
+
+        breaker = open(0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.allowRequest());
+        breaker.recordFailure(DOWN);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // The failed probe is over, the next one may go once the open time has passed
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.allowRequest());
+    }
+
+    @Test
+    public void testStaysOpenUntilOpenDurationPassed() throws InterruptedException {
+        CircuitBreaker breaker = open(200);
+        assertNull(breaker.allowRequest());
+        Thread.sleep(250);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.allowRequest());
+    }
+
+    private static CircuitBreaker open(long openDuration) {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, openDuration);
+        breaker.recordFailure(DOWN);
+        breaker.recordFailure(DOWN);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Lookups, growth and reload of the MessageFingerprintIndex, against a temporary directory
+ */
+public class MessageFingerprintIndexTest {
+    private static final String MAILBOX = "imap://user@host/INBOX";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageFingerprintIndex index;
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.index != null) this.index.close();
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        this.index = open();
+        assertNull(this.index.lookup(fingerprint(1)));
+
+        this.index.put(fingerprint(1), "500000000000001");
+        this.index.put(fingerprint(2), MessageFingerprintIndex.IN_DOUBT);
+        assertEquals("500000000000001", this.index.lookup(fingerprint(1)));
+        assertEquals(MessageFingerprintIndex.IN_DOUBT, this.index.lookup(fingerprint(2)));
+        assertNull(this.index.lookup(fingerprint(3)));
+
+        // A later entry replaces an earlier one
+        this.index.put(fingerprint(2), "500000000000002");
+        assertEquals("500000000000002", this.index.lookup(fingerprint(2)));
+        assertEquals(2, this.index.size());
+    }
+
+    @Test
+    public void testFingerprintsSharingTheirKey() throws IOException {
+        this.index = open();
+        byte[] first = fingerprint(1);
+        byte[] second = fingerprint(2);
+        System.arraycopy(first, 0, second, 0, 8);
+
+        this.index.put(first, "first");
+        this.index.put(second, "second");
+        assertEquals("first", this.index.lookup(first));
+        assertEquals("second", this.index.lookup(second));
+        assertEquals(2, this.index.size());
+    }
+
+    @Test
+    public void testGrowthAndLookupAfterReload() throws IOException {
+        // Enough entries for the table to grow twice
+        int count = 100000;
+        this.index = open();
+        for (int n = 0; n < count; n++) {
+            this.index.put(fingerprint(n), n % 10 == 0 ? MessageFingerprintIndex.IN_DOUBT : id(n));
+        }
+        // Resolve some of the in-doubt entries
+        for (int n = 0; n < count; n += 20) {
+            this.index.put(fingerprint(n), id(n));
+        }
+        this.index.sync();
+        assertEquals(count, this.index.size());
+        assertLookups(count);
+
+        this.index.close();
+        this.index = open();
+        assertEquals(count, this.index.size());
+        assertLookups(count);
+        assertNull(this.index.lookup(fingerprint(count)));
+    }
+
+    @Test
+    public void testTornEntryIsCutOff() throws IOException {
+        this.index = open();
+        this.index.put(fingerprint(1), id(1));
+        this.index.put(fingerprint(2), id(2));
+        this.index.sync();
+        this.index.close();
+
+        File file = indexFile();
+        long intact = file.length() / 2;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+
+        this.index = open();
+        assertEquals(1, this.index.size());
+        assertEquals(id(1), this.index.lookup(fingerprint(1)));
+        assertNull(this.index.lookup(fingerprint(2)));
+        assertEquals(intact, file.length());
+
+        this.index.put(fingerprint(3), id(3));
+        this.index.close();
+        this.index = open();
+        assertEquals(id(3), this.index.lookup(fingerprint(3)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFingerprintIsRejected() throws IOException {
+        this.index = open();
+        this.index.put(new byte[16], id(1));
+    }
+
+    @Test
+    public void testSpooledMessageKeepsItsFingerprint() throws MessagingException, IOException {
+        Session session = Session.getInstance(new Properties());
+        byte[] content = "Message-ID: <1@example.com>\r\nSubject: hello\r\n\r\nbody\r\n".getBytes(ASCII);
+        byte[] longer = "Message-ID: <1@example.com>\r\nSubject: hello\r\n\r\nlonger body\r\n".getBytes(ASCII);
+
+        byte[] fingerprint = MessageFingerprintIndex.fingerprint(new SpooledMessage(session, content, 1));
+        assertEquals(32, fingerprint.length);
+        assertTrue(Arrays.equals(fingerprint, MessageFingerprintIndex.fingerprint(new SpooledMessage(session, content, 2))));
+        assertTrue(Arrays.equals(fingerprint, MessageFingerprintIndex.fingerprint(new ServerMessage(session, content))));
+        assertFalse(Arrays.equals(fingerprint, MessageFingerprintIndex.fingerprint(new SpooledMessage(session, longer, 1))));
+    }
+
+    /**
+     * A message as seen on the mail server, which reports the size of the whole message
+     */
+    private static class ServerMessage extends MimeMessage {
+        private final int size;
+
+        ServerMessage(Session session, byte[] content) throws MessagingException {
+            super(session, new ByteArrayInputStream(content));
+            this.size = content.length;
+        }
+
+        @Override
+        public int getSize() {
+            return this.size;
+        }
+    }
+
+    private void assertLookups(int count) throws IOException {
+        for (int n = 0; n < count; n++) {
+            String expected = n % 10 == 0 && n % 20 != 0 ? MessageFingerprintIndex.IN_DOUBT : id(n);
+            assertEquals(expected, this.index.lookup(fingerprint(n)));
+        }
+    }
+
+    private MessageFingerprintIndex open() throws IOException {
+        return new MessageFingerprintIndex(this.folder.getRoot(), MAILBOX);
+    }
+
+    private File indexFile() {
+        for (File file : this.folder.getRoot().listFiles()) {
+            if (file.getName().endsWith(".fingerprints")) return file;
+        }
+        return null;
+    }
+
+    private static String id(int n) {
+        return "500" + String.format("%012d", n);
+    }
+
+    private static byte[] fingerprint(int n) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(String.valueOf(n).getBytes(ASCII));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Replay, cut-off and compaction of the MessageSpool journal, against a temporary directory
+ */
+public class MessageSpoolTest {
+    private static final String MAILBOX = "imap://user@host/INBOX";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // Type, id and length before the payload, CRC32 after it
+    private static final int OVERHEAD = 1 + 8 + 4 + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageSpool spool;
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.spool != null) this.spool.close();
+    }
+
+    @Test
+    public void testPendingMessagesAreReplayed() throws IOException {
+        this.spool = open();
+        long first = this.spool.append(message(1));
+        long second = this.spool.append(message(2));
+        long third = this.spool.append(message(3));
+        this.spool.ack(second);
+        this.spool.sync();
+
+        this.spool = reopen();
+        assertArrayEquals(new long[] { first, third }, this.spool.getPending(10));
+        assertArrayEquals(message(1), this.spool.read(first));
+        assertNull(this.spool.read(second));
+        assertArrayEquals(message(3), this.spool.read(third));
+        assertTrue("ids must not be reused", this.spool.append(message(4)) > third);
+    }
+
+    @Test
+    public void testTornRecordIsCutOff() throws IOException {
+        long intact = OVERHEAD + message(1).length;
+        long full = intact + OVERHEAD + message(2).length;
+
+        // Cut the second record at every length short of complete
+        for (long length = intact + 1; length < full; length++) {
+            File file = spoolFile();
+            if (file != null) file.delete();
+            this.spool = open();
+            long first = this.spool.append(message(1));
+            this.spool.append(message(2));
+            this.spool.sync();
+            this.spool.close();
+            truncate(spoolFile(), length);
+
+            this.spool = open();
+            assertArrayEquals(new long[] { first }, this.spool.getPending(10));
+            assertEquals(intact, spoolFile().length());
+
+            // Appends after the cut-off replay normally
+            long next = this.spool.append(message(5));
+            this.spool.sync();
+            this.spool = reopen();
+            assertArrayEquals(new long[] { first, next }, this.spool.getPending(10));
+            assertArrayEquals(message(5), this.spool.read(next));
+            this.spool.close();
+        }
+    }
+
+    @Test
+    public void testRecordsFromACorruptOneAreCutOff() throws IOException {
+        this.spool = open();
+        long first = this.spool.append(message(1));
+        this.spool.append(message(2));
+        this.spool.append(message(3));
+        this.spool.sync();
+        this.spool.close();
+
+        // Flip one payload byte of the second record, the CRC no longer matches
+        File file = spoolFile();
+        long second = OVERHEAD + message(1).length;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(second + OVERHEAD - 4 + 3);
+            int b = raf.read();
+            raf.seek(second + OVERHEAD - 4 + 3);
+            raf.write(b ^ 0x20);
+        }
+
+        this.spool = reopen();
+        assertArrayEquals(new long[] { first }, this.spool.getPending(10));
+        assertEquals(second, file.length());
+    }
+
+    @Test
+    public void testJournalIsTruncatedOnceNothingIsPending() throws IOException {
+        this.spool = open();
+        long first = this.spool.append(message(1));
+        long second = this.spool.append(message(2));
+        this.spool.sync();
+
+        this.spool.ack(first);
+        this.spool.compact();
+        assertTrue(spoolFile().length() > 0);
+
+        this.spool.ack(second);
+        this.spool.compact();
+        assertEquals(0, spoolFile().length());
+
+        this.spool = reopen();
+        assertEquals(0, this.spool.getPendingCount());
+    }
+
+    @Test
+    public void testCompactionKeepsOnlyPendingMessages() throws IOException {
+        this.spool = open(1000);
+        long[] ids = new long[20];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = this.spool.append(message(i));
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (i % 5 != 0) this.spool.ack(ids[i]);
+        }
+        this.spool.sync();
+        long before = spoolFile().length();
+
+        this.spool.compact();
+        long[] kept = { ids[0], ids[5], ids[10], ids[15] };
+        long expected = 0;
+        for (int i = 0; i < ids.length; i += 5) {
+            expected += OVERHEAD + message(i).length;
+        }
+        assertTrue(spoolFile().length() < before);
+        assertEquals(expected, spoolFile().length());
+        assertArrayEquals(kept, this.spool.getPending(10));
+        for (int i = 0; i < ids.length; i += 5) {
+            assertArrayEquals(message(i), this.spool.read(ids[i]));
+        }
+
+        // The compacted journal replays, and appends go after it
+        long next = this.spool.append(message(99));
+        this.spool.ack(ids[5]);
+        this.spool.sync();
+        this.spool = reopen(1000);
+        assertArrayEquals(new long[] { ids[0], ids[10], ids[15], next }, this.spool.getPending(10));
+        assertArrayEquals(message(15), this.spool.read(ids[15]));
+        assertArrayEquals(message(99), this.spool.read(next));
+    }
+
+    @Test
+    public void testSmallJournalIsNotCompacted() throws IOException {
+        this.spool = open();
+        long first = this.spool.append(message(1));
+        this.spool.ack(this.spool.append(message(2)));
+        this.spool.sync();
+        long before = spoolFile().length();
+
+        this.spool.compact();
+        assertEquals(before, spoolFile().length());
+        assertArrayEquals(message(1), this.spool.read(first));
+    }
+
+    @Test
+    public void testRejectedMessageIsCopiedAndAcknowledged() throws IOException {
+        this.spool = open();
+        long id = this.spool.append(message(1));
+        this.spool.sync();
+
+        File rejected = this.spool.reject(id);
+        assertArrayEquals(message(1), Files.readAllBytes(rejected.toPath()));
+        assertEquals(0, this.spool.getPendingCount());
+        assertNull(this.spool.reject(id));
+
+        this.spool = reopen();
+        assertEquals(0, this.spool.getPendingCount());
+    }
+
+    private MessageSpool open() throws IOException {
+        return open(MessageSpool.COMPACT_THRESHOLD);
+    }
+
+    private MessageSpool open(long compactThreshold) throws IOException {
+        return new MessageSpool(this.folder.getRoot(), MAILBOX, compactThreshold);
+    }
+
+    private MessageSpool reopen() throws IOException {
+        return reopen(MessageSpool.COMPACT_THRESHOLD);
+    }
+
+    private MessageSpool reopen(long compactThreshold) throws IOException {
+        this.spool.close();
+        return open(compactThreshold);
+    }
+
+    private File spoolFile() {
+        File[] files = this.folder.getRoot().listFiles();
+        for (File file : files) {
+            if (file.getName().endsWith(".spool")) return file;
+        }
+        return null;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private static byte[] message(int n) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Message-ID: <").append(n).append("@example.com>\r\nSubject: message ").append(n).append("\r\n\r\n");
+        for (int i = 0; i < n % 7; i++) {
+            sb.append("body line ").append(i).append("\r\n");
+        }
+        return sb.toString().getBytes(ASCII);
+    }
+}
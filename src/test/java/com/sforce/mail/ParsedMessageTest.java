@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigInfo;
+import com.sforce.config.ConfigParameters;
+
+/**
+ * Checks that a message whose attachment can not be read completely fails to parse, with either
+ * parser, instead of being sent with a truncated attachment.
+ */
+public class ParsedMessageTest {
+    private ConfigInfo savedConfig;
+
+    @Before
+    public void setUp() {
+        this.savedConfig = SalesforceAgent.GLOBAL_CONFIG;
+        SalesforceAgent.GLOBAL_CONFIG = new ConfigInfo();
+    }
+
+    @After
+    public void tearDown() {
+        SalesforceAgent.GLOBAL_CONFIG = this.savedConfig;
+    }
+
+    @Test
+    public void testFailedAttachmentReadFailsTheMessage() throws Exception {
+        for (boolean streaming : new boolean[] { false, true }) {
+            SalesforceAgent.GLOBAL_CONFIG.put(ConfigParameters.pLOGIN, ConfigParameters.pSTREAMING_PARSER, String.valueOf(streaming));
+            try {
+                new ParsedMessage(new FailingMessage(attachmentMessage()));
+                fail("parsed although the attachment could not be read, streaming " + streaming);
+            } catch (ParsedMessage.AttachmentReadException are) {
+                assertTrue(are.getMessage(), are.getMessage().contains("data.bin"));
+            }
+        }
+    }
+
+    private static byte[] attachmentMessage() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("From: Sender <sender@example.com>\r\n");
+        sb.append("Subject: attachment\r\n");
+        sb.append("MIME-Version: 1.0\r\n");
+        sb.append("Content-Type: application/octet-stream; name=data.bin\r\n");
+        sb.append("Content-Disposition: attachment; filename=data.bin\r\n");
+        sb.append("Content-Transfer-Encoding: base64\r\n\r\n");
+        for (int i = 0; i < 2000; i++) {
+            sb.append("AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8gISIjJCUmJygpKissLS4vMDEyMzQ1Njc4\r\n");
+        }
+        return sb.toString().getBytes("US-ASCII");
+    }
+
+    /**
+     * A message whose connection to the mail server breaks halfway through its content
+     */
+    private static class FailingMessage extends MimeMessage {
+        FailingMessage(byte[] content) throws MessagingException {
+            super(Session.getInstance(new Properties()), new ByteArrayInputStream(content));
+        }
+
+        @Override
+        protected InputStream getContentStream() throws MessagingException {
+            final int limit = this.content.length / 2;
+            return new FilterInputStream(super.getContentStream()) {
+                private int read = 0;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (this.read >= limit) throw new IOException("connection reset");
+                    int n = super.read(b, off, Math.min(len, limit - this.read));
+                    if (n > 0) this.read += n;
+                    return n;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Delay bounds and state of RetryBackoff
+ */
+public class RetryBackoffTest {
+
+    @Test
+    public void testDelaysStayWithinCappedCeiling() {
+        long base = 1000;
+        long max = 60 * 1000;
+        for (int run = 0; run < 200; run++) {
+            RetryBackoff backoff = new RetryBackoff(base, max);
+            for (int attempt = 1; attempt <= 40; attempt++) {
+                long ceiling = Math.min(max, base << Math.min(attempt - 1, 30));
+                long delay = backoff.failed(new IOException("down"));
+                assertTrue(attempt + ": " + delay, delay >= 0 && delay <= ceiling);
+                assertEquals(attempt, backoff.getAttempts());
+            }
+        }
+    }
+
+    @Test
+    public void testDelaysAreJittered() {
+        // Full jitter spreads the delays over the whole range below the ceiling
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int run = 0; run < 1000; run++) {
+            long delay = new RetryBackoff(10000, 10000).failed(null);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(String.valueOf(min), min < 2000);
+        assertTrue(String.valueOf(max), max > 8000);
+    }
+
+    @Test
+    public void testLargeAttemptCountsDoNotOverflow() {
+        RetryBackoff backoff = new RetryBackoff(Long.MAX_VALUE / 4, Long.MAX_VALUE / 2);
+        for (int attempt = 1; attempt <= 100; attempt++) {
+            long delay = backoff.failed(null);
+            assertTrue(attempt + ": " + delay, delay >= 0 && delay <= Long.MAX_VALUE / 2);
+        }
+    }
+
+    @Test
+    public void testSuccessEndsTheBackoff() {
+        RetryBackoff backoff = new RetryBackoff(60 * 60 * 1000, 60 * 60 * 1000);
+        assertFalse(backoff.isWaiting());
+        assertEquals("no failures", backoff.toString());
+
+        long before = System.currentTimeMillis();
+        long delay;
+        do {
+            // A zero delay is due right away, draw again
+            delay = backoff.failed(new IOException("timed out"));
+        } while (delay == 0);
+        assertTrue(backoff.isWaiting());
+        assertTrue(backoff.getNextAttempt() >= before + delay);
+        assertTrue(backoff.getNextAttempt() <= System.currentTimeMillis() + delay);
+        assertTrue(backoff.toString(), backoff.toString().contains("timed out"));
+
+        backoff.succeeded();
+        assertFalse(backoff.isWaiting());
+        assertEquals(0, backoff.getAttempts());
+        assertEquals(0, backoff.getNextAttempt());
+    }
+
+    @Test
+    public void testDelaysAreClamped() {
+        RetryBackoff backoff = new RetryBackoff(0, -5);
+        for (int attempt = 1; attempt <= 5; attempt++) {
+            assertTrue(backoff.failed(null) <= 1);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigInfo;
+import com.sforce.config.ConfigParameters;
+
+/**
+ * Time to build a ParsedMessage with the JavaMail parsing and with the StreamingMimeParser, for a
+ * multipart/mixed message with a text and an html body and two base64 attachments.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.sforce.mail.StreamingMimeParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StreamingMimeParserBenchmark {
+
+    // Size of each attachment in KB
+    @Param({"16", "1024"})
+    public int attachmentKb;
+
+    private byte[] raw;
+    private Session session;
+    private ConfigInfo savedConfig;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.savedConfig = SalesforceAgent.GLOBAL_CONFIG;
+        SalesforceAgent.GLOBAL_CONFIG = new ConfigInfo();
+        this.session = Session.getInstance(new Properties());
+
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("Line ").append(i).append(" of the body of the message.\r\n");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("From: sender@example.com\r\nTo: support@example.com\r\nSubject: benchmark\r\n"
+            + "MIME-Version: 1.0\r\nContent-Type: multipart/mixed; boundary=outer\r\n\r\n"
+            + "--outer\r\nContent-Type: multipart/alternative; boundary=alt\r\n\r\n"
+            + "--alt\r\nContent-Type: text/plain; charset=us-ascii\r\n\r\n" + text
+            + "--alt\r\nContent-Type: text/html; charset=us-ascii\r\n\r\n<pre>" + text + "</pre>\r\n"
+            + "--alt--\r\n").getBytes("US-ASCII"));
+        for (int a = 0; a < 2; a++) {
+            byte[] data = new byte[this.attachmentKb * 1024];
+            random.nextBytes(data);
+            out.write(("--outer\r\nContent-Type: application/octet-stream; name=file" + a + ".bin\r\n"
+                + "Content-Disposition: attachment; filename=file" + a + ".bin\r\n"
+                + "Content-Transfer-Encoding: base64\r\n\r\n").getBytes("US-ASCII"));
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            try (OutputStream encoder = MimeUtility.encode(encoded, "base64")) {
+                encoder.write(data);
+            }
+            out.write(encoded.toByteArray());
+            out.write("\r\n".getBytes("US-ASCII"));
+        }
+        out.write("--outer--\r\n".getBytes("US-ASCII"));
+        this.raw = out.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SalesforceAgent.GLOBAL_CONFIG = this.savedConfig;
+    }
+
+    @Benchmark
+    public Object javaMail() throws Exception {
+        return parse(false);
+    }
+
+    @Benchmark
+    public Object streaming() throws Exception {
+        return parse(true);
+    }
+
+    private Object parse(boolean streaming) throws Exception {
+        SalesforceAgent.GLOBAL_CONFIG.put(ConfigParameters.pLOGIN, ConfigParameters.pSTREAMING_PARSER, String.valueOf(streaming));
+        ParsedMessage parsed = new ParsedMessage(new MimeMessage(this.session, new ByteArrayInputStream(this.raw)));
+        parsed.release();
+        return parsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(StreamingMimeParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
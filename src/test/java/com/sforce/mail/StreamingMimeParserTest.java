@@ -0,0 +1,349 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.SalesforceAgent;
+import com.sforce.config.ConfigInfo;
+import com.sforce.config.ConfigParameters;
+import com.sforce.soap.partner.wsc.EmailAttachment;
+import com.sforce.soap.partner.wsc.HandledEmailMessage;
+
+/**
+ * Parses a small corpus with the StreamingMimeParser and with JavaMail and checks that both
+ * find the same leaf parts with the same decoded content, and that ParsedMessage builds the
+ * same record either way.
+ */
+public class StreamingMimeParserTest {
+    private static final String CRLF = "\r\n";
+    private static final String LF = "\n";
+
+    private ConfigInfo savedConfig;
+
+    @Before
+    public void setUp() {
+        this.savedConfig = SalesforceAgent.GLOBAL_CONFIG;
+        SalesforceAgent.GLOBAL_CONFIG = new ConfigInfo();
+    }
+
+    @After
+    public void tearDown() {
+        SalesforceAgent.GLOBAL_CONFIG = this.savedConfig;
+    }
+
+    @Test
+    public void testSinglePart() throws Exception {
+        assertSameParse(message(CRLF,
+            "Content-Type: text/plain; charset=us-ascii",
+            "",
+            "Hello,",
+            "",
+            "a single part message.",
+            ""));
+    }
+
+    @Test
+    public void testBase64Leaf() throws Exception {
+        assertSameParse(message(CRLF,
+            "Content-Type: application/octet-stream; name=data.bin",
+            "Content-Disposition: attachment; filename=data.bin",
+            "Content-Transfer-Encoding: base64",
+            "",
+            "AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8gISIjJCUmJygpKissLS4vMDEyMzQ1Njc4",
+            "OTo7PD0+P0BBQkNERUZHSElKS0xNTk9QUVJTVFVWV1hZWltcXV5fYGFiY2RlZmdoaWprbG1ub3Bx",
+            "cnN0dXZ3eHl6e3x9fn8=",
+            ""));
+    }
+
+    @Test
+    public void testAlternativeWithPreambleAndEpilogue() throws Exception {
+        for (String eol : new String[] {CRLF, LF}) {
+            assertSameParse(message(eol,
+                "Content-Type: multipart/alternative; boundary=\"alt\"",
+                "",
+                "This is the preamble, it is not part of any body part.",
+                "--alt",
+                "Content-Type: text/plain; charset=utf-8",
+                "Content-Transfer-Encoding: quoted-printable",
+                "",
+                "Caf=C3=A9 au lait, a soft =",
+                "line break and trailing space  ",
+                "--alt",
+                "Content-Type: text/html; charset=iso-8859-1",
+                "",
+                "<p>Café</p>",
+                "--alt--",
+                "This is the epilogue.",
+                "--alt",
+                "It still belongs to the epilogue.",
+                ""));
+        }
+    }
+
+    @Test
+    public void testNestedMultiparts() throws Exception {
+        for (String eol : new String[] {CRLF, LF}) {
+            assertSameParse(message(eol,
+                "Content-Type: multipart/mixed; boundary=outer",
+                "",
+                "--outer",
+                "Content-Type: multipart/related; boundary=related",
+                "",
+                "--related",
+                "Content-Type: multipart/alternative; boundary=alt",
+                "",
+                "--alt",
+                "Content-Type: text/plain",
+                "",
+                "plain body",
+                "--alt",
+                "Content-Type: text/html",
+                "",
+                "<b>html body</b>",
+                "--alt--",
+                "",
+                "--related",
+                "Content-Type: image/gif",
+                "Content-Transfer-Encoding: base64",
+                "Content-ID: <logo>",
+                "",
+                "R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7",
+                "--related--",
+                "--outer",
+                "Content-Type: text/csv; name=\"report.csv\"",
+                "Content-Disposition: attachment; filename=\"report.csv\"",
+                "Content-Transfer-Encoding: quoted-printable",
+                "",
+                "a,b,c=0D",
+                "1,2,3",
+                "--outer--",
+                ""));
+        }
+    }
+
+    @Test
+    public void testBoundariesThatArePrefixesOfEachOther() throws Exception {
+        // The inner delimiter line starts with the outer delimiter
+        assertSameParse(message(CRLF,
+            "Content-Type: multipart/mixed; boundary=\"part\"",
+            "",
+            "--part",
+            "Content-Type: multipart/alternative; boundary=\"part-inner\"",
+            "",
+            "--part-inner",
+            "Content-Type: text/plain",
+            "",
+            "inner text",
+            "--part-inner",
+            "Content-Type: text/html",
+            "",
+            "<i>inner html</i>",
+            "--part-inner--",
+            "--part",
+            "Content-Type: application/pdf; name=a.pdf",
+            "Content-Disposition: attachment; filename=a.pdf",
+            "",
+            "--partial line that is not a delimiter",
+            "--part--",
+            ""));
+
+        // The outer delimiter line starts with the inner delimiter
+        assertSameParse(message(LF,
+            "Content-Type: multipart/mixed; boundary=\"part-outer\"",
+            "",
+            "--part-outer",
+            "Content-Type: multipart/alternative; boundary=\"part\"",
+            "",
+            "--part",
+            "Content-Type: text/plain",
+            "",
+            "inner text",
+            "--part--",
+            "--part-outer",
+            "Content-Type: text/plain; name=notes.txt",
+            "Content-Disposition: attachment; filename=notes.txt",
+            "",
+            "notes",
+            "--part-outer--",
+            ""));
+    }
+
+    @Test
+    public void testTransportPaddingAfterDelimiter() throws Exception {
+        assertSameParse(message(CRLF,
+            "Content-Type: multipart/mixed; boundary=pad",
+            "",
+            "--pad  ",
+            "Content-Type: text/plain",
+            "",
+            "padded",
+            "--pad-- \t",
+            ""));
+    }
+
+    @Test
+    public void testEmbeddedMessageAndMissingCloseDelimiter() throws Exception {
+        for (String eol : new String[] {CRLF, LF}) {
+            assertSameParse(message(eol,
+                "Content-Type: multipart/mixed; boundary=m",
+                "",
+                "--m",
+                "Content-Type: text/plain",
+                "",
+                "see the forwarded message",
+                "--m",
+                "Content-Type: message/rfc822",
+                "Content-Disposition: attachment; filename=fwd.eml",
+                "",
+                "Subject: forwarded",
+                "Content-Type: text/plain",
+                "",
+                "forwarded body",
+                ""));
+        }
+    }
+
+    /**
+     * Checks both the leaf parts found by the parsers and the records ParsedMessage builds with each
+     */
+    private static void assertSameParse(byte[] raw) throws Exception {
+        List<String> expected = javaMailParts(newMessage(raw));
+        List<String> actual = streamingParts(newMessage(raw));
+        assertEquals(expected, actual);
+
+        HandledEmailMessage javaMail = parse(raw, false);
+        HandledEmailMessage streaming = parse(raw, true);
+        assertEquals(javaMail.getTextBody(), streaming.getTextBody());
+        assertEquals(javaMail.getHtmlBody(), streaming.getHtmlBody());
+        EmailAttachment[] expectedAttachments = javaMail.getAttachments();
+        EmailAttachment[] actualAttachments = streaming.getAttachments();
+        assertEquals(expectedAttachments.length, actualAttachments.length);
+        for (int i = 0; i < expectedAttachments.length; i++) {
+            assertEquals(expectedAttachments[i].getFileName(), actualAttachments[i].getFileName());
+            assertEquals(expectedAttachments[i].getContentType(), actualAttachments[i].getContentType());
+            assertArrayEquals(expectedAttachments[i].getBody(), actualAttachments[i].getBody());
+        }
+    }
+
+    private static HandledEmailMessage parse(byte[] raw, boolean streaming) throws Exception {
+        SalesforceAgent.GLOBAL_CONFIG.put(ConfigParameters.pLOGIN, ConfigParameters.pSTREAMING_PARSER, String.valueOf(streaming));
+        ParsedMessage parsed = new ParsedMessage(newMessage(raw));
+        try {
+            return parsed.getEmailMessage();
+        } finally {
+            parsed.release();
+        }
+    }
+
+    /**
+     * @return content type and decoded content of every leaf part, as JavaMail sees them
+     */
+    private static List<String> javaMailParts(Part part) throws Exception {
+        List<String> parts = new ArrayList<String>();
+        collect(part, parts);
+        return parts;
+    }
+
+    private static void collect(Part part, List<String> parts) throws Exception {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                collect(multipart.getBodyPart(i), parts);
+            }
+        } else {
+            parts.add(describe(part, part.getInputStream()));
+        }
+    }
+
+    /**
+     * @return content type and decoded content of every leaf part, as the StreamingMimeParser sees them
+     */
+    private static List<String> streamingParts(MimeMessage message) throws Exception {
+        final List<String> parts = new ArrayList<String>();
+        try (InputStream raw = message.getRawInputStream()) {
+            StreamingMimeParser.parse(message, raw, new StreamingMimeParser.PartHandler() {
+                @Override
+                public void part(Part part, InputStream content) throws MessagingException, IOException {
+                    parts.add(describe(part, content));
+                }
+            });
+        }
+        return parts;
+    }
+
+    private static String describe(Part part, InputStream content) throws MessagingException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = content.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return part.getContentType() + " " + part.getDisposition() + " " + new String(out.toByteArray(), "ISO-8859-1");
+    }
+
+    private static MimeMessage newMessage(byte[] raw) throws MessagingException {
+        return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(raw));
+    }
+
+    private static byte[] message(String eol, String... bodyLines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("From: Sender <sender@example.com>").append(eol);
+        sb.append("To: support@example.com").append(eol);
+        sb.append("Subject: corpus").append(eol);
+        sb.append("Message-ID: <corpus@example.com>").append(eol);
+        sb.append("MIME-Version: 1.0").append(eol);
+        for (int i = 0; i < bodyLines.length; i++) {
+            sb.append(bodyLines[i]);
+            if (i < bodyLines.length - 1) sb.append(eol);
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+}
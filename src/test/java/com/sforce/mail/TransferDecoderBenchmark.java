@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeUtility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Decoding throughput of TransferDecoder against the JavaMail decoding streams, on one thread.
+ * Every operation decodes 1 MB of content, so the score in ops/s is the rate in MB/s per core.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.sforce.mail.TransferDecoderBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TransferDecoderBenchmark {
+    private static final int DECODED_SIZE = 1024 * 1024;
+
+    @Param({"base64", "quoted-printable"})
+    public String encoding;
+
+    private byte[] encoded;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] data = new byte[DECODED_SIZE];
+        Random random = new Random(42);
+        if (this.encoding.equals("base64")) {
+            random.nextBytes(data);
+        } else {
+            // Mostly text, as quoted-printable content is
+            for (int i = 0; i < data.length; i++) {
+                int r = random.nextInt(40);
+                data[i] = (byte) (r == 0 ? '\n' : r < 6 ? ' ' : r == 6 ? 0xe9 : 'a' + r % 26);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encoder = MimeUtility.encode(out, this.encoding)) {
+            encoder.write(data);
+        }
+        this.encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public long transferDecoder() throws Exception {
+        return drain(TransferDecoder.decode(new ByteArrayInputStream(this.encoded), this.encoding));
+    }
+
+    @Benchmark
+    public long javaMail() throws Exception {
+        return drain(MimeUtility.decode(new ByteArrayInputStream(this.encoded), this.encoding));
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(this.buffer)) >= 0) {
+            total += read;
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(TransferDecoderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.mail.internet.MimeUtility;
+
+import org.junit.Test;
+
+/**
+ * Checks that TransferDecoder decodes exactly what the JavaMail decoding streams do, whatever
+ * sizes the encoded content arrives in.
+ */
+public class TransferDecoderTest {
+    private static final String BASE64 = "base64";
+    private static final String QUOTED_PRINTABLE = "quoted-printable";
+
+    @Test
+    public void testBase64RoundTrip() throws Exception {
+        Random random = new Random(1);
+        for (int length = 0; length < 200; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertDecodesLikeJavaMail(BASE64, encode(BASE64, data));
+        }
+    }
+
+    @Test
+    public void testBase64TrailingWhitespace() throws Exception {
+        assertDecodesLikeJavaMail(BASE64, bytes("QUJD  \r\nREVG\t\r\nR0g= \r\n  "));
+        assertDecodesLikeJavaMail(BASE64, bytes("QUJD\nREVG\nR0g=\n\n"));
+    }
+
+    @Test
+    public void testBase64PaddingInsideLine() throws Exception {
+        assertDecodesLikeJavaMail(BASE64, bytes("QQ==QkM=RA==\r\n"));
+        assertDecodesLikeJavaMail(BASE64, bytes("QUI=\r\nQ0Q=\r\n"));
+        assertDecodesLikeJavaMail(BASE64, bytes("QUJD\r\nRA=\r\n=\r\n"));
+    }
+
+    @Test
+    public void testBase64InvalidCharacters() throws Exception {
+        assertDecodesLikeJavaMail(BASE64, bytes("QU!J*D\r\nRéEV-G_\r\n"));
+        assertDecodesLikeJavaMail(BASE64, bytes("Q.U.J.D.R.E.V.G"));
+    }
+
+    @Test
+    public void testQuotedPrintableRoundTrip() throws Exception {
+        Random random = new Random(2);
+        for (int length = 0; length < 200; length++) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                // Mostly text, with line breaks, spaces and some 8 bit bytes
+                int r = random.nextInt(20);
+                data[i] = (byte) (r == 0 ? '\n' : r == 1 ? ' ' : r == 2 ? 0xe9 : 'a' + r);
+            }
+            assertDecodesLikeJavaMail(QUOTED_PRINTABLE, encode(QUOTED_PRINTABLE, data));
+        }
+    }
+
+    @Test
+    public void testQuotedPrintableSoftBreaks() throws Exception {
+        assertDecodesLikeJavaMail(QUOTED_PRINTABLE, bytes("a soft=\r\nbreak and=\nanother=\r\n"));
+        assertDecodesLikeJavaMail(QUOTED_PRINTABLE, bytes("ends with a soft break="));
+        assertDecodesLikeJavaMail(QUOTED_PRINTABLE, bytes("not a soft break= \r\nnext"));
+    }
+
+    @Test
+    public void testQuotedPrintableCutOffAtEnd() throws Exception {
+        // JavaMail appends a stray 0xff byte for these, the decoder keeps what is there
+        assertDecodes(bytes("ends with"), QUOTED_PRINTABLE, bytes("ends with=\r"));
+        assertDecodes(bytes("ends with =4"), QUOTED_PRINTABLE, bytes("ends with =4"));
+    }
+
+    @Test
+    public void testQuotedPrintableEscapes() throws Exception {
+        assertDecodesLikeJavaMail(QUOTED_PRINTABLE, bytes("=3D=3d=C3=A9=e9\r\n"));
+        assertDecodesLikeJavaMail(QUOTED_PRINTABLE, bytes("bad =ZZ escape =4\r\nand =G1 one =\n"));
+    }
+
+    @Test
+    public void testQuotedPrintableTrailingWhitespace() throws Exception {
+        assertDecodesLikeJavaMail(QUOTED_PRINTABLE, bytes("line  \r\nnext\t\r\nlast \t "));
+        assertDecodesLikeJavaMail(QUOTED_PRINTABLE, bytes("soft  =\r\nbreak \n"));
+    }
+
+    @Test
+    public void testEscapeAtChunkEdge() throws Exception {
+        // The escape or soft break straddles the end of a full chunk read from the stream
+        for (int shift = 0; shift < 4; shift++) {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < TransferDecoder.CHUNK_SIZE - 3 + shift) sb.append('x');
+            sb.append("=3D=\r\n=41 \r\ntail");
+            byte[] encoded = bytes(sb.toString());
+            assertArrayEquals(javaMail(QUOTED_PRINTABLE, encoded), read(TransferDecoder.decode(new ByteArrayInputStream(encoded), QUOTED_PRINTABLE)));
+        }
+    }
+
+    /**
+     * Decodes <code>encoded</code> delivered in two reads split at every position, and in pieces of a
+     * few bytes each, and compares the outcome with that of MimeUtility.decode.
+     */
+    private static void assertDecodesLikeJavaMail(String encoding, byte[] encoded) throws Exception {
+        assertDecodes(javaMail(encoding, encoded), encoding, encoded);
+    }
+
+    private static void assertDecodes(byte[] expected, String encoding, byte[] encoded) throws Exception {
+        for (int split = 0; split <= encoded.length; split++) {
+            InputStream in = new SplitInputStream(encoded, split, encoded.length);
+            assertArrayEquals("split at " + split, expected, read(TransferDecoder.decode(in, encoding)));
+        }
+        for (int piece = 1; piece <= 5; piece++) {
+            InputStream in = new SplitInputStream(encoded, piece, piece);
+            assertArrayEquals("pieces of " + piece, expected, read(TransferDecoder.decode(in, encoding)));
+        }
+    }
+
+    private static byte[] javaMail(String encoding, byte[] encoded) throws Exception {
+        return read(MimeUtility.decode(new ByteArrayInputStream(encoded), encoding));
+    }
+
+    private static byte[] encode(String encoding, byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encoder = MimeUtility.encode(out, encoding)) {
+            encoder.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Returns <code>first</code> bytes on the first read and at most <code>rest</code> on each one after
+     */
+    private static class SplitInputStream extends InputStream {
+        private final byte[] data;
+        private final int rest;
+        private int limit;
+        private int position = 0;
+
+        SplitInputStream(byte[] data, int first, int rest) {
+            this.data = data;
+            this.rest = Math.max(1, rest);
+            this.limit = first > 0 ? first : this.rest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.position >= this.data.length) return -1;
+            if (len == 0) return 0;
+
+            int count = Math.min(len, Math.min(this.limit, this.data.length - this.position));
+            System.arraycopy(this.data, this.position, b, off, count);
+            this.position += count;
+            this.limit = this.rest;
+            return count;
+        }
+    }
+}
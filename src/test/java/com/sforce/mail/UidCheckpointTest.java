@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writing and reloading the UidCheckpoint file, against a temporary directory
+ */
+public class UidCheckpointTest {
+    private static final String MAILBOX = "imap.example.com:993:user:INBOX";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNoCheckpointYet() throws IOException {
+        UidCheckpoint checkpoint = new UidCheckpoint(this.folder.getRoot(), MAILBOX);
+        assertEquals(-1, checkpoint.getUidValidity());
+        assertEquals(0, checkpoint.getLastUid());
+        assertEquals(0, this.folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testUpdateSurvivesReload() throws IOException {
+        File dir = new File(this.folder.getRoot(), "checkpoints");
+        UidCheckpoint checkpoint = new UidCheckpoint(dir, MAILBOX);
+        checkpoint.update(7, 41);
+        checkpoint.update(7, 42);
+        // An older UID never moves the checkpoint back
+        checkpoint.update(7, 40);
+
+        UidCheckpoint reloaded = new UidCheckpoint(dir, MAILBOX);
+        assertEquals(7, reloaded.getUidValidity());
+        assertEquals(42, reloaded.getLastUid());
+
+        // The file is replaced by rename, no temporary file is left behind
+        String[] files = dir.list();
+        assertEquals(1, files.length);
+        assertTrue(files[0].endsWith(".checkpoint"));
+        assertFalse(files[0].contains(":"));
+    }
+
+    @Test
+    public void testUidValidityChangeStartsOver() throws IOException {
+        UidCheckpoint checkpoint = new UidCheckpoint(this.folder.getRoot(), MAILBOX);
+        checkpoint.update(7, 1000);
+        checkpoint.update(8, 3);
+        assertEquals(8, checkpoint.getUidValidity());
+        assertEquals(3, checkpoint.getLastUid());
+
+        UidCheckpoint reloaded = new UidCheckpoint(this.folder.getRoot(), MAILBOX);
+        assertEquals(8, reloaded.getUidValidity());
+        assertEquals(3, reloaded.getLastUid());
+    }
+
+    @Test
+    public void testInterruptedWriteKeepsThePreviousCheckpoint() throws IOException {
+        UidCheckpoint checkpoint = new UidCheckpoint(this.folder.getRoot(), MAILBOX);
+        checkpoint.update(7, 42);
+
+        // A crash before the rename leaves a partial temporary file, which is never read
+        File file = new File(this.folder.getRoot(), this.folder.getRoot().list()[0]);
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), "uidValidity=7\nlastU".getBytes(ASCII));
+
+        UidCheckpoint reloaded = new UidCheckpoint(this.folder.getRoot(), MAILBOX);
+        assertEquals(7, reloaded.getUidValidity());
+        assertEquals(42, reloaded.getLastUid());
+
+        // The next update overwrites it
+        reloaded.update(7, 43);
+        assertFalse(tmp.exists());
+        assertEquals(43, new UidCheckpoint(this.folder.getRoot(), MAILBOX).getLastUid());
+    }
+
+    @Test
+    public void testCorruptCheckpointIsReported() throws IOException {
+        UidCheckpoint checkpoint = new UidCheckpoint(this.folder.getRoot(), MAILBOX);
+        checkpoint.update(7, 42);
+        File file = new File(this.folder.getRoot(), this.folder.getRoot().list()[0]);
+        Files.write(file.toPath(), "uidValidity=7\nlastUid=4x\n".getBytes(ASCII));
+
+        try {
+            new UidCheckpoint(this.folder.getRoot(), MAILBOX);
+            fail("Expected a corrupt checkpoint to be reported");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains(file.getPath()));
+        }
+    }
+}
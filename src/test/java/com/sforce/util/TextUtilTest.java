@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * sfdc-email-to-case-agent
+ * %%
+ * Copyright (C) 2005 salesforce.com, inc.
+ * %%
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package com.sforce.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TextUtilTest {
+
+    @Test
+    public void testCleanStringIsReturnedAsIs() {
+        String clean = "Subject: café 中文\tline\r\nnext 😀 �";
+        assertSame(clean, TextUtil.removeInvalidXmlChars(clean));
+
+        String empty = new String("");
+        assertSame(empty, TextUtil.removeInvalidXmlChars(empty));
+        assertNull(TextUtil.removeInvalidXmlChars(null));
+    }
+
+    @Test
+    public void testControlCharactersAreRemoved() {
+        assertEquals("abc\t\r\n", TextUtil.removeInvalidXmlChars("\u0000a\u0001b\u001fc\u0008\t\r\n\u000b\u000c"));
+        assertEquals("ab", TextUtil.removeInvalidXmlChars("a￾b￿"));
+    }
+
+    @Test
+    public void testSurrogatePairsAreKept() {
+        assertEquals("😀", TextUtil.removeInvalidXmlChars("\u0000😀"));
+        assertEquals("x𐀀y􏿿", TextUtil.removeInvalidXmlChars("x𐀀\u0001y􏿿"));
+    }
+
+    @Test
+    public void testUnpairedSurrogatesAreRemoved() {
+        // High surrogate at the end, high followed by another char, lone low, low before high
+        assertEquals("a", TextUtil.removeInvalidXmlChars("a\ud83d"));
+        assertEquals("ab", TextUtil.removeInvalidXmlChars("a\ud83db"));
+        assertEquals("ab", TextUtil.removeInvalidXmlChars("a\ude00b"));
+        assertEquals("ab", TextUtil.removeInvalidXmlChars("a\ude00\ud83db"));
+        // Two highs before a low: only the second one is paired
+        assertEquals("a😀", TextUtil.removeInvalidXmlChars("a\ud83d😀"));
+    }
+
+    @Test
+    public void testMatchesCodePointDefinition() {
+        Random random = new Random(3);
+        char[] alphabet = {'a', ' ', '\t', '\n', '\r', '\u0000', '\u001f', 'é', '퟿', '',
+            '�', '￾', '￿', '\ud800', '\udbff', '\udc00', '\udfff'};
+        for (int n = 0; n < 2000; n++) {
+            char[] chars = new char[random.nextInt(12)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String s = new String(chars);
+            assertEquals(s, removeByCodePoint(s), TextUtil.removeInvalidXmlChars(s));
+        }
+    }
+
+    /**
+     * The XML 1.0 Char production applied code point by code point
+     */
+    private static String removeByCodePoint(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); ) {
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+            boolean valid = c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xD7FF)
+                || (c >= 0xE000 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0x10FFFF);
+            if (valid) sb.appendCodePoint(c);
+        }
+        return sb.toString();
+    }
+}